@@ -6,5 +6,6 @@
  * - com.darkangel.teammanager.managers: Manager classes (TeamDataManager)
  * - com.darkangel.teammanager.commands: Command handlers
  * - com.darkangel.teammanager.listeners: Event listeners
+ * - com.darkangel.teammanager.storage: Saving and loading team data
  */
 package com.darkangel.teammanager; 
\ No newline at end of file
@@ -2,7 +2,12 @@ package com.darkangel.teammanager;
 
 import com.darkangel.teammanager.commands.*;
 import com.darkangel.teammanager.listeners.ChatListener;
+import com.darkangel.teammanager.listeners.ConnectionListener;
 import com.darkangel.teammanager.listeners.PvPListener;
+import com.darkangel.teammanager.listeners.WorldListener;
+import com.darkangel.teammanager.managers.ChatFilterManager;
+import com.darkangel.teammanager.managers.MailboxManager;
+import com.darkangel.teammanager.managers.TeamChatManager;
 import com.darkangel.teammanager.managers.TeamDataManager;
 import org.bukkit.plugin.java.JavaPlugin;
 
@@ -12,6 +17,9 @@ import org.bukkit.plugin.java.JavaPlugin;
  */
 public class TeamManager extends JavaPlugin {
     private TeamDataManager teamDataManager;
+    private TeamChatManager teamChatManager;
+    private MailboxManager mailboxManager; // null if offline messages are turned off
+    private ChatFilterManager chatFilterManager;
     
     // might add config manager later if I have time
     // private ConfigManager configManager;
@@ -24,10 +32,18 @@ public class TeamManager extends JavaPlugin {
         // Init the team data manager - need this first
         teamDataManager = new TeamDataManager(this);
         teamDataManager.loadTeams();
+        chatFilterManager = new ChatFilterManager(this);
+        chatFilterManager.load();
+        teamChatManager = new TeamChatManager(this);
+        if (getConfig().getBoolean("chat.offline-messages.enabled", true)) {
+            mailboxManager = new MailboxManager(this);
+            mailboxManager.load();
+        }
         
         // Register commands - pretty simple stuff
         getCommand("team").setExecutor(new TeamCommand(this));
         getCommand("tc").setExecutor(new TeamChatCommand(this));
+        getCommand("ac").setExecutor(new AllyChatCommand(this));
         
         // TODO: Add more commands later
         // getCommand("ta").setExecutor(new TeamAdminCommand(this));
@@ -35,6 +51,8 @@ public class TeamManager extends JavaPlugin {
         // Register listeners - had some issues with these before, finally working
         getServer().getPluginManager().registerEvents(new PvPListener(this), this);
         getServer().getPluginManager().registerEvents(new ChatListener(this), this);
+        getServer().getPluginManager().registerEvents(new WorldListener(this), this);
+        getServer().getPluginManager().registerEvents(new ConnectionListener(this), this);
         
         getLogger().info("TeamManager has been enabled! Woohoo!");
     }
@@ -43,8 +61,16 @@ public class TeamManager extends JavaPlugin {
     public void onDisable() {
         // Make sure to save all team data when plugin shuts down
         // Almost forgot this once and lost all my test data lol
+        // (saves are async now, so this waits for them and does a final sync write)
+        if (teamChatManager != null) {
+            teamChatManager.shutdown();
+        }
+        // After the chat thread so the last queued mail gets written
+        if (mailboxManager != null) {
+            mailboxManager.shutdown();
+        }
         if (teamDataManager != null) {
-            teamDataManager.saveTeams();
+            teamDataManager.shutdown();
         }
         
         getLogger().info("TeamManager has been disabled! Bye!");
@@ -57,6 +83,27 @@ public class TeamManager extends JavaPlugin {
         return teamDataManager;
     }
     
+    /**
+     * Gets the team chat manager - used by /tc and the chat listener
+     */
+    public TeamChatManager getTeamChatManager() {
+        return teamChatManager;
+    }
+    
+    /**
+     * Gets the word filter - used by chat and /team create
+     */
+    public ChatFilterManager getChatFilterManager() {
+        return chatFilterManager;
+    }
+    
+    /**
+     * Gets the offline message manager, or null if it's turned off in the config
+     */
+    public MailboxManager getMailboxManager() {
+        return mailboxManager;
+    }
+    
     // might add these methods later if needed
     /*
     private void setupMetrics() {
@@ -0,0 +1,57 @@
+package com.darkangel.teammanager.commands;
+
+import com.darkangel.teammanager.TeamManager;
+import com.darkangel.teammanager.managers.TeamDataManager;
+import com.darkangel.teammanager.models.Team;
+import org.bukkit.ChatColor;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandExecutor;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+/**
+ * Handles the /ac command - chat with your team and every team you're allied with
+ */
+public class AllyChatCommand implements CommandExecutor {
+    private final TeamManager plugin;
+    private final TeamDataManager teamData;
+
+    public AllyChatCommand(TeamManager plugin) {
+        this.plugin = plugin;
+        this.teamData = plugin.getTeamDataManager();
+    }
+
+    @Override
+    public boolean onCommand(CommandSender sender, Command cmd, String label, String[] args) {
+        if (!(sender instanceof Player)) {
+            sender.sendMessage(ChatColor.RED + "Only players can use ally chat.");
+            return true;
+        }
+        
+        Player player = (Player) sender;
+        
+        if (!player.hasPermission("teammanager.team.chat")) {
+            player.sendMessage(ChatColor.RED + "You don't have permission to use ally chat.");
+            return true;
+        }
+        
+        Team team = teamData.getPlayerTeam(player.getUniqueId());
+        if (team == null) {
+            player.sendMessage(ChatColor.RED + "You're not in a team!");
+            return true;
+        }
+        
+        if (args.length == 0) {
+            player.sendMessage(ChatColor.RED + "Usage: /ac <message>");
+            return true;
+        }
+        
+        if (plugin.getTeamDataManager().getAllianceManager().getAllyIds(team.getId()).length == 0) {
+            player.sendMessage(ChatColor.RED + "Your team doesn't have any allies. Use /team ally <team> to make some.");
+            return true;
+        }
+        
+        plugin.getTeamChatManager().sendAlly(team, player, String.join(" ", args).trim());
+        return true;
+    }
+}
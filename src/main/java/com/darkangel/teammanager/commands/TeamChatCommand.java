@@ -1,24 +1,29 @@
 package com.darkangel.teammanager.commands;
 
 import com.darkangel.teammanager.TeamManager;
+import com.darkangel.teammanager.managers.ChatHistoryManager;
 import com.darkangel.teammanager.managers.TeamDataManager;
 import com.darkangel.teammanager.models.Team;
+import com.darkangel.teammanager.models.TeamMail;
 import org.bukkit.ChatColor;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
 /**
  * Handles the /tc command for team chat
  * This was actually pretty fun to implement
  */
 public class TeamChatCommand implements CommandExecutor {
+    private static final int HISTORY_PAGE_SIZE = 10;
+    
     private TeamManager plugin;
     private TeamDataManager teamData; // shorthand var name cuz I'm lazy
-    
-    // Prefix for team chat messages
-    private static final String MSG_PREFIX = ChatColor.GRAY + "[" + ChatColor.GOLD + "Team" + ChatColor.GRAY + "] ";
 
     public TeamChatCommand(TeamManager plugin) {
         this.plugin = plugin;
@@ -44,43 +49,53 @@ public class TeamChatCommand implements CommandExecutor {
         
         // Need args for a message...duh
         if (args.length == 0) {
-            player.sendMessage(ChatColor.RED + "Usage: /tc <message>");
+            player.sendMessage(ChatColor.RED + "Usage: /tc <message> or /tc history [page]");
             return true;
         }
         
-        // Build the message from args
-        StringBuilder messageBuilder = new StringBuilder();
-        for (String arg : args) {
-            messageBuilder.append(arg).append(" ");
+        // "/tc history" or "/tc history 2" - anything longer is just a message starting with "history"
+        if (args[0].equalsIgnoreCase("history")
+                && (args.length == 1 || (args.length == 2 && args[1].matches("\\d{1,4}")))) {
+            showHistory(player, team, args.length == 2 ? Integer.parseInt(args[1]) : 1);
+            return true;
         }
-        String message = messageBuilder.toString().trim();
-        
-        // Get the team chat color - defaults to yellow if not set
-        // This was a pain to implement with the serialization but worth it
-        ChatColor teamColor = team.getColor() != null ? team.getColor() : ChatColor.YELLOW;
-        
-        // Format: [Team] [PlayerName] Message
-        String formattedMsg = MSG_PREFIX + 
-                teamColor + player.getName() + ChatColor.WHITE + ": " + 
-                message;
         
-        // Send message to all online team members
-        // Might add offline message storage later if I have time
-        for (Player member : team.getOnlineMembers()) {
-            member.sendMessage(formattedMsg);
-        }
+        // Build the message from args
+        String message = String.join(" ", args).trim();
         
-        // Log the message for admins - useful for moderation
-        plugin.getLogger().info("[TeamChat:" + team.getName() + "] " + player.getName() + ": " + message);
+        // Formatting, sending and logging all happen in the chat manager now,
+        // off the main thread
+        plugin.getTeamChatManager().send(team, player, message);
         
         return true;
     }
     
-    // TODO: implement offline message queue
-    // probably need a database for this tho
-    /*
-    private void saveOfflineMessage(Team team, String message) {
-        // code here when I figure it out
+    /**
+     * Shows a page of the team's recent chat, newest first
+     */
+    private void showHistory(Player player, Team team, int page) {
+        ChatHistoryManager history = plugin.getTeamChatManager().getHistory();
+        int total = history.size(team);
+        if (total == 0) {
+            player.sendMessage(ChatColor.YELLOW + "Your team hasn't said anything yet.");
+            return;
+        }
+        
+        int pages = (total + HISTORY_PAGE_SIZE - 1) / HISTORY_PAGE_SIZE;
+        page = Math.max(1, Math.min(page, pages));
+        List<TeamMail> messages = history.getPage(team, page, HISTORY_PAGE_SIZE);
+        
+        ChatColor teamColor = team.getColor() != null ? team.getColor() : ChatColor.YELLOW;
+        SimpleDateFormat timeFormat = new SimpleDateFormat("MM-dd HH:mm");
+        player.sendMessage(ChatColor.GOLD + "=== Team chat history (page " + page + "/" + pages + ") ===");
+        // Oldest at the top so it reads like chat
+        for (int i = messages.size() - 1; i >= 0; i--) {
+            TeamMail message = messages.get(i);
+            player.sendMessage(ChatColor.GRAY + "[" + timeFormat.format(new Date(message.getSentAt())) + "] "
+                    + teamColor + message.getSenderName() + ChatColor.WHITE + ": " + message.getMessage());
+        }
+        if (page < pages) {
+            player.sendMessage(ChatColor.GRAY + "Older messages: /tc history " + (page + 1));
+        }
     }
-    */
-} 
\ No newline at end of file
+}
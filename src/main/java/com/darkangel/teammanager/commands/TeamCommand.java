@@ -1,8 +1,10 @@
 package com.darkangel.teammanager.commands;
 
 import com.darkangel.teammanager.TeamManager;
+import com.darkangel.teammanager.managers.AllianceManager;
 import com.darkangel.teammanager.managers.TeamDataManager;
 import com.darkangel.teammanager.models.Team;
+import com.darkangel.teammanager.storage.StorageMode;
 import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
 import org.bukkit.Location;
@@ -11,18 +13,17 @@ import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
 import org.bukkit.command.TabCompleter;
 import org.bukkit.entity.Player;
-import org.bukkit.configuration.file.FileConfiguration;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
 import java.util.stream.Collectors;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 public class TeamCommand implements CommandExecutor, TabCompleter {
     private final TeamManager plugin;
@@ -31,20 +32,16 @@ public class TeamCommand implements CommandExecutor, TabCompleter {
     // Add a HashMap to track confirmation for team disband
     private final Map<UUID, Long> disbandConfirmation = new HashMap<>();
     private static final long CONFIRMATION_TIMEOUT_MS = 30000; // 30 seconds timeout
-    
-    // Add a HashSet to track players who have team chat toggled on
-    private final Set<UUID> teamChatToggled = new HashSet<>();
-    
-    // Add a Map to track team alliances
-    private final Map<String, Set<String>> teamAlliances = new HashMap<>();
 
     private final List<String> subCommands = Arrays.asList(
             "create", "disband", "invite", "join", "leave", 
             "kick", "pvp", "info", "list", "help", "promote", "confirm",
-            "sethome", "home", "tctoggle", "color", "ally", "setlevel"
+            "sethome", "home", "tctoggle", "color", "ally", "setlevel", "storage", "filter"
     );
     
     private final List<String> pvpOptions = Arrays.asList("on", "off");
+    private final List<String> storageActions = Arrays.asList("export", "import", "stats");
+    private final List<String> storageBackends = Arrays.asList("yaml", "sharded", "sqlite");
     private final List<String> colorOptions = Arrays.asList(
             "black", "dark_blue", "dark_green", "dark_aqua", "dark_red", 
             "dark_purple", "gold", "gray", "dark_gray", "blue", "green",
@@ -54,54 +51,6 @@ public class TeamCommand implements CommandExecutor, TabCompleter {
     public TeamCommand(TeamManager plugin) {
         this.plugin = plugin;
         this.teamDataManager = plugin.getTeamDataManager();
-        
-        // Load team homes, colors, levels, and alliances from config
-        loadTeamData();
-    }
-    
-    /**
-     * Loads additional team data from config files
-     */
-    private void loadTeamData() {
-        FileConfiguration config = plugin.getConfig();
-        
-        // Load team alliances (example format: "team1:team2,team3;team4:team5")
-        String alliancesStr = config.getString("team_alliances", "");
-        if (!alliancesStr.isEmpty()) {
-            String[] alliancePairs = alliancesStr.split(";");
-            for (String pair : alliancePairs) {
-                String[] parts = pair.split(":");
-                if (parts.length == 2) {
-                    String team = parts[0];
-                    String[] allies = parts[1].split(",");
-                    Set<String> allySet = new HashSet<>(Arrays.asList(allies));
-                    teamAlliances.put(team, allySet);
-                }
-            }
-        }
-        
-        // Additional data is loaded in the Team class
-    }
-    
-    /**
-     * Saves additional team data to config
-     */
-    private void saveTeamData() {
-        FileConfiguration config = plugin.getConfig();
-        
-        // Save team alliances
-        StringBuilder alliancesStr = new StringBuilder();
-        for (Map.Entry<String, Set<String>> entry : teamAlliances.entrySet()) {
-            if (alliancesStr.length() > 0) {
-                alliancesStr.append(";");
-            }
-            alliancesStr.append(entry.getKey()).append(":");
-            alliancesStr.append(String.join(",", entry.getValue()));
-        }
-        config.set("team_alliances", alliancesStr.toString());
-        
-        // Save config
-        plugin.saveConfig();
     }
 
     @Override
@@ -172,6 +121,12 @@ public class TeamCommand implements CommandExecutor, TabCompleter {
             case "setlevel":
                 handleSetLevel(player, args);
                 break;
+            case "storage":
+                handleStorage(player, args);
+                break;
+            case "filter":
+                handleFilter(player, args);
+                break;
             default:
                 player.sendMessage(ChatColor.RED + "Unknown sub-command. Type /team help for help.");
                 break;
@@ -230,7 +185,19 @@ public class TeamCommand implements CommandExecutor, TabCompleter {
                 return levels.stream()
                         .filter(level -> level.startsWith(args[1]))
                         .collect(Collectors.toList());
+            } else if (subCommand.equals("storage")) {
+                return storageActions.stream()
+                        .filter(action -> action.startsWith(args[1].toLowerCase()))
+                        .collect(Collectors.toList());
+            } else if (subCommand.equals("filter")) {
+                return "reload".startsWith(args[1].toLowerCase())
+                        ? Collections.singletonList("reload") : new ArrayList<>();
             }
+        } else if (args.length == 3 && args[0].equalsIgnoreCase("storage")) {
+            // Tab complete backends for import/export
+            return storageBackends.stream()
+                    .filter(backend -> backend.startsWith(args[2].toLowerCase()))
+                    .collect(Collectors.toList());
         }
         
         return new ArrayList<>();
@@ -256,6 +223,8 @@ public class TeamCommand implements CommandExecutor, TabCompleter {
         player.sendMessage(ChatColor.YELLOW + "/team color <color>" + ChatColor.WHITE + " - Set team color");
         player.sendMessage(ChatColor.YELLOW + "/team ally <team>" + ChatColor.WHITE + " - Request alliance with another team");
         player.sendMessage(ChatColor.YELLOW + "/team setlevel <1-10>" + ChatColor.WHITE + " - Set team level (Admin only)");
+        player.sendMessage(ChatColor.YELLOW + "/team storage <export|import|stats> [backend]" + ChatColor.WHITE + " - Manage team storage (Admin only)");
+        player.sendMessage(ChatColor.YELLOW + "/team filter reload" + ChatColor.WHITE + " - Reload the word filter (Admin only)");
         player.sendMessage(ChatColor.YELLOW + "/team help" + ChatColor.WHITE + " - Show this help message");
     }
 
@@ -272,6 +241,11 @@ public class TeamCommand implements CommandExecutor, TabCompleter {
         
         String teamName = args[1];
         
+        if (!plugin.getChatFilterManager().isNameAllowed(player, teamName)) {
+            player.sendMessage(ChatColor.RED + "You can't use that team name.");
+            return;
+        }
+        
         // Check if player is already in a team
         if (teamDataManager.getPlayerTeam(player.getUniqueId()) != null) {
             player.sendMessage(ChatColor.RED + "You're already in a team. Leave it first to create a new one.");
@@ -375,7 +349,7 @@ public class TeamCommand implements CommandExecutor, TabCompleter {
         }
         
         // Remove the team
-        teamDataManager.removeTeam(team.getName());
+        teamDataManager.removeTeam(team);
         
         player.sendMessage(ChatColor.GREEN + "Team '" + team.getName() + "' has been disbanded.");
     }
@@ -428,13 +402,13 @@ public class TeamCommand implements CommandExecutor, TabCompleter {
         }
         
         // Check if target player already has an invite from this team
-        if (team.hasInvite(targetId)) {
+        if (teamDataManager.getInviteManager().hasInvite(team, targetId)) {
             player.sendMessage(ChatColor.RED + "Player '" + targetPlayer.getName() + "' already has an invite to your team.");
             return;
         }
         
         // Send invite
-        team.invitePlayer(targetId);
+        teamDataManager.getInviteManager().invite(team, targetId);
         teamDataManager.saveTeams();
         
         player.sendMessage(ChatColor.GREEN + "Invited " + targetPlayer.getName() + " to your team.");
@@ -467,14 +441,20 @@ public class TeamCommand implements CommandExecutor, TabCompleter {
             return;
         }
         
-        // Check if player has an invite
-        if (!team.hasInvite(player.getUniqueId())) {
+        // Check if player has an invite (expired ones are already gone)
+        if (!teamDataManager.getInviteManager().hasInvite(team, player.getUniqueId())) {
             player.sendMessage(ChatColor.RED + "You don't have an invite to this team.");
             return;
         }
         
         // Add player to team
-        team.addMember(player.getUniqueId());
+        if (!team.addMember(player.getUniqueId())) {
+            player.sendMessage(ChatColor.RED + "You're already in a team. Leave it first to join another one.");
+            return;
+        }
+        
+        // Any other invites are pointless now
+        teamDataManager.getInviteManager().clearPlayer(player.getUniqueId());
         teamDataManager.saveTeams();
         
         // Notify team members
@@ -696,27 +676,29 @@ public class TeamCommand implements CommandExecutor, TabCompleter {
         String pvpStatus = team.isPvpEnabled() ? "Enabled" : "Disabled";
         player.sendMessage(ChatColor.YELLOW + "PvP: " + ChatColor.WHITE + pvpStatus);
         
+        // One snapshot, so the lists and the total can't disagree
+        Team.Membership membership = team.getMembership();
+        
         // Recruiters
-        if (!team.getRecruits().isEmpty()) {
-            player.sendMessage(ChatColor.YELLOW + "Recruiters:");
-            for (UUID recruitId : team.getRecruits()) {
+        if (membership.recruitCount() > 0) {
+            player.sendMessage(ChatColor.YELLOW + "Recruiters (" + membership.recruitCount() + "):");
+            for (UUID recruitId : membership.getRecruits()) {
                 String recruitName = Bukkit.getOfflinePlayer(recruitId).getName();
                 player.sendMessage(ChatColor.WHITE + "- " + (recruitName != null ? recruitName : "Unknown"));
             }
         }
         
         // Members
-        if (!team.getMembers().isEmpty()) {
-            player.sendMessage(ChatColor.YELLOW + "Members:");
-            for (UUID memberId : team.getMembers()) {
+        if (membership.memberCount() > 0) {
+            player.sendMessage(ChatColor.YELLOW + "Members (" + membership.memberCount() + "):");
+            for (UUID memberId : membership.getMembers()) {
                 String memberName = Bukkit.getOfflinePlayer(memberId).getName();
                 player.sendMessage(ChatColor.WHITE + "- " + (memberName != null ? memberName : "Unknown"));
             }
         }
         
         // Total members
-        int totalMembers = 1 + team.getRecruits().size() + team.getMembers().size();
-        player.sendMessage(ChatColor.YELLOW + "Total Members: " + ChatColor.WHITE + totalMembers);
+        player.sendMessage(ChatColor.YELLOW + "Total Members: " + ChatColor.WHITE + membership.size());
     }
 
     private void handleList(Player player) {
@@ -736,11 +718,10 @@ public class TeamCommand implements CommandExecutor, TabCompleter {
         
         for (Team team : teams) {
             String ownerName = Bukkit.getOfflinePlayer(team.getOwner()).getName();
-            int memberCount = 1 + team.getRecruits().size() + team.getMembers().size();
             
             player.sendMessage(ChatColor.YELLOW + team.getName() + ChatColor.WHITE + 
                     " | Owner: " + (ownerName != null ? ownerName : "Unknown") + 
-                    " | Members: " + memberCount);
+                    " | Members: " + team.size());
         }
     }
 
@@ -859,7 +840,12 @@ public class TeamCommand implements CommandExecutor, TabCompleter {
         Location home = team.getHomeLocation();
         
         if (home == null) {
-            player.sendMessage(ChatColor.RED + "Your team doesn't have a home set yet.");
+            if (team.getHome() != null) {
+                player.sendMessage(ChatColor.RED + "Your team home is in " + team.getHome().getWorld()
+                        + ", which isn't loaded right now.");
+            } else {
+                player.sendMessage(ChatColor.RED + "Your team doesn't have a home set yet.");
+            }
             return;
         }
         
@@ -887,12 +873,10 @@ public class TeamCommand implements CommandExecutor, TabCompleter {
         
         UUID playerId = player.getUniqueId();
         
-        // Toggle team chat mode
-        if (teamChatToggled.contains(playerId)) {
-            teamChatToggled.remove(playerId);
+        // Toggle team chat mode - the chat listener does the actual routing
+        if (!plugin.getTeamChatManager().toggle(playerId)) {
             player.sendMessage(ChatColor.GREEN + "Team chat mode: " + ChatColor.RED + "OFF");
         } else {
-            teamChatToggled.add(playerId);
             player.sendMessage(ChatColor.GREEN + "Team chat mode: " + ChatColor.GREEN + "ON");
         }
     }
@@ -901,7 +885,7 @@ public class TeamCommand implements CommandExecutor, TabCompleter {
      * Checks if a player has team chat toggled on
      */
     public boolean hasTeamChatToggled(UUID playerId) {
-        return teamChatToggled.contains(playerId);
+        return plugin.getTeamChatManager().isToggled(playerId);
     }
     
     /**
@@ -988,44 +972,50 @@ public class TeamCommand implements CommandExecutor, TabCompleter {
             return;
         }
         
-        // Check if teams are already allied
-        if (areTeamsAllied(team.getName(), targetTeamName)) {
-            // Remove alliance
-            removeAlliance(team.getName(), targetTeamName);
-            
-            player.sendMessage(ChatColor.YELLOW + "Alliance with team '" + targetTeamName + "' has been broken.");
+        if (targetTeam == team) {
+            player.sendMessage(ChatColor.RED + "You can't ally with your own team.");
+            return;
+        }
+        
+        AllianceManager alliances = teamDataManager.getAllianceManager();
+        Player targetOwner = Bukkit.getPlayer(targetTeam.getOwner());
+        
+        // Already allied - same command breaks it
+        if (alliances.breakAlliance(team, targetTeam)) {
+            player.sendMessage(ChatColor.YELLOW + "Alliance with team '" + targetTeam.getName() + "' has been broken.");
             
             // Notify other team if owner is online
-            Player targetOwner = Bukkit.getPlayer(targetTeam.getOwner());
             if (targetOwner != null && targetOwner.isOnline()) {
                 targetOwner.sendMessage(ChatColor.YELLOW + "Team '" + team.getName() + "' has broken their alliance with your team.");
             }
-        } else {
-            // Request alliance
-            player.sendMessage(ChatColor.YELLOW + "Alliance request sent to team '" + targetTeamName + "'.");
-            
-            // Notify target team owner
-            Player targetOwner = Bukkit.getPlayer(targetTeam.getOwner());
-            if (targetOwner != null && targetOwner.isOnline()) {
-                targetOwner.sendMessage(ChatColor.YELLOW + "Team '" + team.getName() + "' wants to form an alliance with your team.");
-                targetOwner.sendMessage(ChatColor.YELLOW + "Type " + ChatColor.WHITE + "/team ally " + team.getName() + ChatColor.YELLOW + " to accept.");
-            }
-            
-            // If the target team has already requested an alliance, form it
-            if (hasAllianceRequest(targetTeamName, team.getName())) {
-                addAlliance(team.getName(), targetTeamName);
-                
-                // Notify both teams
-                player.sendMessage(ChatColor.GREEN + "Alliance formed with team '" + targetTeamName + "'!");
-                
+            teamDataManager.saveTeams();
+            return;
+        }
+        
+        switch (alliances.request(team, targetTeam)) {
+            case FORMED:
+                // The target team had already asked, so this accepts it
+                player.sendMessage(ChatColor.GREEN + "Alliance formed with team '" + targetTeam.getName() + "'!");
                 if (targetOwner != null && targetOwner.isOnline()) {
                     targetOwner.sendMessage(ChatColor.GREEN + "Alliance formed with team '" + team.getName() + "'!");
                 }
-            }
+                teamDataManager.saveTeams();
+                break;
+            case ALREADY_SENT:
+                player.sendMessage(ChatColor.YELLOW + "You've already asked team '" + targetTeam.getName() + "' for an alliance.");
+                break;
+            case SENT:
+                player.sendMessage(ChatColor.YELLOW + "Alliance request sent to team '" + targetTeam.getName() + "'.");
+                
+                // Notify target team owner
+                if (targetOwner != null && targetOwner.isOnline()) {
+                    targetOwner.sendMessage(ChatColor.YELLOW + "Team '" + team.getName() + "' wants to form an alliance with your team.");
+                    targetOwner.sendMessage(ChatColor.YELLOW + "Type " + ChatColor.WHITE + "/team ally " + team.getName() + ChatColor.YELLOW + " to accept.");
+                }
+                break;
+            default:
+                break;
         }
-        
-        // Save alliance data
-        saveTeamData();
     }
     
     /**
@@ -1080,39 +1070,79 @@ public class TeamCommand implements CommandExecutor, TabCompleter {
         }
     }
     
-    // ------------- Alliance Management -------------
-    
-    private boolean areTeamsAllied(String team1, String team2) {
-        Set<String> allies = teamAlliances.get(team1);
-        return allies != null && allies.contains(team2);
-    }
-    
-    private boolean hasAllianceRequest(String team1, String team2) {
-        Set<String> allies = teamAlliances.get(team1);
-        return allies != null && allies.contains("request:" + team2);
-    }
-    
-    private void addAlliance(String team1, String team2) {
-        // Add alliance for team1
-        teamAlliances.computeIfAbsent(team1, k -> new HashSet<>()).add(team2);
+    /**
+     * Handles /team filter reload
+     */
+    private void handleFilter(Player player, String[] args) {
+        if (!player.hasPermission("teammanager.admin.filter")) {
+            player.sendMessage(ChatColor.RED + "You don't have permission to reload the word filter.");
+            return;
+        }
         
-        // Add alliance for team2
-        teamAlliances.computeIfAbsent(team2, k -> new HashSet<>()).add(team1);
+        if (args.length < 2 || !args[1].equalsIgnoreCase("reload")) {
+            player.sendMessage(ChatColor.RED + "Usage: /team filter reload");
+            return;
+        }
         
-        // Remove any pending requests
-        teamAlliances.get(team1).remove("request:" + team2);
-        teamAlliances.get(team2).remove("request:" + team1);
+        plugin.getChatFilterManager().reload(player);
     }
     
-    private void removeAlliance(String team1, String team2) {
-        // Remove alliance for team1
-        if (teamAlliances.containsKey(team1)) {
-            teamAlliances.get(team1).remove(team2);
+    /**
+     * Handles copying teams between storage backends and showing save stats
+     */
+    private void handleStorage(Player player, String[] args) {
+        if (!player.hasPermission("teammanager.admin.storage")) {
+            player.sendMessage(ChatColor.RED + "You don't have permission to manage team storage.");
+            return;
+        }
+        
+        String action = args.length >= 2 ? args[1].toLowerCase() : "";
+        if (action.equals("stats")) {
+            player.sendMessage(ChatColor.GREEN + "Storage mode: " + ChatColor.WHITE
+                    + teamDataManager.getStorageMode().name().toLowerCase());
+            player.sendMessage(ChatColor.GRAY + teamDataManager.getSaveScheduler().getStats());
+            player.sendMessage(ChatColor.GRAY + plugin.getTeamChatManager().getTeamLimiter().getStats());
+            player.sendMessage(ChatColor.GRAY + plugin.getTeamChatManager().getAllyLimiter().getStats());
+            if (plugin.getTeamChatManager().getAuditLog() != null) {
+                player.sendMessage(ChatColor.GRAY + plugin.getTeamChatManager().getAuditLog().getStats());
+            }
+            return;
+        }
+        
+        if (args.length < 3 || (!action.equals("export") && !action.equals("import"))) {
+            player.sendMessage(ChatColor.RED + "Usage: /team storage <export|import> <yaml|sharded|sqlite>");
+            player.sendMessage(ChatColor.RED + "       /team storage stats");
+            return;
         }
         
-        // Remove alliance for team2
-        if (teamAlliances.containsKey(team2)) {
-            teamAlliances.get(team2).remove(team1);
+        String backend = args[2].toLowerCase();
+        if (!storageBackends.contains(backend)) {
+            player.sendMessage(ChatColor.RED + "Unknown storage backend. Use yaml, sharded or sqlite.");
+            return;
         }
+        StorageMode mode = StorageMode.fromConfig(backend);
+        
+        UUID playerId = player.getUniqueId();
+        CompletableFuture<Integer> result;
+        if (action.equals("export")) {
+            player.sendMessage(ChatColor.YELLOW + "Exporting teams to " + backend + "...");
+            result = teamDataManager.exportTeams(mode);
+        } else {
+            player.sendMessage(ChatColor.YELLOW + "Importing teams from " + backend + ", this replaces all current teams...");
+            result = teamDataManager.importTeams(mode);
+        }
+        
+        // Might finish on another thread, so report back on the main thread
+        result.whenComplete((count, error) -> Bukkit.getScheduler().runTask(plugin, () -> {
+            Player target = Bukkit.getPlayer(playerId);
+            if (target == null) return;
+            
+            if (error != null) {
+                target.sendMessage(ChatColor.RED + "Could not " + action + " teams: " + error.getMessage());
+            } else {
+                target.sendMessage(ChatColor.GREEN + (action.equals("export") ? "Exported " : "Imported ")
+                        + count + " teams " + (action.equals("export") ? "to " : "from ") + backend + ".");
+            }
+        }));
     }
 } 
\ No newline at end of file
@@ -1,6 +1,7 @@
 package com.darkangel.teammanager.listeners;
 
 import com.darkangel.teammanager.TeamManager;
+import com.darkangel.teammanager.managers.TeamChatManager;
 import com.darkangel.teammanager.managers.TeamDataManager;
 import com.darkangel.teammanager.models.Team;
 import org.bukkit.ChatColor;
@@ -10,6 +11,12 @@ import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.player.AsyncPlayerChatEvent;
 
+/**
+ * Sends normal chat to team chat for players with team chat toggled on,
+ * or when the message starts with the quick prefix (like "!hi team").
+ * Runs on the async chat thread - everything it touches is thread-safe,
+ * so nothing gets bounced over to the main thread.
+ */
 public class ChatListener implements Listener {
     private final TeamManager plugin;
     private final TeamDataManager teamDataManager;
@@ -19,46 +26,42 @@ public class ChatListener implements Listener {
         this.teamDataManager = plugin.getTeamDataManager();
     }
 
-    @EventHandler(priority = EventPriority.HIGHEST)
+    @EventHandler(priority = EventPriority.LOWEST, ignoreCancelled = true)
     public void onPlayerChat(AsyncPlayerChatEvent event) {
         Player player = event.getPlayer();
-        String message = event.getMessage();
+        TeamChatManager chatManager = plugin.getTeamChatManager();
         
-        // Check if message starts with "/tc " (team chat command)
-        if (message.startsWith("/tc ")) {
-            event.setCancelled(true);
-            
-            // Extract the actual message (remove the "/tc " prefix)
-            String teamChatMessage = message.substring(4).trim();
-            
-            // Check permissions
-            if (!player.hasPermission("teammanager.team.chat")) {
-                player.sendMessage(ChatColor.RED + "You don't have permission to use team chat.");
-                return;
-            }
-            
-            // Get the player's team
-            Team team = teamDataManager.getPlayerTeam(player.getUniqueId());
-            
-            if (team == null) {
-                player.sendMessage(ChatColor.RED + "You're not in a team.");
-                return;
-            }
-            
-            // Check if the message is empty
-            if (teamChatMessage.isEmpty()) {
-                player.sendMessage(ChatColor.RED + "Please provide a message. Usage: /tc <message>");
-                return;
-            }
-            
-            // Format the message
-            String formattedMessage = ChatColor.AQUA + "[Team Chat] " + 
-                    ChatColor.YELLOW + player.getName() + ChatColor.WHITE + ": " + teamChatMessage;
-            
-            // Send to all online team members
-            for (Player member : team.getOnlineMembers()) {
-                member.sendMessage(formattedMessage);
+        String teamChatMessage = chatManager.routeToTeam(player.getUniqueId(), event.getMessage());
+        if (teamChatMessage == null) {
+            return; // Normal chat
+        }
+        
+        // Get the player's team
+        Team team = teamDataManager.getPlayerTeam(player.getUniqueId());
+        if (team == null) {
+            // Left their team since toggling - turn it off and let this one through as normal chat
+            if (chatManager.isToggled(player.getUniqueId())) {
+                chatManager.untoggle(player.getUniqueId());
+                player.sendMessage(ChatColor.YELLOW + "You're not in a team anymore, team chat mode turned off.");
             }
+            return;
         }
+        
+        event.setCancelled(true);
+        
+        // Check permissions
+        if (!player.hasPermission("teammanager.team.chat")) {
+            player.sendMessage(ChatColor.RED + "You don't have permission to use team chat.");
+            return;
+        }
+        
+        // Check if the message is empty (just the prefix)
+        if (teamChatMessage.isEmpty()) {
+            player.sendMessage(ChatColor.RED + "Please provide a message. Usage: /tc <message>");
+            return;
+        }
+        
+        // Same format and delivery as /tc
+        chatManager.send(team, player, teamChatMessage);
     }
-} 
\ No newline at end of file
+}
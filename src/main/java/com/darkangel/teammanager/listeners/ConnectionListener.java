@@ -0,0 +1,58 @@
+package com.darkangel.teammanager.listeners;
+
+import com.darkangel.teammanager.TeamManager;
+import com.darkangel.teammanager.managers.MailboxManager;
+import com.darkangel.teammanager.managers.TeamDataManager;
+import com.darkangel.teammanager.models.Team;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+/**
+ * Keeps each team's online member list up to date as players join and leave,
+ * so nothing has to look every member up to find out who's online.
+ * Also starts and stops sending offline team messages.
+ */
+public class ConnectionListener implements Listener {
+    private final TeamManager plugin;
+    private final TeamDataManager teamDataManager;
+
+    public ConnectionListener(TeamManager plugin) {
+        this.plugin = plugin;
+        this.teamDataManager = plugin.getTeamDataManager();
+    }
+
+    @EventHandler(priority = EventPriority.LOWEST)
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        Player player = event.getPlayer();
+        Team team = teamDataManager.getPlayerTeam(player.getUniqueId());
+        if (team != null) {
+            team.setOnline(player);
+        }
+        
+        MailboxManager mailbox = plugin.getMailboxManager();
+        if (mailbox != null) {
+            mailbox.startDraining(player);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        Player player = event.getPlayer();
+        Team team = teamDataManager.getPlayerTeam(player.getUniqueId());
+        if (team != null) {
+            team.setOffline(player.getUniqueId());
+        }
+        
+        plugin.getTeamChatManager().forgetPlayer(player.getUniqueId());
+        
+        // Anything not sent yet stays in their mailbox for next time
+        MailboxManager mailbox = plugin.getMailboxManager();
+        if (mailbox != null) {
+            mailbox.stopDraining(player.getUniqueId());
+        }
+    }
+}
@@ -2,60 +2,181 @@ package com.darkangel.teammanager.listeners;
 
 import com.darkangel.teammanager.TeamManager;
 import com.darkangel.teammanager.managers.TeamDataManager;
+import com.darkangel.teammanager.managers.TeamRelations;
 import com.darkangel.teammanager.models.Team;
+import org.bukkit.entity.AnimalTamer;
+import org.bukkit.entity.AreaEffectCloud;
 import org.bukkit.entity.Entity;
+import org.bukkit.entity.LivingEntity;
+import org.bukkit.entity.Mob;
 import org.bukkit.entity.Player;
 import org.bukkit.entity.Projectile;
+import org.bukkit.entity.TNTPrimed;
+import org.bukkit.entity.Tameable;
+import org.bukkit.entity.ThrownPotion;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.entity.AreaEffectCloudApplyEvent;
 import org.bukkit.event.entity.EntityDamageByEntityEvent;
+import org.bukkit.event.entity.PotionSplashEvent;
+import org.bukkit.potion.PotionEffect;
+import org.bukkit.potion.PotionEffectType;
+import org.bukkit.potion.PotionType;
 import org.bukkit.projectiles.ProjectileSource;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Stops players hurting their own team (unless the team has PvP on) and,
+ * if protect-allies is on, their allies. Covers indirect damage too: arrows
+ * and other projectiles, tamed wolves, TNT someone lit, and harmful splash
+ * and lingering potions.
+ */
 public class PvPListener implements Listener {
+    // Potion effects that count as an attack when they hit a teammate
+    private static final Set<String> HARMFUL_EFFECTS = new HashSet<>(Arrays.asList(
+            "instant_damage", "poison", "wither", "weakness", "slowness", "mining_fatigue",
+            "blindness", "nausea", "hunger", "levitation", "unluck", "darkness"
+    ));
+
     private final TeamManager plugin;
     private final TeamDataManager teamDataManager;
+    private final boolean protectAllies;
 
     public PvPListener(TeamManager plugin) {
         this.plugin = plugin;
         this.teamDataManager = plugin.getTeamDataManager();
+        this.protectAllies = plugin.getConfig().getBoolean("pvp.protect-allies", true);
     }
 
-    @EventHandler
+    @EventHandler(priority = EventPriority.LOW, ignoreCancelled = true)
     public void onEntityDamage(EntityDamageByEntityEvent event) {
-        // Check if both entities are players
+        // Only care about players getting hurt
         if (!(event.getEntity() instanceof Player)) {
             return;
         }
-        
-        Player victim = (Player) event.getEntity();
-        Player attacker = null;
-        
-        // Get the attacker, handling different damage sources
-        if (event.getDamager() instanceof Player) {
-            attacker = (Player) event.getDamager();
-        } else if (event.getDamager() instanceof Projectile) {
-            Projectile projectile = (Projectile) event.getDamager();
-            ProjectileSource shooter = projectile.getShooter();
-            
-            if (shooter instanceof Player) {
-                attacker = (Player) shooter;
+
+        UUID attackerId = getAttacker(event.getDamager());
+        if (attackerId == null || !isProtected(attackerId, (Player) event.getEntity())) {
+            return;
+        }
+
+        event.setCancelled(true);
+
+        // Otherwise a wolf just keeps going for its owner's teammate
+        if (event.getDamager() instanceof Mob) {
+            ((Mob) event.getDamager()).setTarget(null);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.LOW, ignoreCancelled = true)
+    public void onPotionSplash(PotionSplashEvent event) {
+        ThrownPotion potion = event.getPotion();
+        UUID attackerId = getAttacker(potion);
+        if (attackerId == null || !isHarmful(potion.getEffects())) {
+            return;
+        }
+
+        // Protected players just don't get the effect, everyone else still does
+        for (LivingEntity entity : event.getAffectedEntities()) {
+            if (entity instanceof Player && isProtected(attackerId, (Player) entity)) {
+                event.setIntensity(entity, 0);
             }
         }
-        
-        // If attacker is not a player, return
-        if (attacker == null) {
+    }
+
+    @EventHandler(priority = EventPriority.LOW, ignoreCancelled = true)
+    public void onCloudApply(AreaEffectCloudApplyEvent event) {
+        AreaEffectCloud cloud = event.getEntity();
+        UUID attackerId = getAttacker(cloud);
+        if (attackerId == null || !isHarmful(cloud)) {
             return;
         }
-        
-        // Check if both players are in the same team
+
+        event.getAffectedEntities().removeIf(entity ->
+                entity instanceof Player && isProtected(attackerId, (Player) entity));
+    }
+
+    /**
+     * Works out which player is really behind some damage
+     * @return Their UUID, or null if it wasn't a player
+     */
+    private UUID getAttacker(Entity damager) {
+        // A few hops at most, e.g. TNT lit by a flaming arrow shot by a player
+        for (int depth = 0; damager != null && depth < 4; depth++) {
+            if (damager instanceof Player) {
+                return damager.getUniqueId();
+            }
+
+            if (damager instanceof Projectile) {
+                ProjectileSource shooter = ((Projectile) damager).getShooter();
+                damager = shooter instanceof Entity ? (Entity) shooter : null;
+            } else if (damager instanceof Tameable) {
+                Tameable pet = (Tameable) damager;
+                // Owner might be offline, the UUID is all that's needed
+                AnimalTamer owner = pet.isTamed() ? pet.getOwner() : null;
+                return owner != null ? owner.getUniqueId() : null;
+            } else if (damager instanceof TNTPrimed) {
+                damager = ((TNTPrimed) damager).getSource();
+            } else if (damager instanceof AreaEffectCloud) {
+                ProjectileSource source = ((AreaEffectCloud) damager).getSource();
+                damager = source instanceof Entity ? (Entity) source : null;
+            } else {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks if the attacker isn't allowed to hurt the victim
+     */
+    private boolean isProtected(UUID attackerId, Player victim) {
+        // Hurting yourself (own TNT, own potion) is always allowed
+        if (attackerId.equals(victim.getUniqueId())) {
+            return false;
+        }
+
+        Team attackerTeam = teamDataManager.getPlayerTeam(attackerId);
+        if (attackerTeam == null) {
+            return false;
+        }
         Team victimTeam = teamDataManager.getPlayerTeam(victim.getUniqueId());
-        Team attackerTeam = teamDataManager.getPlayerTeam(attacker.getUniqueId());
-        
-        if (victimTeam != null && attackerTeam != null && victimTeam.equals(attackerTeam)) {
-            // If they're in the same team and PvP is disabled, cancel the event
-            if (!victimTeam.isPvpEnabled()) {
-                event.setCancelled(true);
+
+        TeamRelations.Relation relation = teamDataManager.getRelations().get(attackerTeam, victimTeam);
+        switch (relation) {
+            case SAME_TEAM:
+                return !victimTeam.isPvpEnabled();
+            case ALLIED:
+                return protectAllies;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isHarmful(Collection<PotionEffect> effects) {
+        for (PotionEffect effect : effects) {
+            if (isHarmful(effect.getType())) {
+                return true;
             }
         }
+        return false;
+    }
+
+    private static boolean isHarmful(AreaEffectCloud cloud) {
+        PotionType baseType = cloud.getBasePotionType();
+        if (baseType != null && isHarmful(baseType.getEffectType())) {
+            return true;
+        }
+        return isHarmful(cloud.getCustomEffects());
+    }
+
+    private static boolean isHarmful(PotionEffectType type) {
+        return type != null && HARMFUL_EFFECTS.contains(type.getKey().getKey());
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,50 @@
+package com.darkangel.teammanager.listeners;
+
+import com.darkangel.teammanager.TeamManager;
+import com.darkangel.teammanager.managers.TeamDataManager;
+import com.darkangel.teammanager.models.Team;
+import com.darkangel.teammanager.models.TeamHome;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.world.WorldLoadEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
+
+/**
+ * Keeps team homes working with worlds that get loaded after us
+ * (multiverse and friends) or unloaded while the server is running.
+ */
+public class WorldListener implements Listener {
+    private final TeamDataManager teamDataManager;
+
+    public WorldListener(TeamManager plugin) {
+        this.teamDataManager = plugin.getTeamDataManager();
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onWorldLoad(WorldLoadEvent event) {
+        String worldName = event.getWorld().getName();
+        
+        // Resolve homes in this world now so /team home doesn't have to
+        for (Team team : teamDataManager.getAllTeams()) {
+            TeamHome home = team.getHome();
+            if (home != null && home.getWorld().equals(worldName)) {
+                team.clearResolvedHome();
+                team.getHomeLocation();
+            }
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onWorldUnload(WorldUnloadEvent event) {
+        String worldName = event.getWorld().getName();
+        
+        // Don't hang on to the old world - the home gets resolved again if it comes back
+        for (Team team : teamDataManager.getAllTeams()) {
+            TeamHome home = team.getHome();
+            if (home != null && home.getWorld().equals(worldName)) {
+                team.clearResolvedHome();
+            }
+        }
+    }
+}
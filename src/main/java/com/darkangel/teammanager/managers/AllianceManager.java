@@ -0,0 +1,330 @@
+package com.darkangel.teammanager.managers;
+
+import com.darkangel.teammanager.models.Team;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntFunction;
+
+/**
+ * Keeps track of which teams are allied and of pending alliance requests.
+ * Alliances used to be a map of team names in TeamCommand (with requests mixed in
+ * as "request:" strings) saved as one big string in config.yml. Now they're an
+ * adjacency map over team ids, saved with the teams themselves.
+ *
+ * Changes happen on the main thread. Every change publishes a read-only copy
+ * (ally ids per team, plus the pair set in TeamRelations), so PvP and chat
+ * threads can ask "are these allied" or "who are this team's allies" without
+ * locking.
+ */
+public class AllianceManager {
+
+    /**
+     * Gets told when an alliance is formed or broken (not when a team is removed), used by the save journal
+     */
+    public interface Listener {
+        void onAllianceChanged(Team team, Team ally, boolean allied);
+    }
+
+    /**
+     * What happened when a team asked another for an alliance
+     */
+    public enum RequestResult {
+        /** Request is now waiting for the other team */
+        SENT,
+        /** There's already a request waiting, nothing changed */
+        ALREADY_SENT,
+        /** The other team had asked too, so the alliance was formed */
+        FORMED,
+        ALREADY_ALLIED
+    }
+
+    private static final int[] NO_ALLIES = new int[0];
+
+    private final long requestExpiryMillis;
+    private final IntFunction<Team> teamLookup;
+    private final TeamRelations relations = new TeamRelations();
+    private Listener listener;
+
+    // Team id -> allied team ids, always both ways round. Main thread only
+    private final Map<Integer, Set<Integer>> allies = new HashMap<>();
+
+    // Pending requests, keyed by (from, to) - unlike alliances these have a direction
+    private final Map<Long, Request> requests = new HashMap<>();
+
+    // Read-only copy of allies for other threads. Replaced as a whole, never changed
+    private volatile Map<Integer, int[]> published = Collections.emptyMap();
+    // Goes up every time a new copy is published, so caches know to rebuild
+    private volatile int version;
+
+    /**
+     * @param requestExpiryMillis How long a request waits for an answer, 0 or less means forever
+     * @param teamLookup Finds a loaded team by id, null if it's gone
+     */
+    public AllianceManager(long requestExpiryMillis, IntFunction<Team> teamLookup) {
+        this.requestExpiryMillis = requestExpiryMillis;
+        this.teamLookup = teamLookup;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Asks for an alliance from one team to another. If the other team already
+     * asked for one, the alliance is formed straight away.
+     */
+    public RequestResult request(Team from, Team to) {
+        if (isAllied(from.getId(), to.getId())) {
+            return RequestResult.ALREADY_ALLIED;
+        }
+        sweep();
+
+        if (requests.remove(requestKey(to.getId(), from.getId())) != null) {
+            requests.remove(requestKey(from.getId(), to.getId()));
+            link(from.getId(), to.getId());
+            publish();
+            if (listener != null) {
+                listener.onAllianceChanged(from, to, true);
+            }
+            return RequestResult.FORMED;
+        }
+
+        long key = requestKey(from.getId(), to.getId());
+        if (requests.containsKey(key)) {
+            return RequestResult.ALREADY_SENT;
+        }
+        long now = System.currentTimeMillis();
+        requests.put(key, new Request(from, to, now,
+                requestExpiryMillis > 0 ? now + requestExpiryMillis : Long.MAX_VALUE));
+        return RequestResult.SENT;
+    }
+
+    /**
+     * Gets a pending (non-expired) request from one team to another
+     * @return The request, or null if there isn't one
+     */
+    public Request getRequest(Team from, Team to) {
+        sweep();
+        return requests.get(requestKey(from.getId(), to.getId()));
+    }
+
+    /**
+     * Breaks an alliance
+     * @return true if the teams were allied
+     */
+    public boolean breakAlliance(Team team, Team ally) {
+        if (!unlink(team.getId(), ally.getId())) {
+            return false;
+        }
+        publish();
+        if (listener != null) {
+            listener.onAllianceChanged(team, ally, false);
+        }
+        return true;
+    }
+
+    /**
+     * Puts back an alliance loaded from disk. Doesn't tell the listener or
+     * publish, call publish() once everything is loaded
+     */
+    public void restore(Team team, Team ally) {
+        if (team != ally) {
+            link(team.getId(), ally.getId());
+        }
+    }
+
+    /**
+     * Drops a team's alliances and requests (team got disbanded)
+     * @return The teams it was allied with, they need saving too
+     */
+    public List<Team> clearTeam(Team team) {
+        int id = team.getId();
+        requests.values().removeIf(request -> request.getFrom() == team || request.getTo() == team);
+
+        Set<Integer> allyIds = allies.remove(id);
+        if (allyIds == null) {
+            return Collections.emptyList();
+        }
+
+        List<Team> former = new ArrayList<>(allyIds.size());
+        for (int allyId : allyIds) {
+            Set<Integer> back = allies.get(allyId);
+            if (back != null) {
+                back.remove(id);
+                if (back.isEmpty()) {
+                    allies.remove(allyId);
+                }
+            }
+            Team ally = teamLookup.apply(allyId);
+            if (ally != null) {
+                former.add(ally);
+            }
+        }
+        publish();
+        return former;
+    }
+
+    public void clear() {
+        allies.clear();
+        requests.clear();
+        publish();
+    }
+
+    /**
+     * Checks if two teams are allied. Safe to call from any thread
+     */
+    public boolean areAllied(Team first, Team second) {
+        return relations.areAllied(first.getId(), second.getId());
+    }
+
+    /**
+     * Gets the ids of a team's allies. Safe to call from any thread, and what gets saved
+     * @return Don't change the array, it's shared
+     */
+    public int[] getAllyIds(int teamId) {
+        int[] ids = published.get(teamId);
+        return ids != null ? ids : NO_ALLIES;
+    }
+
+    /**
+     * @return Goes up every time alliances change. Safe to call from any thread
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Gets the pair set used for PvP checks
+     */
+    public TeamRelations getRelations() {
+        return relations;
+    }
+
+    /**
+     * Copies the alliances into the read-only lookups other threads use
+     */
+    public void publish() {
+        Map<Integer, int[]> copy = new HashMap<>(allies.size() * 2);
+        int[] pairs = new int[countPairs() * 2];
+        int next = 0;
+        for (Map.Entry<Integer, Set<Integer>> entry : allies.entrySet()) {
+            int id = entry.getKey();
+            int[] ids = new int[entry.getValue().size()];
+            int i = 0;
+            for (int allyId : entry.getValue()) {
+                ids[i++] = allyId;
+                // Each pair is in the map twice, only hand it over once
+                if (id < allyId) {
+                    pairs[next++] = id;
+                    pairs[next++] = allyId;
+                }
+            }
+            copy.put(id, ids);
+        }
+
+        relations.setAlliances(pairs);
+        published = copy;
+        version++;
+    }
+
+    /**
+     * Removes expired requests
+     */
+    public void sweep() {
+        if (requests.isEmpty()) return;
+
+        long now = System.currentTimeMillis();
+        Iterator<Request> it = requests.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().getExpiresAt() <= now) {
+                it.remove();
+            }
+        }
+    }
+
+    private boolean isAllied(int first, int second) {
+        Set<Integer> allyIds = allies.get(first);
+        return allyIds != null && allyIds.contains(second);
+    }
+
+    private void link(int first, int second) {
+        allies.computeIfAbsent(first, k -> new HashSet<>()).add(second);
+        allies.computeIfAbsent(second, k -> new HashSet<>()).add(first);
+    }
+
+    private boolean unlink(int first, int second) {
+        Set<Integer> firstAllies = allies.get(first);
+        if (firstAllies == null || !firstAllies.remove(second)) {
+            return false;
+        }
+        if (firstAllies.isEmpty()) {
+            allies.remove(first);
+        }
+
+        Set<Integer> secondAllies = allies.get(second);
+        if (secondAllies != null) {
+            secondAllies.remove(first);
+            if (secondAllies.isEmpty()) {
+                allies.remove(second);
+            }
+        }
+        return true;
+    }
+
+    private int countPairs() {
+        int count = 0;
+        for (Map.Entry<Integer, Set<Integer>> entry : allies.entrySet()) {
+            for (int allyId : entry.getValue()) {
+                if (entry.getKey() < allyId) count++;
+            }
+        }
+        return count;
+    }
+
+    private static long requestKey(int from, int to) {
+        return ((long) from << 32) | (to & 0xFFFFFFFFL);
+    }
+
+    /**
+     * A single pending alliance request
+     */
+    public static final class Request {
+        private final Team from;
+        private final Team to;
+        private final long createdAt;
+        private final long expiresAt;
+
+        Request(Team from, Team to, long createdAt, long expiresAt) {
+            this.from = from;
+            this.to = to;
+            this.createdAt = createdAt;
+            this.expiresAt = expiresAt;
+        }
+
+        public Team getFrom() {
+            return from;
+        }
+
+        public Team getTo() {
+            return to;
+        }
+
+        public long getCreatedAt() {
+            return createdAt;
+        }
+
+        /**
+         * @return Expiry time in epoch millis, Long.MAX_VALUE if it never expires
+         */
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.darkangel.teammanager.managers;
+
+import com.darkangel.teammanager.models.Team;
+import org.bukkit.entity.Player;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Who gets a team's ally chat: everyone online in the team and its allied teams.
+ *
+ * Worked out once and reused until something it depends on changes - the
+ * alliances, or who's online in any of the teams involved (each team has an
+ * online version that goes up when someone joins or leaves). Checking that an
+ * entry is still good is a version compare per team, no alliance strings or
+ * member sets get walked per message.
+ *
+ * Read from the chat thread, alliances come from the AllianceManager's published copy.
+ */
+public class AllyRecipientCache {
+    private final TeamDataManager teamDataManager;
+    private final AllianceManager alliances;
+
+    // Goes up when a team is removed
+    private volatile int structureVersion;
+
+    // Team id -> recipients
+    private final Map<Integer, Entry> cache = new ConcurrentHashMap<>();
+
+    private static final class Entry {
+        final int structureVersion;
+        final int allianceVersion;
+        final Team[] teams;
+        final int[] onlineVersions;
+        final List<Player> recipients;
+
+        Entry(int structureVersion, int allianceVersion, Team[] teams, int[] onlineVersions,
+              List<Player> recipients) {
+            this.structureVersion = structureVersion;
+            this.allianceVersion = allianceVersion;
+            this.teams = teams;
+            this.onlineVersions = onlineVersions;
+            this.recipients = recipients;
+        }
+    }
+
+    public AllyRecipientCache(TeamDataManager teamDataManager) {
+        this.teamDataManager = teamDataManager;
+        this.alliances = teamDataManager.getAllianceManager();
+    }
+
+    /**
+     * Throws away every cached recipient list, e.g. after a team is removed
+     */
+    public void invalidateAll() {
+        structureVersion++;
+        cache.clear();
+    }
+
+    /**
+     * Gets everyone who should see a team's ally chat
+     * @return Read-only list of online players in the team and its allies
+     */
+    public List<Player> getRecipients(Team team) {
+        Entry entry = cache.get(team.getId());
+        if (entry != null && isCurrent(entry)) {
+            return entry.recipients;
+        }
+
+        entry = build(team);
+        cache.put(team.getId(), entry);
+        return entry.recipients;
+    }
+
+    private boolean isCurrent(Entry entry) {
+        if (entry.structureVersion != structureVersion || entry.allianceVersion != alliances.getVersion()) {
+            return false;
+        }
+        for (int i = 0; i < entry.teams.length; i++) {
+            if (entry.teams[i].getOnlineVersion() != entry.onlineVersions[i]) return false;
+        }
+        return true;
+    }
+
+    private Entry build(Team team) {
+        // Versions are read before the members, so a change while building makes the entry stale rather than wrong
+        int structure = structureVersion;
+        int allianceVersion = alliances.getVersion();
+        List<Team> teams = new ArrayList<>();
+        teams.add(team);
+        for (int allyId : alliances.getAllyIds(team.getId())) {
+            Team ally = teamDataManager.getTeam(allyId);
+            if (ally != null && ally != team) {
+                teams.add(ally);
+            }
+        }
+
+        Team[] teamArray = teams.toArray(new Team[0]);
+        int[] versions = new int[teamArray.length];
+        for (int i = 0; i < teamArray.length; i++) {
+            versions[i] = teamArray[i].getOnlineVersion();
+        }
+
+        List<Player> recipients = new ArrayList<>();
+        for (Team member : teamArray) {
+            recipients.addAll(member.getOnlineMembers());
+        }
+        return new Entry(structure, allianceVersion, teamArray, versions, Collections.unmodifiableList(recipients));
+    }
+}
@@ -0,0 +1,148 @@
+package com.darkangel.teammanager.managers;
+
+import com.darkangel.teammanager.TeamManager;
+import org.bukkit.Bukkit;
+import org.bukkit.ChatColor;
+import org.bukkit.command.CommandSender;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Level;
+
+/**
+ * Word filter for team chat, ally chat and team names.
+ * Terms come from the chat-filter section of the config plus an optional word
+ * file (one "action:term" per line, for big lists). The compiled filter is
+ * swapped in as a whole, so a reload never leaves chat with half a list.
+ */
+public class ChatFilterManager {
+    private final TeamManager plugin;
+    private volatile WordFilter filter = WordFilter.EMPTY;
+
+    public ChatFilterManager(TeamManager plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Builds the filter from the config - runs on the calling thread, used on startup
+     */
+    public void load() {
+        filter = build(plugin.getConfig().getConfigurationSection("chat-filter"));
+        if (filter.size() > 0) {
+            plugin.getLogger().info("Loaded " + filter.size() + " filtered words");
+        }
+    }
+
+    /**
+     * Re-reads config.yml and the word file and swaps the new filter in, built off the main thread
+     * @param sender Told when it's done
+     */
+    public void reload(CommandSender sender) {
+        // Read the config here, the YAML objects aren't meant to be shared across threads
+        ConfigurationSection section = YamlConfiguration.loadConfiguration(
+                new File(plugin.getDataFolder(), "config.yml")).getConfigurationSection("chat-filter");
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+            WordFilter built = build(section);
+            filter = built;
+            Bukkit.getScheduler().runTask(plugin, () ->
+                    sender.sendMessage(ChatColor.GREEN + "Word filter reloaded, " + built.size() + " words."));
+        });
+    }
+
+    private WordFilter build(ConfigurationSection section) {
+        if (section == null || !section.getBoolean("enabled", true)) {
+            return WordFilter.EMPTY;
+        }
+
+        WordFilter.Builder builder = new WordFilter.Builder();
+        for (WordFilter.Action action : WordFilter.Action.values()) {
+            if (action == WordFilter.Action.NONE) continue;
+            for (String term : section.getStringList(action.name().toLowerCase(Locale.ROOT))) {
+                builder.add(term, action);
+            }
+        }
+
+        String fileName = section.getString("file", "");
+        if (!fileName.isEmpty()) {
+            File file = new File(plugin.getDataFolder(), fileName);
+            if (file.isFile()) {
+                readWordFile(file, builder);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Reads "action:term" lines, a line without an action blocks, # starts a comment
+     */
+    private void readWordFile(File file, WordFilter.Builder builder) {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Could not read word filter file " + file.getName(), e);
+            return;
+        }
+
+        for (String line : lines) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+
+            WordFilter.Action action = WordFilter.Action.BLOCK;
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                try {
+                    action = WordFilter.Action.valueOf(line.substring(0, colon).trim().toUpperCase(Locale.ROOT));
+                    line = line.substring(colon + 1).trim();
+                } catch (IllegalArgumentException e) {
+                    // Not an action, the colon is part of the term
+                }
+            }
+            builder.add(line, action);
+        }
+    }
+
+    /**
+     * Runs a chat message through the filter. Safe to call from any thread
+     * @param type "Team" or "Ally", for the log
+     * @return The message to send (maybe masked), or null if it's blocked
+     */
+    public String filterChat(Player player, String type, String message) {
+        WordFilter.Result result = filter.check(message);
+        switch (result.getAction()) {
+            case BLOCK:
+                player.sendMessage(ChatColor.RED + "Your message wasn't sent, it contains a blocked word.");
+                logMatch(player, type + " chat (blocked)", result);
+                return null;
+            case MASK:
+            case LOG:
+                logMatch(player, type + " chat", result);
+                return result.getText();
+            default:
+                return message;
+        }
+    }
+
+    /**
+     * Checks a team name - anything masked or blocked isn't allowed as a name
+     * @return true if the name can be used
+     */
+    public boolean isNameAllowed(Player player, String name) {
+        WordFilter.Result result = filter.check(name);
+        if (result.getAction() == WordFilter.Action.NONE) return true;
+
+        logMatch(player, "team name '" + name + "'", result);
+        return result.getAction() == WordFilter.Action.LOG;
+    }
+
+    private void logMatch(Player player, String where, WordFilter.Result result) {
+        plugin.getLogger().info("Filter: " + player.getName() + " used " + result.getMatches() + " in " + where);
+    }
+}
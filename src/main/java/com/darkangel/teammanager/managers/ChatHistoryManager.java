@@ -0,0 +1,148 @@
+package com.darkangel.teammanager.managers;
+
+import com.darkangel.teammanager.TeamManager;
+import com.darkangel.teammanager.models.Team;
+import com.darkangel.teammanager.models.TeamMail;
+import com.darkangel.teammanager.storage.ChatHistoryFile;
+import com.darkangel.teammanager.storage.FolderTeamStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+
+/**
+ * Keeps the last messages of each team's chat for /tc history.
+ * Each team gets its own file in chat-history/ (team.<id>.dat), named by id so a new
+ * team with an old team's name starts fresh. Files are opened the first time
+ * they're needed and only the most recently used ones stay mapped.
+ * Written from the chat thread and read from commands, so everything's synchronized.
+ */
+public class ChatHistoryManager {
+    // How many histories stay mapped at once, the rest get reopened when they're used again
+    private static final int MAX_OPEN = 64;
+
+    private final TeamManager plugin;
+    private final File folder;
+    private final int capacity;
+
+    // Team id -> its history, least recently used first. null value = couldn't be opened
+    private final Map<Integer, ChatHistoryFile> histories = new LinkedHashMap<Integer, ChatHistoryFile>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, ChatHistoryFile> eldest) {
+            if (size() <= MAX_OPEN) {
+                return false;
+            }
+            // Nothing else holds on to it, the mapping goes once it's collected
+            if (eldest.getValue() != null) {
+                eldest.getValue().force();
+            }
+            return true;
+        }
+    };
+
+    // Disbanded teams. Chat for them can still be queued on the chat thread and mustn't
+    // bring the file back. Weak, so a team is forgotten once nothing can send for it any more
+    private final Set<Team> deleted = Collections.newSetFromMap(new WeakHashMap<>());
+
+    public ChatHistoryManager(TeamManager plugin) {
+        this.plugin = plugin;
+        this.folder = new File(plugin.getDataFolder(), "chat-history");
+        this.capacity = Math.max(10, plugin.getConfig().getInt("chat.history-size", 200));
+    }
+
+    /**
+     * @return The team's history, or null if it's been deleted or couldn't be opened
+     */
+    private ChatHistoryFile get(Team team) {
+        if (deleted.contains(team)) {
+            return null;
+        }
+        Integer key = team.getId();
+        if (histories.containsKey(key)) {
+            return histories.get(key);
+        }
+
+        ChatHistoryFile history = null;
+        try {
+            history = ChatHistoryFile.open(fileFor(team), team.getId(), team.getName(), capacity);
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Could not open chat history for team " + team.getName(), e);
+        }
+        histories.put(key, history);
+        return history;
+    }
+
+    private File fileFor(Team team) {
+        // The '.' keeps these apart from old files, safeFileName never makes one
+        File file = new File(folder, "team." + team.getId() + ".dat");
+        // Histories used to be named after the team, take one of those over if it's there
+        File byName = new File(folder, FolderTeamStore.safeFileName(team.getName()) + ".dat");
+        if (!file.exists() && byName.exists() && !byName.renameTo(file)) {
+            plugin.getLogger().warning("Could not rename " + byName.getName() + " to " + file.getName());
+        }
+        return file;
+    }
+
+    /**
+     * Adds a message to a team's history
+     */
+    public synchronized void record(Team team, long sentAt, String senderName, String message) {
+        ChatHistoryFile history = get(team);
+        if (history != null) {
+            history.add(sentAt, senderName, message);
+        }
+    }
+
+    /**
+     * Gets one page of a team's history, newest first
+     * @param page Page number, starting at 1
+     */
+    public synchronized List<TeamMail> getPage(Team team, int page, int pageSize) {
+        ChatHistoryFile history = get(team);
+        if (history == null) return new ArrayList<>();
+        return history.read((page - 1) * pageSize, pageSize);
+    }
+
+    /**
+     * @return How many messages of a team's history can be read back
+     */
+    public synchronized int size(Team team) {
+        ChatHistoryFile history = get(team);
+        return history != null ? history.size() : 0;
+    }
+
+    /**
+     * Throws a team's history away when it's disbanded
+     */
+    public synchronized void delete(Team team) {
+        deleted.add(team);
+        ChatHistoryFile history = histories.remove(team.getId());
+        File file = history != null ? history.getFile() : fileFor(team);
+        if (file.exists() && !file.delete()) {
+            // Can happen on Windows while it's still mapped, so at least empty it
+            if (history != null) {
+                history.clear();
+            }
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Flushes every open history to disk - call from onDisable
+     */
+    public synchronized void shutdown() {
+        for (ChatHistoryFile history : histories.values()) {
+            if (history != null) {
+                history.force();
+            }
+        }
+        histories.clear();
+    }
+}
@@ -0,0 +1,132 @@
+package com.darkangel.teammanager.managers;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket per player for one chat channel. Each message takes a token,
+ * tokens come back at a fixed rate, and a player can save up to "burst" of
+ * them. Checked before a message is formatted or fanned out, so a spammer
+ * costs one map lookup per message instead of a send to every teammate.
+ *
+ * Doesn't allocate after a player's first message - the bucket is reused and
+ * tokens are kept as a fixed-point long. Buckets outlive a quit until they've
+ * refilled, so rejoining doesn't hand a spammer a fresh burst.
+ */
+public class ChatRateLimiter {
+    // Tokens are stored in thousandths so refilling doesn't need doubles
+    private static final long SCALE = 1000;
+
+    private final String channel;
+    private final long burst; // scaled
+    private final long nanosPerToken; // how long one whole token takes to come back
+    private final long nanosToFill; // how long an empty bucket takes to be full again
+
+    private final Map<UUID, Bucket> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong allowed = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+
+    private static final class Bucket {
+        long tokens;
+        long lastRefill;
+
+        Bucket(long tokens, long now) {
+            this.tokens = tokens;
+            this.lastRefill = now;
+        }
+    }
+
+    /**
+     * @param channel Name used in stats, e.g. "team"
+     * @param burst Messages a player can send in a row
+     * @param perSecond Messages a player can keep sending per second after that
+     */
+    public ChatRateLimiter(String channel, int burst, double perSecond) {
+        this.channel = channel;
+        this.burst = Math.max(1, burst) * SCALE;
+        this.nanosPerToken = (long) (1_000_000_000L / Math.max(0.001, perSecond));
+        this.nanosToFill = nanosPerToken * (this.burst / SCALE);
+    }
+
+    /**
+     * Reads burst and per-second from a config section like chat.rate-limit.team
+     */
+    public static ChatRateLimiter fromConfig(String channel, ConfigurationSection section) {
+        int burst = section != null ? section.getInt("burst", 5) : 5;
+        double perSecond = section != null ? section.getDouble("per-second", 1.0) : 1.0;
+        return new ChatRateLimiter(channel, burst, perSecond);
+    }
+
+    /**
+     * Takes a token if the player has one
+     * @return false if they're sending too fast and the message should be dropped
+     */
+    public boolean tryAcquire(UUID playerId) {
+        long now = System.nanoTime();
+        Bucket bucket = buckets.get(playerId);
+        if (bucket == null) {
+            // First message: full bucket minus this one
+            Bucket existing = buckets.putIfAbsent(playerId, new Bucket(burst - SCALE, now));
+            if (existing == null) {
+                allowed.incrementAndGet();
+                return true;
+            }
+            bucket = existing;
+        }
+
+        synchronized (bucket) {
+            long elapsed = now - bucket.lastRefill;
+            if (elapsed >= nanosToFill) {
+                // Been quiet long enough to be full again (also keeps the maths below from overflowing)
+                bucket.tokens = burst;
+                bucket.lastRefill = now;
+            } else if (elapsed > 0) {
+                long refill = elapsed * SCALE / nanosPerToken;
+                if (refill > 0) {
+                    bucket.tokens = Math.min(burst, bucket.tokens + refill);
+                    // Keep the leftover time so slow refill rates still add up
+                    bucket.lastRefill += refill * nanosPerToken / SCALE;
+                }
+            }
+
+            if (bucket.tokens >= SCALE) {
+                bucket.tokens -= SCALE;
+                allowed.incrementAndGet();
+                return true;
+            }
+        }
+        throttled.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Drops buckets that have refilled since their last message - a new one
+     * would start full anyway. Buckets that haven't stay, even if the player
+     * quit, so rejoining doesn't reset the limit. Call when a player quits.
+     */
+    public void evictIdle() {
+        long now = System.nanoTime();
+        buckets.values().removeIf(bucket -> {
+            synchronized (bucket) {
+                // A bucket that would be full now is the same as not having one
+                return now - bucket.lastRefill >= nanosToFill;
+            }
+        });
+    }
+
+    public long getAllowed() {
+        return allowed.get();
+    }
+
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    public String getStats() {
+        return String.format("%s chat: %d allowed, %d throttled", channel, getAllowed(), getThrottled());
+    }
+}
@@ -0,0 +1,266 @@
+package com.darkangel.teammanager.managers;
+
+import com.darkangel.teammanager.models.Team;
+import com.darkangel.teammanager.util.UuidMap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+
+/**
+ * Keeps track of pending team invites, looked up by the invited player.
+ * Invites used to live in each Team and never went away, so finding a player's
+ * invites meant checking every team. Now each invite has an expiry time and
+ * expired ones get swept out of a deadline queue.
+ */
+public class InviteManager {
+
+    /**
+     * Gets told about invites being sent or withdrawn (not expiring), used by the save journal
+     */
+    public interface Listener {
+        void onInvited(Invite invite);
+
+        void onInviteRemoved(Team team, UUID playerId);
+    }
+
+    private final long expiryMillis;
+    private Listener listener;
+
+    // Invited player -> (team -> invite), so /team join is a direct lookup.
+    // Keyed by UUIDs stored as longs, see UuidMap
+    private final UuidMap<Map<Team, Invite>> invitesByPlayer = new UuidMap<>();
+
+    // Team -> invites it has sent, needed for saving and for disbanding
+    private final Map<Team, Map<UUID, Invite>> invitesByTeam = new HashMap<>();
+
+    // Soonest expiry first. Entries for invites that were already used or removed
+    // are left in here and just skipped when they come up
+    private final PriorityQueue<Invite> deadlines = new PriorityQueue<>(
+            (a, b) -> Long.compare(a.getExpiresAt(), b.getExpiresAt()));
+    private int liveInvites;
+
+    /**
+     * @param expiryMillis How long an invite stays valid, 0 or less means forever
+     */
+    public InviteManager(long expiryMillis) {
+        this.expiryMillis = expiryMillis;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Invites a player to a team, replacing any older invite from the same team
+     * @return The new invite
+     */
+    public Invite invite(Team team, UUID playerId) {
+        long now = System.currentTimeMillis();
+        long expiresAt = expiryMillis > 0 ? now + expiryMillis : Long.MAX_VALUE;
+        Invite invite = restore(team, playerId, expiresAt);
+        if (invite != null && listener != null) {
+            listener.onInvited(invite);
+        }
+        return invite;
+    }
+
+    /**
+     * Puts back an invite loaded from disk, keeping its original expiry
+     * @return The invite, or null if it has already expired
+     */
+    public Invite restore(Team team, UUID playerId, long expiresAt) {
+        sweep();
+        if (expiresAt <= System.currentTimeMillis()) {
+            return null;
+        }
+
+        Invite invite = new Invite(team, playerId, expiresAt);
+        invitesByPlayer.computeIfAbsent(playerId, k -> new HashMap<>()).put(team, invite);
+        if (invitesByTeam.computeIfAbsent(team, k -> new LinkedHashMap<>()).put(playerId, invite) == null) {
+            liveInvites++;
+        }
+        if (expiresAt != Long.MAX_VALUE) {
+            deadlines.add(invite);
+        }
+        return invite;
+    }
+
+    /**
+     * Checks if a player has a (non-expired) invite from a team
+     */
+    public boolean hasInvite(Team team, UUID playerId) {
+        sweep();
+        Map<Team, Invite> invites = invitesByPlayer.get(playerId);
+        return invites != null && invites.containsKey(team);
+    }
+
+    /**
+     * Gets every team that has a pending invite out to this player
+     */
+    public List<Team> getInvites(UUID playerId) {
+        sweep();
+        Map<Team, Invite> invites = invitesByPlayer.get(playerId);
+        if (invites == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(invites.keySet());
+    }
+
+    /**
+     * Gets the pending invites a team has sent, in the order they were sent
+     */
+    public Collection<Invite> getTeamInvites(Team team) {
+        sweep();
+        Map<UUID, Invite> invites = invitesByTeam.get(team);
+        if (invites == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableCollection(invites.values());
+    }
+
+    /**
+     * Withdraws a single invite
+     */
+    public void removeInvite(Team team, UUID playerId) {
+        if (remove(team, playerId) && listener != null) {
+            listener.onInviteRemoved(team, playerId);
+        }
+    }
+
+    private boolean remove(Team team, UUID playerId) {
+        Map<Team, Invite> byTeam = invitesByPlayer.get(playerId);
+        if (byTeam != null && byTeam.remove(team) != null) {
+            if (byTeam.isEmpty()) {
+                invitesByPlayer.remove(playerId);
+            }
+            removeFromTeam(team, playerId);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Drops every invite a player has (they just joined a team)
+     */
+    public void clearPlayer(UUID playerId) {
+        Map<Team, Invite> invites = invitesByPlayer.remove(playerId);
+        if (invites == null) return;
+
+        for (Team team : invites.keySet()) {
+            removeFromTeam(team, playerId);
+            if (listener != null) {
+                listener.onInviteRemoved(team, playerId);
+            }
+        }
+    }
+
+    /**
+     * Drops every invite a team has sent out (team got disbanded)
+     */
+    public void clearTeam(Team team) {
+        Map<UUID, Invite> invites = invitesByTeam.remove(team);
+        if (invites == null) return;
+
+        liveInvites -= invites.size();
+        for (UUID playerId : invites.keySet()) {
+            Map<Team, Invite> byTeam = invitesByPlayer.get(playerId);
+            if (byTeam != null) {
+                byTeam.remove(team);
+                if (byTeam.isEmpty()) {
+                    invitesByPlayer.remove(playerId);
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        invitesByPlayer.clear();
+        invitesByTeam.clear();
+        deadlines.clear();
+        liveInvites = 0;
+    }
+
+    /**
+     * Removes expired invites. Only looks at the front of the queue, so this is
+     * cheap to call before every lookup.
+     */
+    public void sweep() {
+        long now = System.currentTimeMillis();
+        Invite next;
+        while ((next = deadlines.peek()) != null && next.getExpiresAt() <= now) {
+            deadlines.poll();
+
+            // Only remove it if it's still the live invite (not replaced or already used)
+            Map<Team, Invite> byTeam = invitesByPlayer.get(next.getPlayerId());
+            if (byTeam != null && byTeam.get(next.getTeam()) == next) {
+                remove(next.getTeam(), next.getPlayerId());
+            }
+        }
+
+        // Stale entries pile up if invites keep getting used before they expire
+        if (deadlines.size() > 64 && deadlines.size() > 2 * liveInvites) {
+            compactDeadlines();
+        }
+    }
+
+    private void compactDeadlines() {
+        Iterator<Invite> it = deadlines.iterator();
+        while (it.hasNext()) {
+            Invite invite = it.next();
+            Map<Team, Invite> byTeam = invitesByPlayer.get(invite.getPlayerId());
+            if (byTeam == null || byTeam.get(invite.getTeam()) != invite) {
+                it.remove();
+            }
+        }
+    }
+
+    private void removeFromTeam(Team team, UUID playerId) {
+        Map<UUID, Invite> invites = invitesByTeam.get(team);
+        if (invites != null) {
+            if (invites.remove(playerId) != null) {
+                liveInvites--;
+            }
+            if (invites.isEmpty()) {
+                invitesByTeam.remove(team);
+            }
+        }
+    }
+
+    /**
+     * A single pending invite
+     */
+    public static final class Invite {
+        private final Team team;
+        private final UUID playerId;
+        private final long expiresAt;
+
+        Invite(Team team, UUID playerId, long expiresAt) {
+            this.team = team;
+            this.playerId = playerId;
+            this.expiresAt = expiresAt;
+        }
+
+        public Team getTeam() {
+            return team;
+        }
+
+        public UUID getPlayerId() {
+            return playerId;
+        }
+
+        /**
+         * @return Expiry time in epoch millis, Long.MAX_VALUE if it never expires
+         */
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+    }
+}
@@ -0,0 +1,413 @@
+package com.darkangel.teammanager.managers;
+
+import com.darkangel.teammanager.TeamManager;
+import com.darkangel.teammanager.models.Team;
+import com.darkangel.teammanager.models.TeamMail;
+import com.darkangel.teammanager.storage.MailboxLog;
+import com.darkangel.teammanager.storage.TeamSnapshot;
+import org.bukkit.Bukkit;
+import org.bukkit.ChatColor;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.logging.Level;
+
+/**
+ * Keeps team chat for members who are offline and sends it when they come back.
+ *
+ * Every player gets a fixed-size ring buffer (the oldest mail gets dropped when
+ * it's full). On top of that each team can only have so many messages waiting,
+ * and mail older than the max age is dropped. Mail is sent a few messages at a
+ * time after joining, so coming back to hundreds of messages doesn't flood the
+ * login.
+ *
+ * Queuing happens on the chat thread, draining on the main thread - everything
+ * touching the mailboxes is synchronized on this.
+ */
+public class MailboxManager {
+    // How big mail.log can get before it's rewritten with just the unread mail
+    private static final long COMPACT_BYTES = 4L * 1024 * 1024;
+
+    private final TeamManager plugin;
+    private final MailboxLog log;
+    private final int maxPerPlayer;
+    private final int maxPerTeam;
+    private final long maxAgeMillis;
+    private final int drainBatch;
+    private final long drainIntervalTicks;
+
+    private final Map<UUID, Mailbox> mailboxes = new HashMap<>();
+    // Floor for a disbanded team - all its mail is dropped, and nothing new is queued for it
+    private static final long DISBANDED = Long.MAX_VALUE;
+
+    // Waiting messages per team id, oldest first, for the per-team cap
+    private final Map<Integer, ArrayDeque<TeamMail>> teamMail = new HashMap<>();
+    // Team mail with an id up to this has been dropped by the team cap or age, see DISBANDED.
+    // Team ids are never reused, so a new team with an old name starts clean
+    private final Map<Integer, Long> teamFloor = new HashMap<>();
+    private long nextId = 1;
+    private long droppedMail;
+
+    // Main thread only
+    private final Map<UUID, BukkitTask> drainTasks = new HashMap<>();
+    private BukkitTask sweepTask;
+
+    public MailboxManager(TeamManager plugin) {
+        this.plugin = plugin;
+        ConfigurationSection config = plugin.getConfig().getConfigurationSection("chat.offline-messages");
+        this.maxPerPlayer = Math.max(1, config != null ? config.getInt("max-per-player", 100) : 100);
+        this.maxPerTeam = Math.max(1, config != null ? config.getInt("max-per-team", 500) : 500);
+        this.maxAgeMillis = Math.max(1, config != null ? config.getLong("max-age-hours", 72) : 72) * 3600_000L;
+        this.drainBatch = Math.max(1, config != null ? config.getInt("drain-batch", 5) : 5);
+        this.drainIntervalTicks = Math.max(1, config != null ? config.getLong("drain-interval-ticks", 10) : 10);
+        this.log = new MailboxLog(new File(plugin.getDataFolder(), "mail.log"), plugin.getLogger());
+    }
+
+    /**
+     * A player's waiting mail, oldest first. Fixed size, full means the oldest gets overwritten.
+     */
+    private static final class Mailbox {
+        private final TeamMail[] ring;
+        private int head;
+        private int size;
+
+        Mailbox(int capacity) {
+            this.ring = new TeamMail[capacity];
+        }
+
+        /**
+         * @return true if the oldest mail had to be dropped to make room
+         */
+        boolean add(TeamMail mail) {
+            if (size == ring.length) {
+                ring[head] = mail;
+                head = (head + 1) % ring.length;
+                return true;
+            }
+            ring[(head + size) % ring.length] = mail;
+            size++;
+            return false;
+        }
+
+        TeamMail peek() {
+            return size == 0 ? null : ring[head];
+        }
+
+        TeamMail poll() {
+            if (size == 0) return null;
+            TeamMail mail = ring[head];
+            ring[head] = null;
+            head = (head + 1) % ring.length;
+            size--;
+            return mail;
+        }
+
+        TeamMail get(int index) {
+            return ring[(head + index) % ring.length];
+        }
+
+        int size() {
+            return size;
+        }
+    }
+
+    /**
+     * Loads waiting mail from mail.log and starts the hourly clean-up
+     */
+    public synchronized void load() {
+        try {
+            log.replay(new MailboxLog.Replayer() {
+                @Override
+                public void mail(TeamMail mail, List<UUID> recipients) {
+                    nextId = Math.max(nextId, mail.getId() + 1);
+                    if (mail.getTeamId() == TeamSnapshot.NO_ID) {
+                        // Saved before mail had team ids, the team's name is all there is
+                        Team team = plugin.getTeamDataManager().getTeam(mail.getTeamName());
+                        mail = new TeamMail(mail.getId(), mail.getSentAt(),
+                                team != null ? team.getId() : TeamSnapshot.NO_ID,
+                                mail.getTeamName(), mail.getSenderName(), mail.getMessage());
+                    }
+                    addMail(mail, recipients);
+                }
+
+                @Override
+                public void read(UUID playerId, long upToId) {
+                    markRead(playerId, upToId);
+                }
+            });
+            // Teams disbanded while their mail was waiting, or from before a restart
+            for (Integer teamId : new ArrayList<>(teamMail.keySet())) {
+                if (plugin.getTeamDataManager().getTeam(teamId) == null) {
+                    dropTeam(teamId);
+                }
+            }
+            dropExpired();
+            compact();
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Could not load offline team messages", e);
+        }
+
+        try {
+            log.open();
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Could not open mail.log, offline team messages won't be saved", e);
+        }
+
+        long hourTicks = 20L * 60 * 60;
+        sweepTask = Bukkit.getScheduler().runTaskTimerAsynchronously(plugin, this::sweep, hourTicks, hourTicks);
+    }
+
+    /**
+     * Keeps a team message for the members who missed it
+     * @param recipients The offline members
+     */
+    public synchronized void queue(Team team, String senderName, String message, List<UUID> recipients) {
+        // The team can be disbanded while this was waiting on the chat thread
+        if (recipients.isEmpty() || teamFloor.getOrDefault(team.getId(), 0L) == DISBANDED) return;
+
+        TeamMail mail = new TeamMail(nextId++, System.currentTimeMillis(), team.getId(), team.getName(),
+                senderName, message);
+        addMail(mail, recipients);
+        log.logMail(mail, recipients);
+    }
+
+    private void addMail(TeamMail mail, List<UUID> recipients) {
+        for (UUID recipient : recipients) {
+            Mailbox mailbox = mailboxes.computeIfAbsent(recipient, id -> new Mailbox(maxPerPlayer));
+            if (mailbox.add(mail)) {
+                droppedMail++;
+            }
+        }
+
+        ArrayDeque<TeamMail> waiting = teamMail.computeIfAbsent(mail.getTeamId(), id -> new ArrayDeque<>());
+        waiting.addLast(mail);
+        while (waiting.size() > maxPerTeam) {
+            teamFloor.put(mail.getTeamId(), waiting.removeFirst().getId());
+            droppedMail++;
+        }
+    }
+
+    /**
+     * Drops a disbanded team's waiting mail - call when it's removed
+     */
+    public synchronized void removeTeam(int teamId) {
+        dropTeam(teamId);
+    }
+
+    private void dropTeam(int teamId) {
+        teamMail.remove(teamId);
+        // Mail still sitting in mailboxes gets skipped from now on
+        teamFloor.put(teamId, DISBANDED);
+    }
+
+    private void markRead(UUID playerId, long upToId) {
+        Mailbox mailbox = mailboxes.get(playerId);
+        if (mailbox == null) return;
+
+        while (mailbox.size() > 0 && mailbox.peek().getId() <= upToId) {
+            mailbox.poll();
+        }
+        if (mailbox.size() == 0) {
+            mailboxes.remove(playerId);
+        }
+    }
+
+    /**
+     * Checks that mail hasn't been dropped by the team cap or gotten too old
+     */
+    private boolean isLive(TeamMail mail, long now) {
+        if (now - mail.getSentAt() > maxAgeMillis) return false;
+        Long floor = teamFloor.get(mail.getTeamId());
+        return floor == null || mail.getId() > floor;
+    }
+
+    /**
+     * Gets the next batch of mail for a player, skipping anything dropped since it was queued
+     */
+    private synchronized List<TeamMail> takeBatch(UUID playerId) {
+        Mailbox mailbox = mailboxes.get(playerId);
+        if (mailbox == null) return new ArrayList<>();
+
+        long now = System.currentTimeMillis();
+        List<TeamMail> batch = new ArrayList<>(drainBatch);
+        while (batch.size() < drainBatch && mailbox.size() > 0) {
+            TeamMail mail = mailbox.poll();
+            if (isLive(mail, now)) {
+                batch.add(mail);
+            }
+        }
+        if (mailbox.size() == 0) {
+            mailboxes.remove(playerId);
+        }
+        return batch;
+    }
+
+    /**
+     * @return How much live mail a player has waiting
+     */
+    public synchronized int countWaiting(UUID playerId) {
+        Mailbox mailbox = mailboxes.get(playerId);
+        if (mailbox == null) return 0;
+
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (int i = 0; i < mailbox.size(); i++) {
+            if (isLive(mailbox.get(i), now)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Starts sending a player their mail, a batch at a time - call when they join
+     */
+    public void startDraining(Player player) {
+        UUID playerId = player.getUniqueId();
+        if (drainTasks.containsKey(playerId) || countWaiting(playerId) == 0) return;
+
+        long[] lastSent = {0};
+        boolean[] announced = {false};
+        BukkitTask task = Bukkit.getScheduler().runTaskTimer(plugin, () -> {
+            Player online = Bukkit.getPlayer(playerId);
+            if (online == null) {
+                stopDraining(playerId);
+                return;
+            }
+
+            if (!announced[0]) {
+                announced[0] = true;
+                online.sendMessage(ChatColor.GOLD + "You have " + countWaiting(playerId)
+                        + " team messages from while you were away:");
+            }
+
+            List<TeamMail> batch = takeBatch(playerId);
+            for (TeamMail mail : batch) {
+                online.sendMessage(format(mail));
+                lastSent[0] = mail.getId();
+            }
+            if (lastSent[0] > 0) {
+                log.logRead(playerId, lastSent[0]);
+            }
+
+            if (batch.size() < drainBatch) {
+                stopDraining(playerId);
+            }
+        }, 40L, drainIntervalTicks);
+        drainTasks.put(playerId, task);
+    }
+
+    /**
+     * Stops sending a player their mail - what's left stays for next time
+     */
+    public void stopDraining(UUID playerId) {
+        BukkitTask task = drainTasks.remove(playerId);
+        if (task != null) {
+            task.cancel();
+        }
+    }
+
+    private String format(TeamMail mail) {
+        Team team = plugin.getTeamDataManager().getTeam(mail.getTeamId());
+        ChatColor teamColor = team != null && team.getColor() != null ? team.getColor() : ChatColor.YELLOW;
+        long minutes = (System.currentTimeMillis() - mail.getSentAt()) / 60_000L;
+        String ago = minutes < 60 ? minutes + "m" : minutes < 1440 ? (minutes / 60) + "h" : (minutes / 1440) + "d";
+        return ChatColor.GRAY + "[" + ChatColor.GOLD + "Team" + ChatColor.GRAY + "] (" + ago + " ago) "
+                + teamColor + mail.getSenderName() + ChatColor.WHITE + ": " + mail.getMessage();
+    }
+
+    /**
+     * Drops old mail and rewrites mail.log if it's grown a lot
+     */
+    private synchronized void sweep() {
+        dropExpired();
+        if (log.getSize() > COMPACT_BYTES) {
+            try {
+                compact();
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.WARNING, "Could not compact mail.log", e);
+            }
+        }
+    }
+
+    private void dropExpired() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Integer, ArrayDeque<TeamMail>> entry : teamMail.entrySet()) {
+            ArrayDeque<TeamMail> waiting = entry.getValue();
+            while (!waiting.isEmpty() && now - waiting.peekFirst().getSentAt() > maxAgeMillis) {
+                teamFloor.put(entry.getKey(), waiting.removeFirst().getId());
+            }
+        }
+        teamMail.values().removeIf(ArrayDeque::isEmpty);
+
+        Iterator<Mailbox> mailboxIterator = mailboxes.values().iterator();
+        while (mailboxIterator.hasNext()) {
+            Mailbox mailbox = mailboxIterator.next();
+            while (mailbox.size() > 0 && !isLive(mailbox.peek(), now)) {
+                mailbox.poll();
+            }
+            if (mailbox.size() == 0) {
+                mailboxIterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Rewrites mail.log with only the mail still waiting
+     */
+    private void compact() throws IOException {
+        long now = System.currentTimeMillis();
+        Map<Long, TeamMail> byId = new TreeMap<>();
+        Map<Long, List<UUID>> recipients = new HashMap<>();
+        for (Map.Entry<UUID, Mailbox> entry : mailboxes.entrySet()) {
+            Mailbox mailbox = entry.getValue();
+            for (int i = 0; i < mailbox.size(); i++) {
+                TeamMail mail = mailbox.get(i);
+                if (isLive(mail, now)) {
+                    byId.put(mail.getId(), mail);
+                    recipients.computeIfAbsent(mail.getId(), id -> new ArrayList<>()).add(entry.getKey());
+                }
+            }
+        }
+
+        Map<TeamMail, List<UUID>> pending = new LinkedHashMap<>();
+        for (TeamMail mail : byId.values()) {
+            pending.put(mail, recipients.get(mail.getId()));
+        }
+        log.rewrite(pending);
+    }
+
+    /**
+     * @return How many messages were dropped because a mailbox or team was full
+     */
+    public synchronized long getDroppedMail() {
+        return droppedMail;
+    }
+
+    /**
+     * Stops the drain and clean-up tasks and closes mail.log - call from onDisable
+     */
+    public void shutdown() {
+        for (BukkitTask task : drainTasks.values()) {
+            task.cancel();
+        }
+        drainTasks.clear();
+        if (sweepTask != null) {
+            sweepTask.cancel();
+            sweepTask = null;
+        }
+        log.close();
+    }
+}
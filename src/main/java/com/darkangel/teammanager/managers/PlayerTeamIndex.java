@@ -0,0 +1,91 @@
+package com.darkangel.teammanager.managers;
+
+import com.darkangel.teammanager.models.Team;
+import com.darkangel.teammanager.util.UuidMap;
+
+import java.util.UUID;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Reverse lookup from player UUID to the team they're in.
+ * Used to loop over every team on each lookup, which got slow with lots of teams.
+ * Also makes sure a player can only ever be in one team.
+ */
+public class PlayerTeamIndex {
+    // UUIDs stored as longs, not one boxed UUID + map node per player
+    private final UuidMap<Team> playerTeams = new UuidMap<>();
+    // Chat and PvP events read this off the main thread. Reads are optimistic
+    // (no locking) and only fall back to the read lock if a write got in the way
+    private final StampedLock lock = new StampedLock();
+
+    /**
+     * Gets the team a player is in
+     * @param playerId UUID of the player
+     * @return The team, or null if not in a team
+     */
+    public Team get(UUID playerId) {
+        long stamp = lock.tryOptimisticRead();
+        Team team = playerTeams.get(playerId);
+        if (lock.validate(stamp)) {
+            return team;
+        }
+
+        stamp = lock.readLock();
+        try {
+            return playerTeams.get(playerId);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Records that a player belongs to a team
+     * @return false if the player is already in a different team
+     */
+    public boolean claim(UUID playerId, Team team) {
+        long stamp = lock.writeLock();
+        try {
+            Team existing = playerTeams.putIfAbsent(playerId, team);
+            return existing == null || existing == team;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Forgets a player, but only if they're still mapped to this team
+     */
+    public void release(UUID playerId, Team team) {
+        long stamp = lock.writeLock();
+        try {
+            playerTeams.remove(playerId, team);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Forgets everyone in a team (used when disbanding or when a team fails to load)
+     */
+    public void releaseTeam(Team team) {
+        team.forEachMember(playerId -> release(playerId, team));
+    }
+
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            playerTeams.clear();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return playerTeams.size();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+}
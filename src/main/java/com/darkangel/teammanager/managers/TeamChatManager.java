@@ -0,0 +1,293 @@
+package com.darkangel.teammanager.managers;
+
+import com.darkangel.teammanager.TeamManager;
+import com.darkangel.teammanager.models.Team;
+import com.darkangel.teammanager.storage.ChatAuditLog;
+import org.bukkit.ChatColor;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.entity.Player;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends team chat messages. The message gets formatted once, and the actual
+ * sending and logging happens on a background thread so the command (or chat
+ * event) can return straight away. A single thread keeps messages in order.
+ */
+public class TeamChatManager {
+    // Prefix for team chat messages
+    private static final String MSG_PREFIX = ChatColor.GRAY + "[" + ChatColor.GOLD + "Team" + ChatColor.GRAY + "] ";
+    private static final String ALLY_PREFIX = ChatColor.GRAY + "[" + ChatColor.AQUA + "Ally" + ChatColor.GRAY + "] ";
+
+    private final TeamManager plugin;
+    private final ExecutorService delivery;
+    
+    // Players whose normal chat goes to team chat (/team tctoggle). Read from the async chat thread
+    private final Set<UUID> toggled = ConcurrentHashMap.newKeySet();
+    
+    // Chat starting with this goes to team chat for that one message, empty = off
+    private final String quickPrefix;
+    
+    // Last messages of each team for /tc history
+    private final ChatHistoryManager history;
+    private final boolean logToConsole;
+    
+    // Audit file of all team chat, null if turned off
+    private final ChatAuditLog auditLog;
+    
+    // Stops one player from spamming the whole team (or alliance)
+    private final ChatRateLimiter teamLimiter;
+    private final ChatRateLimiter allyLimiter;
+    
+    // Precomputed ally chat recipients per team
+    private final AllyRecipientCache allyRecipients;
+
+    public TeamChatManager(TeamManager plugin) {
+        this.plugin = plugin;
+        this.delivery = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "TeamManager-chat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.quickPrefix = plugin.getConfig().getString("chat.quick-prefix", "!");
+        this.history = new ChatHistoryManager(plugin);
+        this.logToConsole = plugin.getConfig().getBoolean("chat.log-to-console", false);
+        this.teamLimiter = ChatRateLimiter.fromConfig("Team",
+                plugin.getConfig().getConfigurationSection("chat.rate-limit.team"));
+        this.allyLimiter = ChatRateLimiter.fromConfig("Ally",
+                plugin.getConfig().getConfigurationSection("chat.rate-limit.ally"));
+        this.allyRecipients = new AllyRecipientCache(plugin.getTeamDataManager());
+        
+        ConfigurationSection audit = plugin.getConfig().getConfigurationSection("chat.audit-log");
+        if (audit == null || audit.getBoolean("enabled", true)) {
+            this.auditLog = new ChatAuditLog(new File(plugin.getDataFolder(), "chat-logs/team-chat.log"),
+                    plugin.getLogger(),
+                    audit != null ? audit.getLong("flush-interval-ms", 1000) : 1000,
+                    audit != null ? audit.getInt("max-queued", 10000) : 10000,
+                    (audit != null ? audit.getLong("max-file-size-mb", 10) : 10) * 1024 * 1024,
+                    audit != null ? audit.getInt("max-files", 5) : 5);
+        } else {
+            this.auditLog = null;
+        }
+    }
+    
+    /**
+     * Gets the team chat rate limiter - for stats
+     */
+    public ChatRateLimiter getTeamLimiter() {
+        return teamLimiter;
+    }
+    
+    /**
+     * Gets the ally chat rate limiter - for stats
+     */
+    public ChatRateLimiter getAllyLimiter() {
+        return allyLimiter;
+    }
+    
+    /**
+     * Gets the ally chat recipients - alliance changes need to be passed on to it
+     */
+    public AllyRecipientCache getAllyRecipients() {
+        return allyRecipients;
+    }
+    
+    /**
+     * Drops anything kept for a player who left - call when they quit.
+     * Their rate limit buckets stay until they've refilled, see ChatRateLimiter#evictIdle
+     */
+    public void forgetPlayer(UUID playerId) {
+        teamLimiter.evictIdle();
+        allyLimiter.evictIdle();
+    }
+    
+    /**
+     * Gets the team chat audit log, or null if it's turned off
+     */
+    public ChatAuditLog getAuditLog() {
+        return auditLog;
+    }
+    
+    /**
+     * Gets the team chat history - used by /tc history
+     */
+    public ChatHistoryManager getHistory() {
+        return history;
+    }
+    
+    /**
+     * Flips team chat mode for a player
+     * @return true if it's now on
+     */
+    public boolean toggle(UUID playerId) {
+        if (toggled.remove(playerId)) {
+            return false;
+        }
+        toggled.add(playerId);
+        return true;
+    }
+    
+    /**
+     * Checks if a player has team chat toggled on
+     */
+    public boolean isToggled(UUID playerId) {
+        return toggled.contains(playerId);
+    }
+    
+    /**
+     * Turns team chat mode off, e.g. after leaving their team
+     */
+    public void untoggle(UUID playerId) {
+        toggled.remove(playerId);
+    }
+    
+    /**
+     * Works out if a normal chat message should go to team chat instead
+     * @return The message to send to the team, or null if it's normal chat
+     */
+    public String routeToTeam(UUID playerId, String message) {
+        if (quickPrefix != null && !quickPrefix.isEmpty() && message.startsWith(quickPrefix)) {
+            return message.substring(quickPrefix.length()).trim();
+        }
+        return toggled.contains(playerId) ? message : null;
+    }
+
+    /**
+     * Formats a team chat message
+     * Format: [Team] PlayerName: Message (name in the team color, yellow if not set)
+     */
+    public String format(Team team, String senderName, String message) {
+        ChatColor teamColor = team.getColor() != null ? team.getColor() : ChatColor.YELLOW;
+        return MSG_PREFIX + teamColor + senderName + ChatColor.WHITE + ": " + message;
+    }
+
+    /**
+     * Sends a message to everyone online in the team
+     * @param team The team to send to
+     * @param sender Who's talking
+     * @param rawMessage The message as typed
+     * @return false if it wasn't sent (chatting too fast or a blocked word)
+     */
+    public boolean send(Team team, Player sender, String rawMessage) {
+        // Before any formatting or fan-out, so spam costs next to nothing
+        if (!teamLimiter.tryAcquire(sender.getUniqueId())) {
+            sender.sendMessage(ChatColor.RED + "You're sending team messages too fast, slow down a bit.");
+            return false;
+        }
+        String message = plugin.getChatFilterManager().filterChat(sender, "Team", rawMessage);
+        if (message == null) {
+            return false;
+        }
+        
+        String formatted = format(team, sender.getName(), message);
+        // Live view of the team's online members - safe to walk from the chat thread
+        Collection<Player> recipients = team.getOnlineMembers();
+        String logLine = "[TeamChat:" + team.getName() + "] " + sender.getName() + ": " + message;
+        
+        // Whoever's offline gets it when they're back
+        MailboxManager mailbox = plugin.getMailboxManager();
+        List<UUID> offline = mailbox != null ? team.getOfflineMembers() : null;
+        String teamName = team.getName();
+        String senderName = sender.getName();
+        long sentAt = System.currentTimeMillis();
+
+        Runnable deliver = () -> {
+            for (Player member : recipients) {
+                member.sendMessage(formatted);
+            }
+            
+            if (offline != null) {
+                mailbox.queue(team, senderName, message, offline);
+            }
+            
+            // Keep it for /tc history and the audit file. The console line is
+            // optional since it's a synchronous log write for every message
+            history.record(team, sentAt, senderName, message);
+            if (auditLog != null) {
+                auditLog.log(teamName, senderName, message);
+            }
+            if (logToConsole) {
+                plugin.getLogger().info(logLine);
+            }
+        };
+
+        try {
+            delivery.execute(deliver);
+        } catch (RejectedExecutionException e) {
+            // Shutting down, just send it here
+            deliver.run();
+        }
+        return true;
+    }
+
+    /**
+     * Sends a message to everyone online in the team and its allied teams
+     * Format: [Ally] [TeamName] PlayerName: Message
+     * @return false if it wasn't sent (chatting too fast or a blocked word)
+     */
+    public boolean sendAlly(Team team, Player sender, String rawMessage) {
+        if (!allyLimiter.tryAcquire(sender.getUniqueId())) {
+            sender.sendMessage(ChatColor.RED + "You're sending ally messages too fast, slow down a bit.");
+            return false;
+        }
+        String message = plugin.getChatFilterManager().filterChat(sender, "Ally", rawMessage);
+        if (message == null) {
+            return false;
+        }
+        
+        ChatColor teamColor = team.getColor() != null ? team.getColor() : ChatColor.YELLOW;
+        String formatted = ALLY_PREFIX + teamColor + "[" + team.getName() + "] " + sender.getName()
+                + ChatColor.WHITE + ": " + message;
+        String teamName = team.getName();
+        String senderName = sender.getName();
+        String logLine = "[AllyChat:" + teamName + "] " + senderName + ": " + message;
+
+        Runnable deliver = () -> {
+            for (Player recipient : allyRecipients.getRecipients(team)) {
+                recipient.sendMessage(formatted);
+            }
+            
+            if (auditLog != null) {
+                auditLog.log(teamName + "/allies", senderName, message);
+            }
+            if (logToConsole) {
+                plugin.getLogger().info(logLine);
+            }
+        };
+
+        try {
+            delivery.execute(deliver);
+        } catch (RejectedExecutionException e) {
+            deliver.run();
+        }
+        return true;
+    }
+
+    /**
+     * Lets queued messages go out and stops the chat thread - call from onDisable
+     */
+    public void shutdown() {
+        delivery.shutdown();
+        try {
+            if (!delivery.awaitTermination(5, TimeUnit.SECONDS)) {
+                plugin.getLogger().warning("Timed out sending the last team chat messages");
+                delivery.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        history.shutdown();
+        if (auditLog != null) {
+            auditLog.shutdown();
+        }
+    }
+}
@@ -2,265 +2,813 @@ package com.darkangel.teammanager.managers;
 
 import com.darkangel.teammanager.TeamManager;
 import com.darkangel.teammanager.models.Team;
+import com.darkangel.teammanager.models.TeamHome;
+import com.darkangel.teammanager.models.TeamListener;
+import com.darkangel.teammanager.storage.BinaryTeamSnapshot;
+import com.darkangel.teammanager.storage.ChangedTeams;
+import com.darkangel.teammanager.storage.FolderTeamStore;
+import com.darkangel.teammanager.storage.PartialTeamStore;
+import com.darkangel.teammanager.storage.SaveScheduler;
+import com.darkangel.teammanager.storage.SqliteTeamStore;
+import com.darkangel.teammanager.storage.StorageMode;
+import com.darkangel.teammanager.storage.TeamJournal;
+import com.darkangel.teammanager.storage.TeamSnapshot;
+import com.darkangel.teammanager.storage.TeamStore;
+import com.darkangel.teammanager.storage.YamlTeamStore;
 import org.bukkit.Bukkit;
-import org.bukkit.configuration.ConfigurationSection;
-import org.bukkit.configuration.file.FileConfiguration;
-import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.ChatColor;
 import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitTask;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 
 public class TeamDataManager {
     private final TeamManager plugin;
-    private final Map<String, Team> teams;
-    private final File teamsFile;
-    private FileConfiguration teamsConfig;
-
+    // Teams by id. Ids are saved with the team and never change, so everything
+    // that points at a team (alliances, lookups, caches) uses the id, not the name
+    private final Map<Integer, Team> teams;
+    // Lowercase name -> id, only used to turn a name typed in a command into a team
+    private final Map<String, Integer> teamIds;
+    // Next id to hand out - one past the highest id loaded or created so far
+    private int nextTeamId = 1;
+    // Teams loaded from an older format (no saved id, alliances saved by name), saved again once loading is done
+    private final Set<Team> upgradedTeams = new LinkedHashSet<>();
+    private final PlayerTeamIndex playerIndex;
+    private final InviteManager inviteManager;
+    private final AllianceManager allianceManager;
+    private final TeamChangeTracker teamListener;
+    private final SaveScheduler saveScheduler;
+    
+    private final StorageMode storageMode;
+    
+    // teams.yml - always there, it's what the journal folds into and what other stores migrate from
+    private final YamlTeamStore yamlStore;
+    // Where teams actually get saved (yamlStore in YAML and JOURNAL mode)
+    private final TeamStore store;
+    
+    // Write-ahead journal, only appended to in JOURNAL mode
+    private final TeamJournal journal;
+    private final long journalCompactBytes;
+    private BukkitTask compactTask;
+    
+    // Ids of teams changed since the last save, for stores that can save just those
+    private final ChangedTeams dirtyTeams = new ChangedTeams();
+    
+    // True while loading, so rebuilding teams doesn't get written back to the journal
+    private boolean loading;
+    
     public TeamDataManager(TeamManager plugin) {
         this.plugin = plugin;
-        this.teams = new HashMap<>();
-        this.teamsFile = new File(plugin.getDataFolder(), "teams.yml");
+        // Concurrent since chat looks teams up from the async chat thread
+        this.teams = new ConcurrentHashMap<>();
+        this.teamIds = new ConcurrentHashMap<>();
+        this.playerIndex = new PlayerTeamIndex();
+        this.inviteManager = new InviteManager(
+                plugin.getConfig().getLong("teams.invite-expiry-seconds", 300) * 1000L);
+        this.allianceManager = new AllianceManager(
+                plugin.getConfig().getLong("teams.alliance-request-expiry-seconds", 300) * 1000L, teams::get);
+        File teamsFile = new File(plugin.getDataFolder(), "teams.yml");
+        
+        this.saveScheduler = new SaveScheduler(plugin, "teams",
+                plugin.getConfig().getLong("storage.save-delay-ticks", 40), this::snapshotTeams);
+        
+        StorageMode mode = StorageMode.fromConfig(plugin.getConfig().getString("storage.mode", "yaml"));
+        if (mode == StorageMode.SQLITE && !SqliteTeamStore.isDriverAvailable()) {
+            plugin.getLogger().warning("SQLite driver not found, falling back to teams.yml storage");
+            mode = StorageMode.YAML;
+        }
+        this.storageMode = mode;
+        this.yamlStore = new YamlTeamStore(teamsFile, plugin.getLogger());
+        if (plugin.getConfig().getBoolean("storage.parallel-load", true)) {
+            yamlStore.setParallelism(Runtime.getRuntime().availableProcessors());
+        }
+        if (plugin.getConfig().getBoolean("storage.binary-snapshot", true)) {
+            yamlStore.setBinarySnapshot(new BinaryTeamSnapshot(
+                    new File(plugin.getDataFolder(), "teams.bin"), plugin.getLogger()));
+        }
+        this.store = createStore(mode);
         
-        // Create the teams.yml file if it doesn't exist
-        if (!teamsFile.exists()) {
+        // Create the teams.yml file if it doesn't exist (other stores would just migrate an empty one)
+        if (store == yamlStore && !teamsFile.exists()) {
             plugin.saveResource("teams.yml", false);
         }
         
-        this.teamsConfig = YamlConfiguration.loadConfiguration(teamsFile);
+        this.journalCompactBytes = plugin.getConfig().getLong("storage.journal.compact-size-kb", 1024) * 1024L;
+        this.journal = new TeamJournal(new File(plugin.getDataFolder(), "journal"),
+                plugin.getConfig().getLong("storage.journal.fsync-interval-ms", 1000), plugin.getLogger());
+        
+        TeamChangeTracker tracker = new TeamChangeTracker();
+        this.teamListener = tracker;
+        this.inviteManager.setListener(tracker);
+        this.allianceManager.setListener(tracker);
     }
-
+    
+    /**
+     * Makes the store for a storage mode. YAML and JOURNAL both share teams.yml.
+     */
+    private TeamStore createStore(StorageMode mode) {
+        switch (mode) {
+            case SHARDED:
+                return new FolderTeamStore(new File(plugin.getDataFolder(), "teams"), plugin.getLogger());
+            case SQLITE:
+                return new SqliteTeamStore(new File(plugin.getDataFolder(), "teams.db"), plugin.getLogger());
+            default:
+                return yamlStore;
+        }
+    }
+    
     /**
-     * Loads teams from teams.yml
+     * Loads teams from the configured store. For teams.yml, anything in the journal
+     * is replayed on top. Other stores get filled from teams.yml the first time.
      */
     public void loadTeams() {
-        teams.clear();
+        boolean migrate = false;
+        long start = System.nanoTime();
+        loading = true;
+        try {
+            if (store != yamlStore && store.exists()) {
+                loadFromStore();
+            } else {
+                loadSnapshots(yamlStore.loadAll());
+                replayJournal(yamlStore.getJournalSeq());
+                migrate = store != yamlStore;
+            }
+        } finally {
+            loading = false;
+        }
         
-        ConfigurationSection teamsSection = teamsConfig.getConfigurationSection("teams");
-        if (teamsSection == null) return;
+        long loaded = System.nanoTime();
+        int onlineMembers = rehydrateScoreboard();
+        long done = System.nanoTime();
+        plugin.getLogger().info(String.format("Loaded %d teams in %.1fms (scoreboard: %d online players in %.1fms).",
+                teams.size(), (loaded - start) / 1_000_000.0, onlineMembers, (done - loaded) / 1_000_000.0));
         
-        for (String teamName : teamsSection.getKeys(false)) {
-            ConfigurationSection teamSection = teamsSection.getConfigurationSection(teamName);
-            if (teamSection == null) continue;
+        if (migrate) {
+            migrateToStore();
+        }
+        if (storageMode == StorageMode.JOURNAL) {
+            startJournal();
+        }
+        // These save straight away, so the store and journal have to be ready first
+        migrateConfigAlliances();
+        saveUpgradedTeams();
+    }
+    
+    /**
+     * Loads every team from the teams folder or the database
+     */
+    private void loadFromStore() {
+        try {
+            loadSnapshots(store.loadAll());
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Could not load teams from " + store.getName() + " storage", e);
+        }
+        
+        if (journal.hasSegments()) {
+            plugin.getLogger().warning("Ignoring old team journal in " + journal.getSegments().get(0).getParent()
+                    + " - " + store.getName() + " storage is already in use.");
+        }
+    }
+    
+    /**
+     * One-time move from teams.yml to the configured store. The old file is kept as
+     * teams.yml.migrated just in case.
+     */
+    private void migrateToStore() {
+        plugin.getLogger().info("Moving " + teams.size() + " teams from teams.yml into " + store.getName() + " storage...");
+        try {
+            store.saveAll(snapshotAll());
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Could not move teams into " + store.getName()
+                    + " storage, teams.yml is left as it is", e);
+            return;
+        }
+        dirtyTeams.clear();
+        
+        File teamsFile = yamlStore.getFile();
+        File migrated = new File(teamsFile.getParentFile(), teamsFile.getName() + ".migrated");
+        if (teamsFile.exists() && !teamsFile.renameTo(migrated)) {
+            plugin.getLogger().warning("Could not rename teams.yml after migrating, it won't be used anymore");
+        }
+    }
+    
+    /**
+     * One-time move of the alliances that used to be saved in config.yml as
+     * "team1:team2,team3;team4:team5". Pending requests in there are dropped.
+     * They only come out of config.yml once the teams holding them are saved.
+     */
+    private void migrateConfigAlliances() {
+        String encoded = plugin.getConfig().getString("team_alliances", "");
+        if (encoded.isEmpty()) return;
+        
+        int moved = 0;
+        for (String entry : encoded.split(";")) {
+            String[] parts = entry.split(":", 2);
+            Team team = parts.length == 2 ? getTeam(parts[0]) : null;
+            if (team == null) continue;
             
-            try {
-                // Load basic team data
-                UUID ownerUUID = UUID.fromString(teamSection.getString("owner", ""));
-                boolean pvpEnabled = teamSection.getBoolean("pvp_enabled", false);
-                
-                // Create team
-                Team team = new Team(teamName, ownerUUID);
-                team.setPvpEnabled(pvpEnabled);
-                
-                // Load members first (they might be promoted later)
-                List<String> memberStrings = teamSection.getStringList("members");
-                for (String memberString : memberStrings) {
-                    UUID memberId = UUID.fromString(memberString);
-                    team.addMember(memberId);
-                }
-                
-                // Load recruits (needs to happen after members are loaded)
-                List<String> recruitStrings = teamSection.getStringList("recruits");
-                for (String recruitString : recruitStrings) {
-                    UUID recruitId = UUID.fromString(recruitString);
-                    // Need to add as member first, then promote
-                    team.addMember(recruitId);
-                    team.promoteToRecruit(recruitId);
-                }
-                
-                // Load invites
-                List<String> inviteStrings = teamSection.getStringList("invites");
-                for (String inviteString : inviteStrings) {
-                    UUID inviteId = UUID.fromString(inviteString);
-                    team.invitePlayer(inviteId);
+            for (String allyName : parts[1].split(",")) {
+                Team ally = allyName.startsWith("request:") ? null : getTeam(allyName);
+                if (ally != null && ally != team) {
+                    allianceManager.restore(team, ally);
+                    markDirty(team);
+                    markDirty(ally);
+                    moved++;
                 }
-                
-                // Load home location if available
-                if (teamSection.contains("home")) {
-                    ConfigurationSection homeSection = teamSection.getConfigurationSection("home");
-                    if (homeSection != null) {
-                        String worldName = homeSection.getString("world");
-                        double x = homeSection.getDouble("x");
-                        double y = homeSection.getDouble("y");
-                        double z = homeSection.getDouble("z");
-                        float yaw = (float) homeSection.getDouble("yaw", 0);
-                        float pitch = (float) homeSection.getDouble("pitch", 0);
-                        
-                        if (worldName != null && Bukkit.getWorld(worldName) != null) {
-                            org.bukkit.Location loc = new org.bukkit.Location(
-                                Bukkit.getWorld(worldName), x, y, z, yaw, pitch);
-                            team.setHomeLocation(loc);
-                        }
-                    }
-                }
-                
-                // Load team color if available
-                if (teamSection.contains("color")) {
-                    String colorName = teamSection.getString("color");
-                    if (colorName != null) {
-                        try {
-                            org.bukkit.ChatColor color = org.bukkit.ChatColor.valueOf(colorName);
-                            team.setColor(color);
-                        } catch (IllegalArgumentException e) {
-                            // Invalid color name, stick with default
-                        }
-                    }
-                }
-                
-                // Load team level if available
-                if (teamSection.contains("level")) {
-                    int level = teamSection.getInt("level", 1);
-                    team.setLevel(level);
+            }
+        }
+        allianceManager.publish();
+        
+        if (moved > 0) {
+            // Saved into the snapshot in JOURNAL mode, there's no journal record for a migration
+            saveScheduler.markDirty();
+            if (!saveScheduler.flushNow()) {
+                plugin.getLogger().severe("Could not save the team alliances from config.yml, leaving them there for next time");
+                return;
+            }
+            plugin.getLogger().info("Moved " + moved + " team alliances out of config.yml");
+        }
+        plugin.getConfig().set("team_alliances", null);
+        plugin.saveConfig();
+    }
+    
+    /**
+     * Saves teams that were loaded from an older format straight away, so
+     * journal records and alliances pointing at their new ids hold up
+     */
+    private void saveUpgradedTeams() {
+        if (upgradedTeams.isEmpty()) return;
+        
+        plugin.getLogger().info("Saving " + upgradedTeams.size() + " teams that were stored without ids or with alliances by name.");
+        for (Team team : upgradedTeams) {
+            markDirty(team);
+        }
+        upgradedTeams.clear();
+        saveScheduler.markDirty();
+        saveScheduler.flushNow();
+    }
+    
+    private void markAllDirty() {
+        dirtyTeams.addAll(teams.keySet());
+    }
+    
+    private void markDirty(Team team) {
+        if (store instanceof PartialTeamStore && !loading) {
+            dirtyTeams.add(team.getId());
+        }
+    }
+    
+    /**
+     * Replaces all loaded teams with these
+     */
+    private void loadSnapshots(Collection<TeamSnapshot> snapshots) {
+        teams.clear();
+        teamIds.clear();
+        playerIndex.clear();
+        inviteManager.clear();
+        allianceManager.clear();
+        
+        // New ids (for teams saved before ids were) start after every saved one
+        for (TeamSnapshot snapshot : snapshots) {
+            nextTeamId = Math.max(nextTeamId, snapshot.getId() + 1);
+        }
+        for (TeamSnapshot snapshot : snapshots) {
+            loadTeam(snapshot);
+        }
+        
+        // Alliances point at other teams, so they can only go in once every team is loaded
+        for (TeamSnapshot snapshot : snapshots) {
+            Team team = getTeam(snapshot.getName());
+            if (team == null) continue;
+            for (int allyId : snapshot.getAllyIds()) {
+                Team ally = teams.get(allyId);
+                if (ally != null) {
+                    allianceManager.restore(team, ally);
                 }
-                
-                // Add team to map
-                teams.put(teamName.toLowerCase(), team);
-                
-                // Add online players to scoreboard team
-                for (Player player : Bukkit.getOnlinePlayers()) {
-                    UUID playerId = player.getUniqueId();
-                    if (team.isInTeam(playerId)) {
-                        team.addPlayerToScoreboardTeam(player);
-                    }
+            }
+            
+            // Saved before alliances were kept by id - both teams get saved again with ids
+            if (!snapshot.getLegacyAllyNames().isEmpty()) {
+                upgradedTeams.add(team);
+            }
+            for (String allyName : snapshot.getLegacyAllyNames()) {
+                Team ally = getTeam(allyName);
+                if (ally != null && ally != team) {
+                    allianceManager.restore(team, ally);
+                    upgradedTeams.add(ally);
                 }
+            }
+        }
+        allianceManager.publish();
+    }
+    
+    /**
+     * Rebuilds a single team from its saved data, warning (and skipping it) if
+     * its owner is already taken
+     */
+    private void loadTeam(TeamSnapshot snapshot) {
+        String teamName = snapshot.getName();
+        if (teamIds.containsKey(teamName.toLowerCase())) {
+            plugin.getLogger().warning("Skipping duplicate team " + teamName);
+            return;
+        }
+        
+        // Create team
+        UUID ownerUUID = snapshot.getOwner();
+        Team team = new Team(teamName, ownerUUID);
+        team.setPvpEnabled(snapshot.isPvpEnabled());
+        
+        // A player can only be in one team - first team loaded keeps them
+        if (!playerIndex.claim(ownerUUID, team)) {
+            plugin.getLogger().warning("Skipping team " + teamName + ": owner " + ownerUUID
+                    + " is already in team " + playerIndex.get(ownerUUID).getName());
+            return;
+        }
+        team.setListener(teamListener);
+        
+        // Load members first (they might be promoted later)
+        for (UUID memberId : snapshot.getMembers()) {
+            addLoadedMember(team, memberId);
+        }
+        
+        // Load recruits (needs to happen after members are loaded)
+        for (UUID recruitId : snapshot.getRecruits()) {
+            // Need to add as member first, then promote
+            if (addLoadedMember(team, recruitId)) {
+                team.promoteToRecruit(recruitId);
+            }
+        }
+        
+        // Load invites - old teams.yml files didn't save an expiry, those get the default one
+        for (Map.Entry<UUID, Long> invite : snapshot.getInvites().entrySet()) {
+            long expiresAt = invite.getValue();
+            if (expiresAt == TeamSnapshot.DEFAULT_EXPIRY) {
+                inviteManager.invite(team, invite.getKey());
+            } else {
+                inviteManager.restore(team, invite.getKey(), expiresAt > 0 ? expiresAt : Long.MAX_VALUE);
+            }
+        }
+        
+        // Home stays as world name + coords until someone uses it, so homes in
+        // worlds that load later (or never get used) cost nothing here
+        if (snapshot.getHome() != null) {
+            team.setHome(snapshot.getHome());
+        }
+        
+        // Load team color if available
+        if (snapshot.getColor() != null) {
+            try {
+                team.setColor(ChatColor.valueOf(snapshot.getColor()));
             } catch (IllegalArgumentException e) {
-                plugin.getLogger().log(Level.WARNING, "Error loading team " + teamName + ": " + e.getMessage());
+                // Invalid color name, stick with default
             }
         }
         
-        plugin.getLogger().info("Loaded " + teams.size() + " teams.");
+        team.setLevel(snapshot.getLevel());
+        
+        // Add team to map (online players get put on the scoreboard afterwards, see rehydrateScoreboard)
+        team.setId(pickId(teamName, snapshot.getId()));
+        if (team.getId() != snapshot.getId()) {
+            upgradedTeams.add(team);
+        }
+        register(team);
     }
-
+    
     /**
-     * Saves teams to teams.yml
+     * Uses a team's saved id if it has one that isn't taken, otherwise hands out a new one.
+     * Ids have to be above 0, TeamRelations counts on that
      */
-    public void saveTeams() {
-        // Clear existing teams section
-        teamsConfig.set("teams", null);
+    private int pickId(String teamName, int savedId) {
+        if (savedId > 0 && !teams.containsKey(savedId)) {
+            nextTeamId = Math.max(nextTeamId, savedId + 1);
+            return savedId;
+        }
+        if (savedId != TeamSnapshot.NO_ID) {
+            plugin.getLogger().warning("Team " + teamName + " has a bad or duplicate id (" + savedId + "), giving it a new one");
+        }
+        return nextTeamId++;
+    }
+    
+    private void register(Team team) {
+        teams.put(team.getId(), team);
+        teamIds.put(team.getName().toLowerCase(), team.getId());
+    }
+    
+    /**
+     * Puts every online player back on their team's scoreboard team after loading.
+     * One pass over the online players using the player index, instead of going
+     * through every online player for every team.
+     * @return How many players were added
+     */
+    private int rehydrateScoreboard() {
+        org.bukkit.scoreboard.ScoreboardManager manager = Bukkit.getScoreboardManager();
+        if (manager == null) return 0;
         
-        // Create new teams section
-        ConfigurationSection teamsSection = teamsConfig.createSection("teams");
+        // Group the entries by team first so each scoreboard team gets one batch add
+        Map<Team, List<String>> entries = new HashMap<>();
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            Team team = playerIndex.get(player.getUniqueId());
+            if (team != null) {
+                entries.computeIfAbsent(team, t -> new ArrayList<>()).add(player.getName());
+            }
+        }
         
-        // Save each team
-        for (Team team : teams.values()) {
-            ConfigurationSection teamSection = teamsSection.createSection(team.getName());
-            
-            // Save basic team data
-            teamSection.set("owner", team.getOwner().toString());
-            teamSection.set("pvp_enabled", team.isPvpEnabled());
-            
-            // Save recruits
-            List<String> recruitStrings = new ArrayList<>();
-            for (UUID recruitId : team.getRecruits()) {
-                recruitStrings.add(recruitId.toString());
+        org.bukkit.scoreboard.Scoreboard scoreboard = manager.getMainScoreboard();
+        int added = 0;
+        for (Map.Entry<Team, List<String>> entry : entries.entrySet()) {
+            entry.getKey().getOrCreateScoreboardTeam(scoreboard).addEntries(entry.getValue());
+            added += entry.getValue().size();
+        }
+        return added;
+    }
+    
+    /**
+     * Applies journal records written after the snapshot
+     */
+    private void replayJournal(long snapshotSeq) {
+        if (!journal.hasSegments()) return;
+        
+        try {
+            long lastSeq = journal.replay(snapshotSeq, new JournalReplayer());
+            if (lastSeq > snapshotSeq) {
+                plugin.getLogger().info("Replayed team journal up to record " + lastSeq + ".");
             }
-            teamSection.set("recruits", recruitStrings);
-            
-            // Save members
-            List<String> memberStrings = new ArrayList<>();
-            for (UUID memberId : team.getMembers()) {
-                memberStrings.add(memberId.toString());
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Could not replay team journal", e);
+            return;
+        }
+        
+        // Switched away from the journal - fold the leftovers in and get rid of them
+        if (storageMode != StorageMode.JOURNAL) {
+            markAllDirty();
+            saveScheduler.markDirty();
+            saveScheduler.flushNow();
+            journal.deleteSegments(journal.getSegments());
+        }
+    }
+    
+    /**
+     * Starts appending to the journal and compacting it in the background
+     */
+    private void startJournal() {
+        try {
+            journal.startWriting();
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Could not open team journal, changes will only be saved on compaction", e);
+        }
+        
+        long intervalTicks = Math.max(1, plugin.getConfig().getLong("storage.journal.compact-interval-seconds", 300)) * 20L;
+        compactTask = Bukkit.getScheduler().runTaskTimer(plugin, () -> {
+            if (journal.getBytesSinceRotate() > 0) {
+                saveScheduler.markDirty();
             }
-            teamSection.set("members", memberStrings);
-            
-            // Save invites - this needs special handling since we can't iterate through team.getInvites()
-            List<String> inviteStrings = new ArrayList<>();
-            // We'll save all invites directly using the keys in the config instead
-            if (teamSection.contains("invites")) {
-                inviteStrings = teamSection.getStringList("invites");
+        }, intervalTicks, intervalTicks);
+    }
+    
+    /**
+     * Adds a member while loading, warning if they already belong to another team
+     */
+    private boolean addLoadedMember(Team team, UUID playerId) {
+        if (team.addMember(playerId)) {
+            return true;
+        }
+        
+        Team existing = playerIndex.get(playerId);
+        plugin.getLogger().warning("Player " + playerId + " is listed in both " + team.getName()
+                + " and " + (existing != null ? existing.getName() : "another team") + ", keeping the first one.");
+        return false;
+    }
+    
+    /**
+     * Saves teams. Doesn't write straight away - changes made close
+     * together get saved in one go on a background thread.
+     */
+    public void saveTeams() {
+        if (storageMode == StorageMode.JOURNAL) {
+            // Already in the journal, only compact once it's grown big enough
+            if (journal.getBytesSinceRotate() >= journalCompactBytes) {
+                saveScheduler.markDirty();
             }
-            teamSection.set("invites", inviteStrings);
-            
-            // Save home location
-            if (team.getHomeLocation() != null) {
-                ConfigurationSection homeSection = teamSection.createSection("home");
-                homeSection.set("world", team.getHomeLocation().getWorld().getName());
-                homeSection.set("x", team.getHomeLocation().getX());
-                homeSection.set("y", team.getHomeLocation().getY());
-                homeSection.set("z", team.getHomeLocation().getZ());
-                homeSection.set("yaw", team.getHomeLocation().getYaw());
-                homeSection.set("pitch", team.getHomeLocation().getPitch());
+            return;
+        }
+        saveScheduler.markDirty();
+    }
+    
+    /**
+     * Saves teams right now, on the calling thread
+     */
+    public void saveTeamsNow() {
+        saveScheduler.flushNow();
+    }
+    
+    /**
+     * Writes anything unsaved and stops the background writer - call from onDisable
+     */
+    public void shutdown() {
+        if (compactTask != null) {
+            compactTask.cancel();
+            compactTask = null;
+        }
+        
+        // Fold the journal into a final snapshot so the next startup has nothing to replay
+        if (storageMode == StorageMode.JOURNAL && journal.getBytesSinceRotate() > 0) {
+            saveScheduler.markDirty();
+        }
+        saveScheduler.close();
+        journal.close();
+        store.close();
+    }
+    
+    /**
+     * Gets the save scheduler, mostly for its metrics
+     */
+    public SaveScheduler getSaveScheduler() {
+        return saveScheduler;
+    }
+    
+    /**
+     * Gets the storage mode actually in use (after falling back, if it had to)
+     */
+    public StorageMode getStorageMode() {
+        return storageMode;
+    }
+    
+    /**
+     * Copies every team into another storage backend, e.g. to try out SQLite
+     * or to get a teams.yml back out of it. The copy happens off the main thread.
+     * @param target Where to copy to - can't be the store in use
+     * @return Completes with the number of teams copied
+     */
+    public CompletableFuture<Integer> exportTeams(StorageMode target) {
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        TeamStore targetStore;
+        try {
+            targetStore = openOtherStore(target);
+        } catch (IllegalArgumentException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+        
+        List<TeamSnapshot> snapshots = snapshotAll();
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+            try {
+                targetStore.saveAll(snapshots);
+                result.complete(snapshots.size());
+            } catch (IOException | RuntimeException e) {
+                plugin.getLogger().log(Level.SEVERE, "Could not export teams to " + targetStore.getName(), e);
+                result.completeExceptionally(e);
+            } finally {
+                targetStore.close();
             }
-            
-            // Save team color
-            if (team.getColor() != null) {
-                teamSection.set("color", team.getColor().name());
+        });
+        return result;
+    }
+    
+    /**
+     * Replaces all teams with the ones from another storage backend, then saves
+     * them to the store in use. Reading happens off the main thread, swapping the
+     * teams in happens back on it.
+     * @param source Where to copy from - can't be the store in use
+     * @return Completes (on the main thread) with the number of teams imported
+     */
+    public CompletableFuture<Integer> importTeams(StorageMode source) {
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        TeamStore sourceStore;
+        try {
+            sourceStore = openOtherStore(source);
+        } catch (IllegalArgumentException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+        
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+            List<TeamSnapshot> snapshots;
+            try {
+                if (!sourceStore.exists()) {
+                    throw new IOException("There's no " + sourceStore.getName() + " data to import");
+                }
+                snapshots = sourceStore.loadAll();
+            } catch (IOException | RuntimeException e) {
+                result.completeExceptionally(e);
+                return;
+            } finally {
+                sourceStore.close();
             }
             
-            // Save team level
-            teamSection.set("level", team.getLevel());
+            Bukkit.getScheduler().runTask(plugin, () -> {
+                // Teams that don't exist in the import need deleting from partial stores too
+                markAllDirty();
+                List<Team> oldTeams = new ArrayList<>(teams.values());
+                for (Team team : oldTeams) {
+                    team.setListener(null);
+                }
+                
+                loading = true;
+                try {
+                    loadSnapshots(snapshots);
+                } finally {
+                    loading = false;
+                }
+                for (Team team : oldTeams) {
+                    if (!teamIds.containsKey(team.getName().toLowerCase())) {
+                        unregisterScoreboardTeam(team);
+                    }
+                }
+                rehydrateScoreboard();
+                
+                // In JOURNAL mode this writes a fresh teams.yml that covers the whole journal
+                markAllDirty();
+                upgradedTeams.clear();
+                saveScheduler.markDirty();
+                saveScheduler.flushNow();
+                result.complete(teams.size());
+            });
+        });
+        return result;
+    }
+    
+    private TeamStore openOtherStore(StorageMode mode) {
+        TeamStore other = createStore(mode);
+        if (other == yamlStore) {
+            if (store == yamlStore) {
+                throw new IllegalArgumentException("teams.yml is the storage in use");
+            }
+            // Separate instance so reading it can't race with anything
+            return new YamlTeamStore(yamlStore.getFile(), plugin.getLogger());
+        }
+        if (mode == storageMode) {
+            throw new IllegalArgumentException(other.getName() + " is the storage in use");
+        }
+        if (mode == StorageMode.SQLITE && !SqliteTeamStore.isDriverAvailable()) {
+            throw new IllegalArgumentException("the SQLite driver isn't available");
         }
+        return other;
+    }
+    
+    private List<TeamSnapshot> snapshotAll() {
+        List<TeamSnapshot> snapshots = new ArrayList<>(teams.size());
+        for (Team team : teams.values()) {
+            snapshots.add(TeamSnapshot.of(team, inviteManager.getTeamInvites(team),
+                    allianceManager.getAllyIds(team.getId())));
+        }
+        return snapshots;
+    }
+    
+    /**
+     * Copies all team data on the main thread and returns the write to do off it
+     */
+    private SaveScheduler.PendingWrite snapshotTeams() {
+        if (store instanceof PartialTeamStore) {
+            return snapshotChangedTeams((PartialTeamStore) store);
+        }
+        dirtyTeams.clear();
         
-        // Save to file
-        try {
-            teamsConfig.save(teamsFile);
-        } catch (IOException e) {
-            plugin.getLogger().log(Level.SEVERE, "Could not save teams to " + teamsFile, e);
+        List<TeamSnapshot> snapshots = snapshotAll();
+        
+        // Everything in the journal so far is covered by this snapshot, so start a
+        // new segment and drop the old ones once the snapshot is on disk
+        long journalSeq = journal.getLastSeq();
+        List<File> sealedSegments = Collections.emptyList();
+        if (storageMode == StorageMode.JOURNAL) {
+            try {
+                sealedSegments = journal.rotate();
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.WARNING, "Could not rotate team journal, keeping old segments", e);
+            }
         }
+        
+        List<File> obsolete = sealedSegments;
+        return () -> {
+            yamlStore.writeAll(snapshots, journalSeq);
+            journal.deleteSegments(obsolete);
+        };
     }
-
+    
+    /**
+     * Copies only the teams that changed since the last save
+     */
+    private SaveScheduler.PendingWrite snapshotChangedTeams(PartialTeamStore partialStore) {
+        // If the write fails the ids are handed back and saved with the next one
+        return dirtyTeams.takeWrite(partialStore, id -> {
+            Team team = teams.get(id);
+            return team != null ? TeamSnapshot.of(team, inviteManager.getTeamInvites(team),
+                    allianceManager.getAllyIds(id)) : null;
+        });
+    }
+    
     /**
      * Creates a new team
      * @param name Team name
      * @param owner Owner UUID
      * @return The created team, or null if a team with that name already exists
+     *         or the owner is already in a team
      */
     public Team createTeam(String name, UUID owner) {
-        if (teams.containsKey(name.toLowerCase())) {
+        if (teamIds.containsKey(name.toLowerCase())) {
             return null;
         }
         
         Team team = new Team(name, owner);
-        teams.put(name.toLowerCase(), team);
+        if (!playerIndex.claim(owner, team)) {
+            return null;
+        }
+        team.setListener(teamListener);
+        team.setId(nextTeamId++);
+        register(team);
+        markDirty(team);
+        if (storageMode == StorageMode.JOURNAL) {
+            journal.logCreateTeam(team.getName(), owner, team.getId());
+        }
         saveTeams();
         return team;
     }
-
+    
     /**
-     * Gets a team by name
-     * @param name Team name
+     * Gets a team by name. Meant for names players type in commands - once
+     * you've got the team, keep the Team or its id rather than the name
+     * @param name Team name, any case
      * @return The team, or null if not found
      */
     public Team getTeam(String name) {
-        return teams.get(name.toLowerCase());
+        Integer id = teamIds.get(name.toLowerCase());
+        return id != null ? teams.get(id) : null;
     }
-
+    
+    /**
+     * Gets a team by its id. Safe to call from any thread
+     * @return The team, or null if there's no team with that id (any more)
+     */
+    public Team getTeam(int id) {
+        return teams.get(id);
+    }
+    
     /**
      * Gets a player's team
      * @param playerId UUID of the player
      * @return The team the player is in, or null if not in a team
      */
     public Team getPlayerTeam(UUID playerId) {
-        for (Team team : teams.values()) {
-            if (team.isInTeam(playerId)) {
-                return team;
-            }
-        }
-        return null;
+        return playerIndex.get(playerId);
     }
-
+    
     /**
      * Removes a team
-     * @param name Team name
      */
-    public void removeTeam(String name) {
-        Team team = teams.remove(name.toLowerCase());
-        if (team != null) {
-            // Remove scoreboard team
-            org.bukkit.scoreboard.ScoreboardManager manager = Bukkit.getScoreboardManager();
-            if (manager != null) {
-                org.bukkit.scoreboard.Scoreboard scoreboard = manager.getMainScoreboard();
-                org.bukkit.scoreboard.Team scoreboardTeam = scoreboard.getTeam(team.getName());
-                if (scoreboardTeam != null) {
-                    scoreboardTeam.unregister();
-                }
+    public void removeTeam(Team team) {
+        if (teams.remove(team.getId(), team)) {
+            teamIds.remove(team.getName().toLowerCase(), team.getId());
+            playerIndex.releaseTeam(team);
+            inviteManager.clearTeam(team);
+            // Former allies still list this team until they're saved again
+            for (Team ally : allianceManager.clearTeam(team)) {
+                markDirty(ally);
+            }
+            team.setListener(null);
+            markDirty(team);
+            if (storageMode == StorageMode.JOURNAL && !loading) {
+                journal.logRemoveTeam(team.getId());
+            }
+            
+            unregisterScoreboardTeam(team);
+            
+            // Its chat history and waiting mail go with it, even if messages for it are still queued
+            if (plugin.getTeamChatManager() != null) {
+                plugin.getTeamChatManager().getHistory().delete(team);
+                plugin.getTeamChatManager().getAllyRecipients().invalidateAll();
+            }
+            if (plugin.getMailboxManager() != null) {
+                plugin.getMailboxManager().removeTeam(team.getId());
             }
             saveTeams();
         }
     }
-
+    
+    /**
+     * Removes a team's scoreboard team
+     */
+    private void unregisterScoreboardTeam(Team team) {
+        org.bukkit.scoreboard.ScoreboardManager manager = Bukkit.getScoreboardManager();
+        if (manager != null) {
+            org.bukkit.scoreboard.Scoreboard scoreboard = manager.getMainScoreboard();
+            org.bukkit.scoreboard.Team scoreboardTeam = scoreboard.getTeam(team.getName());
+            if (scoreboardTeam != null) {
+                scoreboardTeam.unregister();
+            }
+        }
+    }
+    
+    /**
+     * Gets who's allied with who, for PvP checks
+     */
+    public TeamRelations getRelations() {
+        return allianceManager.getRelations();
+    }
+    
     /**
      * Gets all teams
      * @return Collection of all teams
@@ -268,21 +816,231 @@ public class TeamDataManager {
     public Collection<Team> getAllTeams() {
         return teams.values();
     }
-
+    
     /**
      * Gets a player's pending invites
      * @param playerId UUID of the player
      * @return List of teams the player has been invited to
      */
     public List<Team> getPlayerInvites(UUID playerId) {
-        List<Team> invites = new ArrayList<>();
+        return inviteManager.getInvites(playerId);
+    }
+    
+    /**
+     * Gets the invite manager - used by the invite and join commands
+     */
+    public InviteManager getInviteManager() {
+        return inviteManager;
+    }
+    
+    /**
+     * Gets the alliance manager - used by /team ally, ally chat and the PvP checks
+     */
+    public AllianceManager getAllianceManager() {
+        return allianceManager;
+    }
+
+    
+    // ------------- Change tracking -------------
+    
+    /**
+     * Keeps the player lookup in sync and writes changes to the journal
+     */
+    private class TeamChangeTracker implements TeamListener, InviteManager.Listener, AllianceManager.Listener {
         
-        for (Team team : teams.values()) {
-            if (team.hasInvite(playerId)) {
-                invites.add(team);
+        private boolean journaling() {
+            return storageMode == StorageMode.JOURNAL && !loading;
+        }
+        
+        @Override
+        public boolean onMemberAdded(Team team, UUID playerId) {
+            if (!playerIndex.claim(playerId, team)) {
+                return false;
+            }
+            markDirty(team);
+            if (journaling()) {
+                journal.logAddMember(team.getId(), playerId);
+            }
+            return true;
+        }
+        
+        @Override
+        public void onMemberRemoved(Team team, UUID playerId) {
+            playerIndex.release(playerId, team);
+            markDirty(team);
+            if (journaling()) {
+                journal.logRemoveMember(team.getId(), playerId);
+            }
+        }
+        
+        @Override
+        public void onRecruitPromoted(Team team, UUID playerId) {
+            markDirty(team);
+            if (journaling()) {
+                journal.logPromote(team.getId(), playerId);
+            }
+        }
+        
+        @Override
+        public void onSettingsChanged(Team team) {
+            markDirty(team);
+            if (!journaling()) return;
+            
+            String color = team.getColor() != null ? team.getColor().name() : null;
+            TeamHome home = team.getHome();
+            if (home != null) {
+                journal.logSettings(team.getId(), team.isPvpEnabled(), color, team.getLevel(),
+                        home.getWorld(), home.getX(), home.getY(), home.getZ(), home.getYaw(), home.getPitch());
+            } else {
+                journal.logSettings(team.getId(), team.isPvpEnabled(), color, team.getLevel(),
+                        null, 0, 0, 0, 0, 0);
+            }
+        }
+        
+        @Override
+        public void onInvited(InviteManager.Invite invite) {
+            markDirty(invite.getTeam());
+            if (journaling()) {
+                long expiresAt = invite.getExpiresAt() == Long.MAX_VALUE ? 0 : invite.getExpiresAt();
+                journal.logInvite(invite.getTeam().getId(), invite.getPlayerId(), expiresAt);
+            }
+        }
+        
+        @Override
+        public void onInviteRemoved(Team team, UUID playerId) {
+            markDirty(team);
+            if (journaling()) {
+                journal.logUninvite(team.getId(), playerId);
+            }
+        }
+        
+        @Override
+        public void onAllianceChanged(Team team, Team ally, boolean allied) {
+            // Both teams list the alliance when they're saved
+            markDirty(team);
+            markDirty(ally);
+            if (journaling()) {
+                journal.logAlliance(team.getId(), ally.getId(), allied);
+            }
+        }
+    }
+    
+    /**
+     * Re-applies journal records to the loaded teams
+     */
+    private class JournalReplayer implements TeamJournal.Replayer {
+        // Journal id -> id the team actually got, only if it couldn't keep its own
+        private final Map<Integer, Integer> movedIds = new HashMap<>();
+        
+        private Team team(int id) {
+            return teams.get(movedIds.getOrDefault(id, id));
+        }
+        
+        @Override
+        public void createTeam(String name, UUID owner, int id) {
+            if (teamIds.containsKey(name.toLowerCase())) return;
+            
+            Team team = new Team(name, owner);
+            if (!playerIndex.claim(owner, team)) {
+                plugin.getLogger().warning("Journal: skipping team " + name + ", owner is already in another team");
+                return;
+            }
+            team.setListener(teamListener);
+            team.setId(pickId(name, id));
+            if (team.getId() != id) {
+                upgradedTeams.add(team);
+                if (id != TeamSnapshot.NO_ID) {
+                    movedIds.put(id, team.getId());
+                }
+            }
+            register(team);
+        }
+        
+        @Override
+        public int resolveTeamId(String name) {
+            Integer id = teamIds.get(name.toLowerCase());
+            return id != null ? id : TeamSnapshot.NO_ID;
+        }
+        
+        @Override
+        public void removeTeam(int id) {
+            Team team = team(id);
+            if (team != null) {
+                TeamDataManager.this.removeTeam(team);
+            }
+        }
+        
+        @Override
+        public void addMember(int id, UUID playerId) {
+            Team team = team(id);
+            if (team != null && !team.isInTeam(playerId) && addLoadedMember(team, playerId)) {
+                inviteManager.clearPlayer(playerId);
+            }
+        }
+        
+        @Override
+        public void removeMember(int id, UUID playerId) {
+            Team team = team(id);
+            if (team != null) {
+                team.removeMember(playerId);
+            }
+        }
+        
+        @Override
+        public void promote(int id, UUID playerId) {
+            Team team = team(id);
+            if (team != null) {
+                team.promoteToRecruit(playerId);
+            }
+        }
+        
+        @Override
+        public void settings(int id, boolean pvpEnabled, String color, int level,
+                             String homeWorld, double x, double y, double z, float yaw, float pitch) {
+            Team team = team(id);
+            if (team == null) return;
+            
+            team.setPvpEnabled(pvpEnabled);
+            if (color != null) {
+                try {
+                    team.setColor(ChatColor.valueOf(color));
+                } catch (IllegalArgumentException e) {
+                    // Invalid color name, stick with what we have
+                }
             }
+            team.setLevel(level);
+            
+            team.setHome(homeWorld != null ? new TeamHome(homeWorld, x, y, z, yaw, pitch) : null);
         }
         
-        return invites;
+        @Override
+        public void invite(int id, UUID playerId, long expiresAt) {
+            Team team = team(id);
+            if (team != null) {
+                inviteManager.restore(team, playerId, expiresAt > 0 ? expiresAt : Long.MAX_VALUE);
+            }
+        }
+        
+        @Override
+        public void uninvite(int id, UUID playerId) {
+            Team team = team(id);
+            if (team != null) {
+                inviteManager.removeInvite(team, playerId);
+            }
+        }
+        
+        @Override
+        public void alliance(int id, int allyId, boolean allied) {
+            Team team = team(id);
+            Team ally = team(allyId);
+            if (team == null || ally == null) return;
+            
+            if (allied) {
+                allianceManager.restore(team, ally);
+                allianceManager.publish();
+            } else {
+                allianceManager.breakAlliance(team, ally);
+            }
+        }
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,87 @@
+package com.darkangel.teammanager.managers;
+
+import com.darkangel.teammanager.models.Team;
+
+/**
+ * How two teams relate to each other, answered in O(1) for PvP checks.
+ * Alliances are kept as a flat hash set of team id pairs, rebuilt as a
+ * whole when an alliance changes (which is rare) and swapped in, so the
+ * damage events never lock or walk any alliance strings.
+ *
+ * Membership and PvP settings aren't copied in here - they're read straight
+ * from the player index and the team, so they can't go stale.
+ */
+public class TeamRelations {
+
+    public enum Relation {
+        /** One of the players isn't in a team */
+        NONE,
+        SAME_TEAM,
+        ALLIED,
+        NEUTRAL
+    }
+
+    // Open addressing, 0 = empty slot. Never changed after it's published
+    private volatile long[] alliedPairs = new long[1];
+
+    /**
+     * Works out how two teams relate
+     * @param first Can be null for "not in a team"
+     * @param second Can be null for "not in a team"
+     */
+    public Relation get(Team first, Team second) {
+        if (first == null || second == null) return Relation.NONE;
+        if (first == second) return Relation.SAME_TEAM;
+        return areAllied(first.getId(), second.getId()) ? Relation.ALLIED : Relation.NEUTRAL;
+    }
+
+    /**
+     * Checks if two teams (by id) are allied
+     */
+    public boolean areAllied(int first, int second) {
+        long[] table = alliedPairs;
+        long key = pairKey(first, second);
+        int mask = table.length - 1;
+        for (int slot = mix(key) & mask; ; slot = (slot + 1) & mask) {
+            long entry = table[slot];
+            if (entry == key) return true;
+            if (entry == 0) return false;
+        }
+    }
+
+    /**
+     * Replaces every alliance
+     * @param pairs Allied team ids, two per pair: {a1, b1, a2, b2, ...}
+     */
+    public void setAlliances(int[] pairs) {
+        int count = pairs.length / 2;
+        // At most half full so lookups stay short, and always a power of two
+        int capacity = Integer.highestOneBit(Math.max(1, count) * 4 - 1) << 1;
+        long[] table = new long[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i + 1 < pairs.length; i += 2) {
+            if (pairs[i] == pairs[i + 1]) continue;
+            long key = pairKey(pairs[i], pairs[i + 1]);
+            int slot = mix(key) & mask;
+            while (table[slot] != 0 && table[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = key;
+        }
+        alliedPairs = table;
+    }
+
+    /**
+     * Same key whichever way round the teams are. Ids start at 1 so a key is never 0
+     */
+    private static long pairKey(int first, int second) {
+        int low = Math.min(first, second);
+        int high = Math.max(first, second);
+        return ((long) high << 32) | (low & 0xFFFFFFFFL);
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
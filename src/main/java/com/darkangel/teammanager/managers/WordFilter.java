@@ -0,0 +1,367 @@
+package com.darkangel.teammanager.managers;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Compiled blocklist - finds every listed term in a message in one pass, no
+ * matter how many terms there are (Aho-Corasick, flattened into a lookup table
+ * so each character is a single array read).
+ *
+ * Text is normalized before it's scanned: lowercase, common look-alikes
+ * (0 -> o, 1 -> i, @ -> a, ...) mapped back to letters, and punctuation inside
+ * a word skipped, so "B.a.D" and "b4d" both match "bad". Whitespace is a word
+ * break, so terms don't match across words ("this hit" isn't "shit"), except
+ * between single characters - "b a d" is spelled out, so it still matches.
+ *
+ * Immutable once built, so any thread can use it and a reload just swaps in a new one.
+ */
+public final class WordFilter {
+
+    /**
+     * What to do with a message containing a term, in order of how strict it is
+     */
+    public enum Action {
+        NONE, LOG, MASK, BLOCK
+    }
+
+    /**
+     * What a check found
+     */
+    public static final class Result {
+        private final Action action;
+        private final String text;
+        private final List<String> matches;
+
+        Result(Action action, String text, List<String> matches) {
+            this.action = action;
+            this.text = text;
+            this.matches = matches;
+        }
+
+        /**
+         * @return The strictest action of any term found, NONE if nothing was
+         */
+        public Action getAction() {
+            return action;
+        }
+
+        /**
+         * @return The message with MASK and BLOCK terms starred out
+         */
+        public String getText() {
+            return text;
+        }
+
+        /**
+         * @return The (normalized) terms that were found
+         */
+        public List<String> getMatches() {
+            return matches;
+        }
+    }
+
+    public static final WordFilter EMPTY = new Builder().build();
+
+    private static final Action[] ACTIONS = Action.values();
+
+    // Normalized char -> column in the table, chars not in any term aren't in here
+    private final Map<Character, Integer> alphabet;
+    // Same for plain ascii, so the common case skips the map
+    private final int[] asciiColumns;
+    private final int columns;
+    // next state = table[state * columns + column]
+    private final int[] table;
+    // Per state: strictest action of any term ending here (or in a suffix of it)
+    private final byte[] actions;
+    // Per state: length of the longest MASK/BLOCK term ending here, for starring it out
+    private final int[] maskLengths;
+    // Per state: longest term of any kind ending here, for logging
+    private final String[] terms;
+    private final int termCount;
+
+    private WordFilter(Map<Character, Integer> alphabet, int[] asciiColumns, int columns, int[] table,
+                       byte[] actions, int[] maskLengths, String[] terms, int termCount) {
+        this.alphabet = alphabet;
+        this.asciiColumns = asciiColumns;
+        this.columns = columns;
+        this.table = table;
+        this.actions = actions;
+        this.maskLengths = maskLengths;
+        this.terms = terms;
+        this.termCount = termCount;
+    }
+
+    /**
+     * @return How many terms this was built from
+     */
+    public int size() {
+        return termCount;
+    }
+
+    /**
+     * Checks a message for listed terms
+     */
+    public Result check(String text) {
+        if (termCount == 0) {
+            return new Result(Action.NONE, text, Collections.emptyList());
+        }
+
+        char[] normalized = new char[text.length()];
+        // Where each normalized char came from, so masks can be put back in the original text
+        int[] origin = new int[text.length()];
+        int length = normalize(text, normalized, origin);
+        int state = 0;
+        Action worst = Action.NONE;
+        List<String> matches = null;
+        char[] masked = null;
+
+        for (int n = 0; n < length; n++) {
+            // A space only has a column if some term has one, otherwise it's back to the start
+            int column = column(normalized[n]);
+            state = column < 0 ? 0 : table[state * columns + column];
+
+            Action action = ACTIONS[actions[state]];
+            if (action == Action.NONE) continue;
+
+            if (action.compareTo(worst) > 0) {
+                worst = action;
+            }
+            if (matches == null) {
+                matches = new ArrayList<>(2);
+            }
+            if (!matches.contains(terms[state])) {
+                matches.add(terms[state]);
+            }
+
+            int maskLength = maskLengths[state];
+            if (maskLength > 0) {
+                if (masked == null) {
+                    masked = text.toCharArray();
+                }
+                int start = origin[n + 1 - maskLength];
+                for (int j = start; j <= origin[n]; j++) {
+                    if (!Character.isWhitespace(masked[j])) {
+                        masked[j] = '*';
+                    }
+                }
+            }
+        }
+
+        return new Result(worst, masked != null ? new String(masked) : text,
+                matches != null ? matches : Collections.emptyList());
+    }
+
+    private int column(char c) {
+        if (c < 128) return asciiColumns[c];
+        Integer column = alphabet.get(c);
+        return column != null ? column : -1;
+    }
+
+    /**
+     * Lowercases and undoes common look-alikes
+     * @return The char to match on, or 0 to skip it
+     */
+    static char normalize(char c) {
+        switch (c) {
+            case '0': return 'o';
+            case '1': case '!': case '|': return 'i';
+            case '3': return 'e';
+            case '4': case '@': return 'a';
+            case '5': case '$': return 's';
+            case '7': case '+': return 't';
+            case '8': return 'b';
+            default:
+                if (Character.isLetterOrDigit(c)) {
+                    return Character.toLowerCase(c);
+                }
+                return 0;
+        }
+    }
+
+    /**
+     * Normalizes text for matching. Each run of whitespace becomes one space,
+     * or nothing if it's between two single characters (a spelled-out "b a d")
+     * @param out Gets the normalized chars, needs to be as long as the text
+     * @param origin Gets where each normalized char came from in the text
+     * @return How many chars were written
+     */
+    static int normalize(String text, char[] out, int[] origin) {
+        int length = 0;
+        // Normalized chars in the current word so far
+        int wordLength = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (Character.isWhitespace(text.charAt(i))) {
+                int start = i;
+                while (i + 1 < text.length() && Character.isWhitespace(text.charAt(i + 1))) {
+                    i++;
+                }
+                if (wordLength != 1 || wordLengthAt(text, i + 1) != 1) {
+                    out[length] = ' ';
+                    origin[length++] = start;
+                }
+                wordLength = 0;
+                continue;
+            }
+
+            char c = normalize(text.charAt(i));
+            if (c == 0) continue; // punctuation inside a word is skipped, not a break
+
+            out[length] = c;
+            origin[length++] = i;
+            wordLength++;
+        }
+        return length;
+    }
+
+    /**
+     * @return How many normalized chars the word starting here has, but only counts up to 2
+     */
+    private static int wordLengthAt(String text, int from) {
+        int count = 0;
+        for (int i = from; i < text.length() && count < 2; i++) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) break;
+            if (normalize(c) != 0) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Normalizes a whole term the same way messages are
+     */
+    static String normalize(String term) {
+        char[] out = new char[term.length()];
+        int length = normalize(term, out, new int[term.length()]);
+        return new String(out, 0, length).trim();
+    }
+
+    /**
+     * Collects terms and compiles them into a WordFilter
+     */
+    public static final class Builder {
+        private final Map<String, Action> terms = new HashMap<>();
+
+        /**
+         * Adds a term - if it's added twice the stricter action wins
+         */
+        public Builder add(String term, Action action) {
+            String normalized = normalize(term);
+            if (normalized.isEmpty() || action == Action.NONE) return this;
+
+            Action existing = terms.get(normalized);
+            if (existing == null || action.compareTo(existing) > 0) {
+                terms.put(normalized, action);
+            }
+            return this;
+        }
+
+        public WordFilter build() {
+            // Alphabet: every distinct char used in a term
+            Map<Character, Integer> alphabet = new HashMap<>();
+            int[] asciiColumns = new int[128];
+            Arrays.fill(asciiColumns, -1);
+            for (String term : terms.keySet()) {
+                for (int i = 0; i < term.length(); i++) {
+                    char c = term.charAt(i);
+                    if (!alphabet.containsKey(c)) {
+                        int column = alphabet.size();
+                        alphabet.put(c, column);
+                        if (c < 128) {
+                            asciiColumns[c] = column;
+                        }
+                    }
+                }
+            }
+            int columns = Math.max(1, alphabet.size());
+
+            // Trie first, -1 = no edge yet
+            List<int[]> edges = new ArrayList<>();
+            List<Action> nodeActions = new ArrayList<>();
+            List<String> nodeTerms = new ArrayList<>();
+            edges.add(newRow(columns));
+            nodeActions.add(Action.NONE);
+            nodeTerms.add(null);
+
+            for (Map.Entry<String, Action> entry : terms.entrySet()) {
+                String term = entry.getKey();
+                int node = 0;
+                for (int i = 0; i < term.length(); i++) {
+                    int column = alphabet.get(term.charAt(i));
+                    int next = edges.get(node)[column];
+                    if (next < 0) {
+                        next = edges.size();
+                        edges.add(newRow(columns));
+                        nodeActions.add(Action.NONE);
+                        nodeTerms.add(null);
+                        edges.get(node)[column] = next;
+                    }
+                    node = next;
+                }
+                nodeActions.set(node, entry.getValue());
+                nodeTerms.set(node, term);
+            }
+
+            int states = edges.size();
+            int[] table = new int[states * columns];
+            int[] fail = new int[states];
+            byte[] actions = new byte[states];
+            int[] maskLengths = new int[states];
+            String[] termAt = new String[states];
+
+            // Breadth first, so a state's fail link is always finished before the state itself
+            Queue<Integer> queue = new ArrayDeque<>();
+            for (int column = 0; column < columns; column++) {
+                int child = edges.get(0)[column];
+                if (child > 0) {
+                    fail[child] = 0;
+                    table[column] = child;
+                    queue.add(child);
+                } else {
+                    table[column] = 0;
+                }
+            }
+
+            while (!queue.isEmpty()) {
+                int state = queue.poll();
+                int failState = fail[state];
+
+                // Outputs: this state's own term, plus whatever its fail state matches
+                Action own = nodeActions.get(state);
+                Action inherited = ACTIONS[actions[failState]];
+                actions[state] = (byte) (own.compareTo(inherited) >= 0 ? own : inherited).ordinal();
+                String ownTerm = nodeTerms.get(state);
+                termAt[state] = ownTerm != null ? ownTerm : termAt[failState];
+                maskLengths[state] = ownTerm != null && own.compareTo(Action.MASK) >= 0
+                        ? ownTerm.length() : maskLengths[failState];
+
+                int[] row = edges.get(state);
+                for (int column = 0; column < columns; column++) {
+                    int child = row[column];
+                    if (child > 0) {
+                        fail[child] = table[failState * columns + column];
+                        table[state * columns + column] = child;
+                        queue.add(child);
+                    } else {
+                        table[state * columns + column] = table[failState * columns + column];
+                    }
+                }
+            }
+
+            return new WordFilter(alphabet, asciiColumns, columns, table, actions, maskLengths, termAt,
+                    terms.size());
+        }
+
+        private static int[] newRow(int columns) {
+            int[] row = new int[columns];
+            Arrays.fill(row, -1);
+            return row;
+        }
+    }
+}
@@ -1,70 +1,90 @@
 package com.darkangel.teammanager.models;
 
+import com.darkangel.teammanager.util.UuidSet;
 import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
 import org.bukkit.Location;
-import org.bukkit.World;
 import org.bukkit.entity.Player;
 import org.bukkit.scoreboard.Scoreboard;
 import org.bukkit.scoreboard.ScoreboardManager;
 import org.bukkit.configuration.serialization.ConfigurationSerializable;
 
+import java.util.AbstractSet;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
+/**
+ * A team and its members.
+ *
+ * Changes are made on the main thread, but chat (and anything else async) reads
+ * teams from other threads. Who's in the team is kept in an immutable Membership
+ * that gets replaced as a whole on every change, so a reader on any thread just
+ * grabs the current one and can't see a half-done change, with no locks or copies.
+ * The settings are volatile for the same reason.
+ */
 public class Team implements ConfigurationSerializable {
-    private String name;
-    private UUID owner;
-    private Set<UUID> members;
-    private Set<UUID> recruits;
-    private Set<UUID> invites;
-    private boolean pvpEnabled;
-    private ChatColor color;
-    private Location homeLocation;
-    private int level;
+    private final String name;
+    private volatile Membership membership;
+    private volatile boolean pvpEnabled;
+    private volatile ChatColor color;
+    private volatile TeamHome home; // saved world name + coords, the world might not be loaded
+    private Location resolvedHome; // cached Location for home, null until it's needed (main thread only)
+    private volatile int level;
+    
+    // Small number for this team, for lookups that happen a lot (like PvP checks).
+    // Handed out by TeamDataManager when the team is loaded or created
+    private int id;
+    
+    // Keeps TeamDataManager's lookups and save journal in sync, not saved
+    private TeamListener listener;
+    
+    // Members who are online right now, kept up to date by join/quit and membership
+    // changes. Concurrent because team chat reads it off the main thread
+    private final Map<UUID, Player> onlineMembers = new ConcurrentHashMap<>();
+    // Goes up after every change to onlineMembers so caches built from it can tell they're stale
+    private volatile int onlineVersion;
     
     // Constructor
     public Team(String name, UUID owner) {
         this.name = name;
-        this.owner = owner;
-        this.members = new HashSet<>();
-        this.recruits = new HashSet<>();
-        this.invites = new HashSet<>();
+        this.membership = new Membership(owner, Collections.emptySet(), Collections.emptySet());
         this.pvpEnabled = false;
         this.color = ChatColor.WHITE; // Default color
         this.level = 1; // Default level
+        trackIfOnline(owner);
     }
     
     // Constructor from serialized map
     @SuppressWarnings("unchecked")
     public Team(Map<String, Object> map) {
         this.name = (String) map.get("name");
-        this.owner = UUID.fromString((String) map.get("owner"));
+        UUID owner = UUID.fromString((String) map.get("owner"));
         
         // Convert member UUIDs from strings
         List<String> memberStrings = (List<String>) map.get("members");
-        this.members = memberStrings.stream()
+        Set<UUID> members = memberStrings.stream()
                 .map(UUID::fromString)
                 .collect(Collectors.toSet());
         
         // Convert recruit UUIDs from strings
         List<String> recruitStrings = (List<String>) map.getOrDefault("recruits", new ArrayList<>());
-        this.recruits = recruitStrings.stream()
+        Set<UUID> recruits = recruitStrings.stream()
                 .map(UUID::fromString)
                 .collect(Collectors.toSet());
+        this.membership = new Membership(owner, members, recruits);
         
-        // Convert invite UUIDs from strings
-        List<String> inviteStrings = (List<String>) map.getOrDefault("invites", new ArrayList<>());
-        this.invites = inviteStrings.stream()
-                .map(UUID::fromString)
-                .collect(Collectors.toSet());
+        // Invites aren't part of the team anymore, see InviteManager
         
         this.pvpEnabled = map.containsKey("pvp") ? (Boolean) map.get("pvp") : false;
         
@@ -79,44 +99,43 @@ public class Team implements ConfigurationSerializable {
         if (map.containsKey("home")) {
             Map<String, Object> homeMap = (Map<String, Object>) map.get("home");
             String worldName = (String) homeMap.get("world");
-            World world = Bukkit.getWorld(worldName);
             
-            if (world != null) {
+            // Kept even if the world isn't loaded yet, it gets resolved when it's needed
+            if (worldName != null) {
                 double x = (Double) homeMap.get("x");
                 double y = (Double) homeMap.get("y");
                 double z = (Double) homeMap.get("z");
                 float yaw = ((Double) homeMap.getOrDefault("yaw", 0.0)).floatValue();
                 float pitch = ((Double) homeMap.getOrDefault("pitch", 0.0)).floatValue();
                 
-                this.homeLocation = new Location(world, x, y, z, yaw, pitch);
+                this.home = new TeamHome(worldName, x, y, z, yaw, pitch);
             }
         }
+        
+        for (UUID playerId : getAllMembers()) {
+            trackIfOnline(playerId);
+        }
     }
     
     @Override
     public Map<String, Object> serialize() {
         Map<String, Object> map = new HashMap<>();
+        Membership current = membership;
         map.put("name", name);
-        map.put("owner", owner.toString());
+        map.put("owner", current.getOwner().toString());
         
         // Convert member UUIDs to strings
-        List<String> memberStrings = members.stream()
+        List<String> memberStrings = current.getMembers().stream()
                 .map(UUID::toString)
                 .collect(Collectors.toList());
         map.put("members", memberStrings);
         
         // Convert recruit UUIDs to strings
-        List<String> recruitStrings = recruits.stream()
+        List<String> recruitStrings = current.getRecruits().stream()
                 .map(UUID::toString)
                 .collect(Collectors.toList());
         map.put("recruits", recruitStrings);
         
-        // Convert invite UUIDs to strings
-        List<String> inviteStrings = invites.stream()
-                .map(UUID::toString)
-                .collect(Collectors.toList());
-        map.put("invites", inviteStrings);
-        
         map.put("pvp", pvpEnabled);
         
         // Save team color
@@ -126,14 +145,14 @@ public class Team implements ConfigurationSerializable {
         map.put("level", level);
         
         // Save home location
-        if (homeLocation != null) {
+        if (home != null) {
             Map<String, Object> homeMap = new HashMap<>();
-            homeMap.put("world", homeLocation.getWorld().getName());
-            homeMap.put("x", homeLocation.getX());
-            homeMap.put("y", homeLocation.getY());
-            homeMap.put("z", homeLocation.getZ());
-            homeMap.put("yaw", (double) homeLocation.getYaw());
-            homeMap.put("pitch", (double) homeLocation.getPitch());
+            homeMap.put("world", home.getWorld());
+            homeMap.put("x", home.getX());
+            homeMap.put("y", home.getY());
+            homeMap.put("z", home.getZ());
+            homeMap.put("yaw", (double) home.getYaw());
+            homeMap.put("pitch", (double) home.getPitch());
             
             map.put("home", homeMap);
         }
@@ -148,7 +167,15 @@ public class Team implements ConfigurationSerializable {
         ScoreboardManager manager = Bukkit.getScoreboardManager();
         if (manager == null) return;
         
-        Scoreboard scoreboard = manager.getMainScoreboard();
+        getOrCreateScoreboardTeam(manager.getMainScoreboard()).addEntry(player.getName());
+    }
+    
+    /**
+     * Gets this team's scoreboard team, creating it if it doesn't exist yet
+     * @param scoreboard The scoreboard to use (so callers doing lots of teams only fetch it once)
+     * @return The scoreboard team
+     */
+    public org.bukkit.scoreboard.Team getOrCreateScoreboardTeam(Scoreboard scoreboard) {
         org.bukkit.scoreboard.Team scoreboardTeam = scoreboard.getTeam(name);
         
         if (scoreboardTeam == null) {
@@ -158,8 +185,7 @@ public class Team implements ConfigurationSerializable {
             scoreboardTeam.setColor(color);
             scoreboardTeam.setPrefix(color + "[" + name + "] ");
         }
-        
-        scoreboardTeam.addEntry(player.getName());
+        return scoreboardTeam;
     }
     
     /**
@@ -184,31 +210,116 @@ public class Team implements ConfigurationSerializable {
         return name;
     }
     
+    public int getId() {
+        return id;
+    }
+    
+    public void setId(int id) {
+        this.id = id;
+    }
+    
     public UUID getOwner() {
-        return owner;
+        return membership.getOwner();
     }
     
+    /**
+     * Gets who's in the team right now. Safe to use from any thread, and it
+     * won't change under you - grab it once if you need several of its sets to agree
+     */
+    public Membership getMembership() {
+        return membership;
+    }
+    
+    /**
+     * @return Read-only, doesn't change if the team does
+     */
     public Set<UUID> getMembers() {
-        return new HashSet<>(members);
+        return membership.getMembers();
     }
     
+    /**
+     * @return Read-only, doesn't change if the team does
+     */
     public Set<UUID> getRecruits() {
-        return new HashSet<>(recruits);
+        return membership.getRecruits();
     }
     
+    /**
+     * @return Owner, members and recruits. Read-only, doesn't change if the team does
+     */
     public Set<UUID> getAllMembers() {
-        Set<UUID> allMembers = new HashSet<>();
-        allMembers.add(owner);
-        allMembers.addAll(members);
-        allMembers.addAll(recruits);
-        return allMembers;
+        return membership.getAll();
+    }
+    
+    /**
+     * @return Everyone in the team, owner included
+     */
+    public int size() {
+        return membership.size();
+    }
+    
+    /**
+     * Runs something for everyone in the team (owner, recruiters, then members)
+     * without building a set of them first
+     */
+    public void forEachMember(Consumer<? super UUID> action) {
+        membership.forEach(action);
     }
     
+    /**
+     * Gets the members who are online. This is a live read-only view, not a copy.
+     */
     public Collection<Player> getOnlineMembers() {
-        return getAllMembers().stream()
-                .map(Bukkit::getPlayer)
-                .filter(p -> p != null && p.isOnline())
-                .collect(Collectors.toList());
+        return Collections.unmodifiableCollection(onlineMembers.values());
+    }
+    
+    /**
+     * Gets the members who aren't online, e.g. to keep team chat for them
+     */
+    public List<UUID> getOfflineMembers() {
+        List<UUID> offline = new ArrayList<>();
+        forEachMember(playerId -> {
+            if (!onlineMembers.containsKey(playerId)) {
+                offline.add(playerId);
+            }
+        });
+        return offline;
+    }
+    
+    /**
+     * Marks a member as online - called when they join
+     */
+    public void setOnline(Player player) {
+        if (isInTeam(player.getUniqueId())) {
+            onlineMembers.put(player.getUniqueId(), player);
+            onlineVersion++;
+        }
+    }
+    
+    /**
+     * Marks a member as offline - called when they quit
+     */
+    public void setOffline(UUID playerId) {
+        if (onlineMembers.remove(playerId) != null) {
+            onlineVersion++;
+        }
+    }
+    
+    /**
+     * Changes whenever a member comes online or goes offline (only ever changed on the main thread)
+     */
+    public int getOnlineVersion() {
+        return onlineVersion;
+    }
+    
+    private Player trackIfOnline(UUID playerId) {
+        Player player = Bukkit.getPlayer(playerId);
+        if (player != null && player.isOnline()) {
+            onlineMembers.put(playerId, player);
+            onlineVersion++;
+            return player;
+        }
+        return null;
     }
     
     public boolean isPvpEnabled() {
@@ -217,6 +328,7 @@ public class Team implements ConfigurationSerializable {
     
     public void setPvpEnabled(boolean pvpEnabled) {
         this.pvpEnabled = pvpEnabled;
+        settingsChanged();
         
         // Update scoreboard team
         ScoreboardManager manager = Bukkit.getScoreboardManager();
@@ -236,14 +348,45 @@ public class Team implements ConfigurationSerializable {
     
     public void setColor(ChatColor color) {
         this.color = color;
+        settingsChanged();
     }
     
+    /**
+     * Gets the home as a Location, resolving it the first time it's needed
+     * @return The home, or null if there's no home or its world isn't loaded
+     */
     public Location getHomeLocation() {
-        return homeLocation;
+        if (resolvedHome == null && home != null) {
+            resolvedHome = home.toLocation();
+        }
+        return resolvedHome;
     }
     
     public void setHomeLocation(Location homeLocation) {
-        this.homeLocation = homeLocation;
+        this.home = TeamHome.of(homeLocation);
+        this.resolvedHome = home != null ? homeLocation.clone() : null;
+        settingsChanged();
+    }
+    
+    /**
+     * Gets the saved home, whether or not its world is loaded
+     * @return The home, or null if there's no home set
+     */
+    public TeamHome getHome() {
+        return home;
+    }
+    
+    public void setHome(TeamHome home) {
+        this.home = home;
+        this.resolvedHome = null;
+        settingsChanged();
+    }
+    
+    /**
+     * Forgets the cached home Location, e.g. when its world unloads
+     */
+    public void clearResolvedHome() {
+        resolvedHome = null;
     }
     
     public int getLevel() {
@@ -254,6 +397,13 @@ public class Team implements ConfigurationSerializable {
         if (level < 1) level = 1;
         if (level > 10) level = 10;
         this.level = level;
+        settingsChanged();
+    }
+    
+    private void settingsChanged() {
+        if (listener != null) {
+            listener.onSettingsChanged(this);
+        }
     }
     
     public int getMaxMembers() {
@@ -264,31 +414,67 @@ public class Team implements ConfigurationSerializable {
     // Team membership methods
     
     public boolean isOwner(UUID playerId) {
-        return owner.equals(playerId);
+        return membership.getOwner().equals(playerId);
     }
     
     public boolean isInTeam(UUID playerId) {
-        return isOwner(playerId) || members.contains(playerId) || recruits.contains(playerId);
+        return membership.getAll().contains(playerId);
     }
     
     public boolean isRecruit(UUID playerId) {
-        return recruits.contains(playerId);
+        return membership.getRecruits().contains(playerId);
     }
     
-    public void addMember(UUID playerId) {
-        members.add(playerId);
-        invites.remove(playerId);
+    /**
+     * Sets who gets notified when this team changes
+     */
+    public void setListener(TeamListener listener) {
+        this.listener = listener;
+    }
+    
+    /**
+     * Adds a player as a regular member
+     * @return false if the player is already in this team or another one
+     */
+    public boolean addMember(UUID playerId) {
+        // Already here - nothing changed, so nothing to tell the listener (it'd save and journal it again)
+        if (membership.getAll().contains(playerId)) {
+            return false;
+        }
+        if (listener != null && !listener.onMemberAdded(this, playerId)) {
+            return false;
+        }
+        
+        synchronized (this) {
+            Membership current = membership;
+            if (!current.getAll().contains(playerId)) {
+                membership = current.withMember(playerId);
+            }
+        }
         
         // Add player to scoreboard team if online
-        Player player = Bukkit.getPlayer(playerId);
-        if (player != null && player.isOnline()) {
+        Player player = trackIfOnline(playerId);
+        if (player != null) {
             addPlayerToScoreboardTeam(player);
         }
+        return true;
     }
     
     public void removeMember(UUID playerId) {
-        members.remove(playerId);
-        recruits.remove(playerId);
+        boolean removed;
+        synchronized (this) {
+            Membership current = membership;
+            removed = current.getMembers().contains(playerId) || current.getRecruits().contains(playerId);
+            if (removed) {
+                membership = current.without(playerId);
+            }
+        }
+        if (removed && listener != null) {
+            listener.onMemberRemoved(this, playerId);
+        }
+        if (onlineMembers.remove(playerId) != null) {
+            onlineVersion++;
+        }
         
         // Remove player from scoreboard team if online
         Player player = Bukkit.getPlayer(playerId);
@@ -306,22 +492,174 @@ public class Team implements ConfigurationSerializable {
     }
     
     public boolean promoteToRecruit(UUID playerId) {
-        if (members.remove(playerId)) {
-            recruits.add(playerId);
-            return true;
+        // Player stays in the same team, so the lookup doesn't change
+        synchronized (this) {
+            Membership current = membership;
+            if (!current.getMembers().contains(playerId)) {
+                return false;
+            }
+            membership = current.withRecruit(playerId);
         }
-        return false;
-    }
-    
-    public void invitePlayer(UUID playerId) {
-        invites.add(playerId);
-    }
-    
-    public boolean hasInvite(UUID playerId) {
-        return invites.contains(playerId);
+        if (listener != null) {
+            listener.onRecruitPromoted(this, playerId);
+        }
+        return true;
     }
     
-    public void removeInvite(UUID playerId) {
-        invites.remove(playerId);
+    /**
+     * Who's in a team at one point in time. Never changes once it's made, a change
+     * to the team makes a new one instead.
+     *
+     * Members and recruits are UuidSets (two longs per player in a flat array),
+     * not HashSets of boxed UUIDs - a lot smaller with many teams loaded.
+     */
+    public static final class Membership {
+        private final UUID owner;
+        private final UuidSet memberIds;
+        private final UuidSet recruitIds;
+        // Read-only views handed out to callers
+        private final Set<UUID> members;
+        private final Set<UUID> recruits;
+        private final Set<UUID> all;
+        
+        Membership(UUID owner, Collection<UUID> members, Collection<UUID> recruits) {
+            this(owner, new UuidSet(members), new UuidSet(recruits));
+        }
+        
+        private Membership(UUID owner, UuidSet memberIds, UuidSet recruitIds) {
+            this.owner = owner;
+            this.memberIds = memberIds;
+            this.recruitIds = recruitIds;
+            this.members = Collections.unmodifiableSet(memberIds);
+            this.recruits = Collections.unmodifiableSet(recruitIds);
+            this.all = new AllMembers();
+        }
+        
+        Membership withMember(UUID playerId) {
+            UuidSet newMembers = new UuidSet(memberIds);
+            newMembers.add(playerId);
+            return new Membership(owner, newMembers, recruitIds);
+        }
+        
+        Membership withRecruit(UUID playerId) {
+            UuidSet newMembers = new UuidSet(memberIds);
+            UuidSet newRecruits = new UuidSet(recruitIds);
+            newMembers.remove(playerId);
+            newRecruits.add(playerId);
+            return new Membership(owner, newMembers, newRecruits);
+        }
+        
+        Membership without(UUID playerId) {
+            UuidSet newMembers = memberIds;
+            UuidSet newRecruits = recruitIds;
+            if (memberIds.contains(playerId)) {
+                newMembers = new UuidSet(memberIds);
+                newMembers.remove(playerId);
+            }
+            if (recruitIds.contains(playerId)) {
+                newRecruits = new UuidSet(recruitIds);
+                newRecruits.remove(playerId);
+            }
+            return new Membership(owner, newMembers, newRecruits);
+        }
+        
+        public UUID getOwner() {
+            return owner;
+        }
+        
+        public Set<UUID> getMembers() {
+            return members;
+        }
+        
+        public Set<UUID> getRecruits() {
+            return recruits;
+        }
+        
+        /**
+         * @return Owner, members and recruits
+         */
+        public Set<UUID> getAll() {
+            return all;
+        }
+        
+        /**
+         * @return How many regular members there are (not counting the owner or recruiters)
+         */
+        public int memberCount() {
+            return memberIds.size();
+        }
+        
+        /**
+         * @return How many recruiters there are
+         */
+        public int recruitCount() {
+            return recruitIds.size();
+        }
+        
+        /**
+         * @return Everyone in the team, owner included
+         */
+        public int size() {
+            return 1 + memberIds.size() + recruitIds.size();
+        }
+        
+        /**
+         * Owner first, then recruiters, then members
+         */
+        public void forEach(Consumer<? super UUID> action) {
+            action.accept(owner);
+            recruitIds.forEach(action);
+            memberIds.forEach(action);
+        }
+        
+        /**
+         * Owner + recruits + members as one set, without copying them into one
+         */
+        private final class AllMembers extends AbstractSet<UUID> {
+            @Override
+            public int size() {
+                return Membership.this.size();
+            }
+            
+            @Override
+            public boolean contains(Object o) {
+                return owner.equals(o) || memberIds.contains(o) || recruitIds.contains(o);
+            }
+            
+            @Override
+            public void forEach(Consumer<? super UUID> action) {
+                Membership.this.forEach(action);
+            }
+            
+            @Override
+            public Iterator<UUID> iterator() {
+                // Walks the owner and then the sets themselves, same order as forEach
+                return new Iterator<UUID>() {
+                    private boolean ownerDone;
+                    private boolean onMembers;
+                    private Iterator<UUID> current = recruitIds.iterator();
+                    
+                    @Override
+                    public boolean hasNext() {
+                        if (!ownerDone) return true;
+                        if (!onMembers && !current.hasNext()) {
+                            current = memberIds.iterator();
+                            onMembers = true;
+                        }
+                        return current.hasNext();
+                    }
+                    
+                    @Override
+                    public UUID next() {
+                        if (!ownerDone) {
+                            ownerDone = true;
+                            return owner;
+                        }
+                        if (!hasNext()) throw new NoSuchElementException();
+                        return current.next();
+                    }
+                };
+            }
+        }
     }
-} 
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,74 @@
+package com.darkangel.teammanager.models;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.World;
+
+/**
+ * A team home as it's saved: world name plus coordinates.
+ * Unlike a Location this doesn't need the world to be loaded.
+ */
+public final class TeamHome {
+    private final String world;
+    private final double x;
+    private final double y;
+    private final double z;
+    private final float yaw;
+    private final float pitch;
+
+    public TeamHome(String world, double x, double y, double z, float yaw, float pitch) {
+        this.world = world;
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.yaw = yaw;
+        this.pitch = pitch;
+    }
+
+    /**
+     * @return The home for a location, or null if the location has no world
+     */
+    public static TeamHome of(Location location) {
+        if (location == null || location.getWorld() == null) {
+            return null;
+        }
+        return new TeamHome(location.getWorld().getName(), location.getX(), location.getY(),
+                location.getZ(), location.getYaw(), location.getPitch());
+    }
+
+    /**
+     * Turns this into a Location
+     * @return The location, or null if the world isn't loaded
+     */
+    public Location toLocation() {
+        World bukkitWorld = Bukkit.getWorld(world);
+        if (bukkitWorld == null) {
+            return null;
+        }
+        return new Location(bukkitWorld, x, y, z, yaw, pitch);
+    }
+
+    public String getWorld() {
+        return world;
+    }
+
+    public double getX() {
+        return x;
+    }
+
+    public double getY() {
+        return y;
+    }
+
+    public double getZ() {
+        return z;
+    }
+
+    public float getYaw() {
+        return yaw;
+    }
+
+    public float getPitch() {
+        return pitch;
+    }
+}
@@ -0,0 +1,37 @@
+package com.darkangel.teammanager.models;
+
+import java.util.UUID;
+
+/**
+ * Gets told whenever something about a team changes.
+ * TeamDataManager hooks this up so its lookups and the save journal never go stale.
+ */
+public interface TeamListener {
+
+    /**
+     * Called before a player is added to a team
+     * @param team The team being joined
+     * @param playerId UUID of the player
+     * @return false to reject the join (e.g. the player is already in another team)
+     */
+    boolean onMemberAdded(Team team, UUID playerId);
+
+    /**
+     * Called after a player has been removed from a team
+     * @param team The team that was left
+     * @param playerId UUID of the player
+     */
+    void onMemberRemoved(Team team, UUID playerId);
+
+    /**
+     * Called after a member has been promoted to recruiter
+     */
+    default void onRecruitPromoted(Team team, UUID playerId) {
+    }
+
+    /**
+     * Called after PvP, color, level or home changes
+     */
+    default void onSettingsChanged(Team team) {
+    }
+}
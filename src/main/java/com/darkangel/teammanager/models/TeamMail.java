@@ -0,0 +1,50 @@
+package com.darkangel.teammanager.models;
+
+/**
+ * A team chat message, as kept for offline members and in the chat history
+ */
+public final class TeamMail {
+    private final long id;
+    private final long sentAt;
+    private final int teamId;
+    private final String teamName;
+    private final String senderName;
+    private final String message;
+
+    /**
+     * @param id Increasing id, later messages always have bigger ids
+     * @param sentAt When it was sent, epoch millis
+     */
+    public TeamMail(long id, long sentAt, int teamId, String teamName, String senderName, String message) {
+        this.id = id;
+        this.sentAt = sentAt;
+        this.teamId = teamId;
+        this.teamName = teamName;
+        this.senderName = senderName;
+        this.message = message;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getSentAt() {
+        return sentAt;
+    }
+
+    public int getTeamId() {
+        return teamId;
+    }
+
+    public String getTeamName() {
+        return teamName;
+    }
+
+    public String getSenderName() {
+        return senderName;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+}
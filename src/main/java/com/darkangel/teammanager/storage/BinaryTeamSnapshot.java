@@ -0,0 +1,307 @@
+package com.darkangel.teammanager.storage;
+
+import com.darkangel.teammanager.models.TeamHome;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Binary copy of teams.yml (teams.bin) that loads a lot faster than parsing YAML.
+ * UUIDs are stored as two longs, and names, worlds and colors go in a string
+ * table so each is only stored once. It's only a cache: the header remembers
+ * which teams.yml it was written with, and if that file changed since (or the
+ * format version is different) it's ignored and teams.yml gets parsed instead.
+ *
+ * Layout:
+ * <pre>
+ * int magic, int version, long journalSeq, long yamlModified, long yamlLength
+ * int length, strings:  int count, (int byteLength, utf8 bytes)*
+ * int length, teams:    int count, team*
+ * int crc32 of everything before it
+ * </pre>
+ */
+public class BinaryTeamSnapshot {
+    private static final int MAGIC = 0x544D534E; // "TMSN"
+    private static final int VERSION = 3; // 2: allies, 3: team ids
+    private static final int NONE = -1;
+
+    private static final int FLAG_PVP = 1;
+    private static final int FLAG_HOME = 2;
+
+    private final File file;
+    private final Logger logger;
+
+    public BinaryTeamSnapshot(File file, Logger logger) {
+        this.file = file;
+        this.logger = logger;
+    }
+
+    /**
+     * What a successful read gives back
+     */
+    public static final class Contents {
+        private final List<TeamSnapshot> teams;
+        private final long journalSeq;
+
+        Contents(List<TeamSnapshot> teams, long journalSeq) {
+            this.teams = teams;
+            this.journalSeq = journalSeq;
+        }
+
+        public List<TeamSnapshot> getTeams() {
+            return teams;
+        }
+
+        public long getJournalSeq() {
+            return journalSeq;
+        }
+    }
+
+    /**
+     * Reads the snapshot if it's still in sync with teams.yml
+     * @param yamlFile The teams.yml it should have been written with
+     * @return The teams, or null if the file is missing, outdated or broken
+     */
+    public Contents read(File yamlFile) {
+        if (!file.isFile()) return null;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < 36 || size > Integer.MAX_VALUE) return null;
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                logger.info(file.getName() + " is from a different version, loading teams.yml instead");
+                return null;
+            }
+
+            long journalSeq = buffer.getLong();
+            long yamlModified = buffer.getLong();
+            long yamlLength = buffer.getLong();
+            if (yamlModified != yamlFile.lastModified() || yamlLength != yamlFile.length()) {
+                logger.info("teams.yml changed since " + file.getName() + " was written, loading teams.yml instead");
+                return null;
+            }
+
+            // Check the trailer before trusting any of the lengths inside
+            int bodyLength = (int) size - 4;
+            CRC32 crc = new CRC32();
+            ByteBuffer body = buffer.duplicate();
+            body.position(0).limit(bodyLength);
+            crc.update(body);
+            if ((int) crc.getValue() != buffer.getInt(bodyLength)) {
+                logger.warning(file.getName() + " is corrupt, loading teams.yml instead");
+                return null;
+            }
+
+            String[] strings = readStrings(section(buffer));
+            List<TeamSnapshot> teams = readTeams(section(buffer), strings);
+            return new Contents(teams, journalSeq);
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "Could not read " + file.getName() + ", loading teams.yml instead", e);
+            return null;
+        }
+    }
+
+    /**
+     * Cuts the next length-prefixed section out of the buffer
+     */
+    private static ByteBuffer section(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        ByteBuffer section = buffer.slice();
+        section.limit(length);
+        buffer.position(buffer.position() + length);
+        return section;
+    }
+
+    private static String[] readStrings(ByteBuffer section) {
+        String[] strings = new String[section.getInt()];
+        for (int i = 0; i < strings.length; i++) {
+            byte[] bytes = new byte[section.getInt()];
+            section.get(bytes);
+            strings[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return strings;
+    }
+
+    private List<TeamSnapshot> readTeams(ByteBuffer section, String[] strings) {
+        int count = section.getInt();
+        List<TeamSnapshot> teams = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int id = section.getInt();
+            String name = strings[section.getInt()];
+            UUID owner = readUuid(section);
+            int flags = section.get();
+            int colorIndex = section.getInt();
+            int level = section.getInt();
+
+            TeamHome home = null;
+            if ((flags & FLAG_HOME) != 0) {
+                home = new TeamHome(strings[section.getInt()], section.getDouble(), section.getDouble(),
+                        section.getDouble(), section.getFloat(), section.getFloat());
+            }
+
+            List<UUID> members = readUuids(section);
+            List<UUID> recruits = readUuids(section);
+
+            int inviteCount = section.getInt();
+            Map<UUID, Long> invites = new LinkedHashMap<>(inviteCount * 2);
+            for (int j = 0; j < inviteCount; j++) {
+                invites.put(readUuid(section), section.getLong());
+            }
+
+            int[] allyIds = new int[section.getInt()];
+            for (int j = 0; j < allyIds.length; j++) {
+                allyIds[j] = section.getInt();
+            }
+
+            teams.add(new TeamSnapshot(id, name, owner, (flags & FLAG_PVP) != 0, members, recruits, invites, home,
+                    colorIndex == NONE ? null : strings[colorIndex], level, allyIds));
+        }
+        return teams;
+    }
+
+    private static UUID readUuid(ByteBuffer buffer) {
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+
+    private static List<UUID> readUuids(ByteBuffer buffer) {
+        int count = buffer.getInt();
+        List<UUID> uuids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            uuids.add(readUuid(buffer));
+        }
+        return uuids;
+    }
+
+    /**
+     * Writes the snapshot for a teams.yml that was just saved
+     * @param yamlFile The teams.yml holding the same teams
+     */
+    public void write(Collection<TeamSnapshot> teams, long journalSeq, File yamlFile) throws IOException {
+        // Build the string table and team section first, they need to be length-prefixed
+        Map<String, Integer> stringIndex = new LinkedHashMap<>();
+        ByteArrayOutputStream teamBytes = new ByteArrayOutputStream(teams.size() * 128 + 4);
+        DataOutputStream teamOut = new DataOutputStream(teamBytes);
+        teamOut.writeInt(teams.size());
+        for (TeamSnapshot snapshot : teams) {
+            TeamHome home = snapshot.getHome();
+            int flags = (snapshot.isPvpEnabled() ? FLAG_PVP : 0) | (home != null ? FLAG_HOME : 0);
+
+            teamOut.writeInt(snapshot.getId());
+            teamOut.writeInt(intern(stringIndex, snapshot.getName()));
+            writeUuid(teamOut, snapshot.getOwner());
+            teamOut.writeByte(flags);
+            teamOut.writeInt(snapshot.getColor() != null ? intern(stringIndex, snapshot.getColor()) : NONE);
+            teamOut.writeInt(snapshot.getLevel());
+            if (home != null) {
+                teamOut.writeInt(intern(stringIndex, home.getWorld()));
+                teamOut.writeDouble(home.getX());
+                teamOut.writeDouble(home.getY());
+                teamOut.writeDouble(home.getZ());
+                teamOut.writeFloat(home.getYaw());
+                teamOut.writeFloat(home.getPitch());
+            }
+
+            writeUuids(teamOut, snapshot.getMembers());
+            writeUuids(teamOut, snapshot.getRecruits());
+            teamOut.writeInt(snapshot.getInvites().size());
+            for (Map.Entry<UUID, Long> invite : snapshot.getInvites().entrySet()) {
+                writeUuid(teamOut, invite.getKey());
+                teamOut.writeLong(invite.getValue());
+            }
+            teamOut.writeInt(snapshot.getAllyIds().length);
+            for (int allyId : snapshot.getAllyIds()) {
+                teamOut.writeInt(allyId);
+            }
+        }
+        teamOut.flush();
+
+        ByteArrayOutputStream stringBytes = new ByteArrayOutputStream();
+        DataOutputStream stringOut = new DataOutputStream(stringBytes);
+        stringOut.writeInt(stringIndex.size());
+        for (String string : stringIndex.keySet()) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            stringOut.writeInt(bytes.length);
+            stringOut.write(bytes);
+        }
+        stringOut.flush();
+
+        ByteArrayOutputStream fileBytes = new ByteArrayOutputStream(40 + stringBytes.size() + teamBytes.size());
+        DataOutputStream out = new DataOutputStream(fileBytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(journalSeq);
+        out.writeLong(yamlFile.lastModified());
+        out.writeLong(yamlFile.length());
+        out.writeInt(stringBytes.size());
+        stringBytes.writeTo(out);
+        out.writeInt(teamBytes.size());
+        teamBytes.writeTo(out);
+        out.flush();
+
+        CRC32 crc = new CRC32();
+        byte[] data = fileBytes.toByteArray();
+        crc.update(data, 0, data.length);
+        out.writeInt((int) crc.getValue());
+        out.flush();
+
+        File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        Files.write(tempFile.toPath(), fileBytes.toByteArray());
+        try {
+            Files.move(tempFile.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Deletes the snapshot, e.g. after teams.yml got migrated somewhere else
+     */
+    public void delete() {
+        if (file.exists() && !file.delete()) {
+            logger.warning("Could not delete " + file.getName());
+        }
+    }
+
+    private static int intern(Map<String, Integer> stringIndex, String string) {
+        Integer index = stringIndex.get(string);
+        if (index == null) {
+            index = stringIndex.size();
+            stringIndex.put(string, index);
+        }
+        return index;
+    }
+
+    private static void writeUuid(DataOutputStream out, UUID uuid) throws IOException {
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    private static void writeUuids(DataOutputStream out, List<UUID> uuids) throws IOException {
+        out.writeInt(uuids.size());
+        for (UUID uuid : uuids) {
+            writeUuid(out, uuid);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.darkangel.teammanager.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.IntFunction;
+
+/**
+ * Ids of teams changed since the last save, for stores that only write those.
+ * A save takes the ids with it and hands them back if its write fails, so the
+ * next save tries those teams again. Main thread only.
+ */
+public class ChangedTeams {
+    private final Set<Integer> ids = new LinkedHashSet<>();
+
+    public void add(int id) {
+        ids.add(id);
+    }
+
+    public void addAll(Collection<Integer> teamIds) {
+        ids.addAll(teamIds);
+    }
+
+    public void clear() {
+        ids.clear();
+    }
+
+    public boolean isEmpty() {
+        return ids.isEmpty();
+    }
+
+    /**
+     * Snapshots every changed team and returns the write that saves them
+     * @param snapshotter Snapshot of the team with that id, or null if it's been disbanded
+     */
+    public SaveScheduler.PendingWrite takeWrite(PartialTeamStore store, IntFunction<TeamSnapshot> snapshotter) {
+        List<TeamSnapshot> changed = new ArrayList<>();
+        List<Integer> removed = new ArrayList<>();
+        for (int id : ids) {
+            TeamSnapshot snapshot = snapshotter.apply(id);
+            if (snapshot != null) {
+                changed.add(snapshot);
+            } else {
+                removed.add(id);
+            }
+        }
+        ids.clear();
+
+        return new SaveScheduler.PendingWrite() {
+            @Override
+            public void write() throws IOException {
+                store.saveChanges(changed, removed);
+            }
+
+            @Override
+            public void failed() {
+                // Whatever changed since is snapshotted fresh anyway, so re-adding is enough
+                for (TeamSnapshot snapshot : changed) {
+                    ids.add(snapshot.getId());
+                }
+                ids.addAll(removed);
+            }
+        };
+    }
+}
@@ -0,0 +1,217 @@
+package com.darkangel.teammanager.storage;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Audit file of every team chat message (chat-logs/team-chat.log), so the
+ * server log doesn't have to take a line for each one.
+ *
+ * Adding an entry just puts it on a lock-free queue. A background thread
+ * writes whatever's queued every flush interval, in one go. If the queue is
+ * full (the disk can't keep up) entries are dropped and counted rather than
+ * making the sender wait. The file is rotated to team-chat.log.1, .2, ... once
+ * it gets too big.
+ */
+public class ChatAuditLog {
+    private final File file;
+    private final Logger logger;
+    private final int maxQueued;
+    private final long maxFileBytes;
+    private final int maxFiles;
+
+    private final Queue<String[]> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final ScheduledExecutorService flusher;
+
+    // Writer thread only
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    private Writer out;
+    private long fileSize;
+    private long reportedDropped;
+
+    /**
+     * @param flushIntervalMillis How often queued entries get written
+     * @param maxQueued Entries waiting to be written before new ones get dropped
+     * @param maxFileBytes Size the file gets rotated at
+     * @param maxFiles Rotated files to keep
+     */
+    public ChatAuditLog(File file, Logger logger, long flushIntervalMillis, int maxQueued,
+                        long maxFileBytes, int maxFiles) {
+        this.file = file;
+        this.logger = logger;
+        this.maxQueued = Math.max(1, maxQueued);
+        this.maxFileBytes = Math.max(1024, maxFileBytes);
+        this.maxFiles = Math.max(0, maxFiles);
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "TeamManager-audit");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long interval = Math.max(50, flushIntervalMillis);
+        flusher.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues a team chat message to be written. Never blocks
+     * @return false if it was dropped because the queue is full
+     */
+    public boolean log(String teamName, String senderName, String message) {
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            dropped.incrementAndGet();
+            return false;
+        }
+        queue.offer(new String[] {Long.toString(System.currentTimeMillis()), teamName, senderName, message});
+        return true;
+    }
+
+    /**
+     * Writes everything queued so far. Runs on the audit thread
+     */
+    private void flush() {
+        if (queue.isEmpty() && out == null) return;
+
+        try {
+            if (out == null) {
+                open();
+            }
+
+            StringBuilder line = new StringBuilder(128);
+            String[] entry;
+            int count = 0;
+            while ((entry = queue.poll()) != null) {
+                queued.decrementAndGet();
+                line.setLength(0);
+                line.append('[').append(timeFormat.format(new Date(Long.parseLong(entry[0])))).append("] [")
+                        .append(entry[1]).append("] ").append(entry[2]).append(": ").append(entry[3]).append('\n');
+                String text = line.toString();
+                out.write(text);
+                // Close enough for rotating, chat is mostly ASCII
+                fileSize += text.length();
+                count++;
+
+                if (fileSize >= maxFileBytes) {
+                    rotate();
+                }
+            }
+            if (count > 0) {
+                out.flush();
+                written.addAndGet(count);
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "Could not write team chat audit log", e);
+            closeQuietly();
+        }
+
+        long droppedNow = dropped.get();
+        if (droppedNow > reportedDropped) {
+            logger.warning("Team chat audit log fell behind, dropped " + (droppedNow - reportedDropped)
+                    + " entries (" + droppedNow + " total)");
+            reportedDropped = droppedNow;
+        }
+    }
+
+    private void open() throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create folder " + parent);
+        }
+        out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+        fileSize = file.length();
+    }
+
+    /**
+     * Moves team-chat.log to .1 (and .1 to .2 and so on) and starts a new file
+     */
+    private void rotate() throws IOException {
+        out.close();
+        out = null;
+
+        if (maxFiles == 0) {
+            Files.deleteIfExists(file.toPath());
+        } else {
+            Files.deleteIfExists(rotated(maxFiles).toPath());
+            for (int i = maxFiles - 1; i >= 1; i--) {
+                File from = rotated(i);
+                if (from.exists()) {
+                    Files.move(from.toPath(), rotated(i + 1).toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(file.toPath(), rotated(1).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        open();
+    }
+
+    private File rotated(int index) {
+        return new File(file.getParentFile(), file.getName() + "." + index);
+    }
+
+    private void closeQuietly() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ignored) {
+                // Already failing, nothing more to do
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * @return Entries written to the file so far
+     */
+    public long getWritten() {
+        return written.get();
+    }
+
+    /**
+     * @return Entries dropped because the queue was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public String getStats() {
+        return String.format("Chat audit log: %d written, %d queued, %d dropped",
+                getWritten(), queued.get(), getDropped());
+    }
+
+    /**
+     * Writes what's left and stops the audit thread - call from onDisable
+     */
+    public void shutdown() {
+        flusher.shutdown();
+        try {
+            if (!flusher.awaitTermination(5, TimeUnit.SECONDS)) {
+                flusher.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // The thread's gone, so finishing up here is safe
+        flush();
+        closeQuietly();
+    }
+}
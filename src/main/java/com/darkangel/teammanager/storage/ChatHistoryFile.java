@@ -0,0 +1,188 @@
+package com.darkangel.teammanager.storage;
+
+import com.darkangel.teammanager.models.TeamMail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The last N team chat messages of one team, as a ring of fixed-size slots in
+ * a memory-mapped file. Adding a message just copies it into the next slot, and
+ * reading a page only touches the slots on that page. Because the file is
+ * mapped, what's written survives a restart (or a crash) without anyone having
+ * to save or re-read it.
+ *
+ * Layout:
+ * <pre>
+ * int magic, int version, int capacity, int slotSize, long written
+ * capacity slots: long sentAt, short senderLength, sender utf8, short messageLength, message utf8
+ * </pre>
+ * "written" is how many messages were ever added, message n lives in slot n % capacity.
+ */
+public class ChatHistoryFile {
+    private static final int MAGIC = 0x544D4348; // "TMCH"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+    private static final int WRITTEN_OFFSET = 16;
+
+    // Big enough for a full chat line in most languages, longer ones get cut
+    private static final int SLOT_SIZE = 512;
+    private static final int MAX_SENDER_BYTES = 64;
+    private static final int MAX_MESSAGE_BYTES = SLOT_SIZE - 8 - 2 - MAX_SENDER_BYTES - 2;
+
+    private final File file;
+    private final int teamId;
+    private final String teamName;
+    private final int capacity;
+    private MappedByteBuffer buffer;
+    private long written;
+
+    private ChatHistoryFile(File file, int teamId, String teamName, int capacity) {
+        this.file = file;
+        this.teamId = teamId;
+        this.teamName = teamName;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Maps a team's history file, creating it (or starting it over if it was
+     * made with a different size) as needed
+     * @param capacity How many messages to keep
+     */
+    public static ChatHistoryFile open(File file, int teamId, String teamName, int capacity) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create folder " + parent);
+        }
+
+        ChatHistoryFile history = new ChatHistoryFile(file, teamId, teamName, capacity);
+        long size = HEADER_SIZE + (long) capacity * SLOT_SIZE;
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed
+            history.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        MappedByteBuffer buffer = history.buffer;
+        long written = buffer.getLong(WRITTEN_OFFSET);
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(8) != capacity
+                || buffer.getInt(12) != SLOT_SIZE || written < 0) {
+            // New file, or one we can't use - start from nothing
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, capacity);
+            buffer.putInt(12, SLOT_SIZE);
+            buffer.putLong(WRITTEN_OFFSET, 0);
+            written = 0;
+        }
+        history.written = written;
+        return history;
+    }
+
+    /**
+     * Adds a message, overwriting the oldest one once the history is full
+     */
+    public synchronized void add(long sentAt, String senderName, String message) {
+        int slot = HEADER_SIZE + (int) (written % capacity) * SLOT_SIZE;
+        byte[] sender = truncate(senderName, MAX_SENDER_BYTES);
+        byte[] text = truncate(message, MAX_MESSAGE_BYTES);
+
+        buffer.putLong(slot, sentAt);
+        buffer.putShort(slot + 8, (short) sender.length);
+        putBytes(slot + 10, sender);
+        buffer.putShort(slot + 10 + sender.length, (short) text.length);
+        putBytes(slot + 12 + sender.length, text);
+
+        // Only count it once the slot is filled in, so a reader never sees half a message
+        written++;
+        buffer.putLong(WRITTEN_OFFSET, written);
+    }
+
+    /**
+     * Reads messages newest first
+     * @param skip How many of the newest messages to skip
+     * @param limit Most messages to return
+     * @return The messages, ids are their position in the team's whole chat history
+     */
+    public synchronized List<TeamMail> read(int skip, int limit) {
+        long available = Math.min(written, capacity);
+        List<TeamMail> messages = new ArrayList<>(limit);
+        for (long i = skip; i < available && messages.size() < limit; i++) {
+            long id = written - 1 - i;
+            int slot = HEADER_SIZE + (int) (id % capacity) * SLOT_SIZE;
+
+            long sentAt = buffer.getLong(slot);
+            int senderLength = buffer.getShort(slot + 8);
+            if (senderLength < 0 || senderLength > MAX_SENDER_BYTES) continue;
+            String sender = getString(slot + 10, senderLength);
+            int messageLength = buffer.getShort(slot + 10 + senderLength);
+            if (messageLength < 0 || messageLength > MAX_MESSAGE_BYTES) continue;
+            String message = getString(slot + 12 + senderLength, messageLength);
+            messages.add(new TeamMail(id, sentAt, teamId, teamName, sender, message));
+        }
+        return messages;
+    }
+
+    /**
+     * @return How many messages can be read back
+     */
+    public synchronized int size() {
+        return (int) Math.min(written, capacity);
+    }
+
+    /**
+     * Forgets every message
+     */
+    public synchronized void clear() {
+        written = 0;
+        buffer.putLong(WRITTEN_OFFSET, 0);
+    }
+
+    /**
+     * Pushes what's been written to disk - the OS does this anyway, this is for shutdown
+     */
+    public synchronized void force() {
+        buffer.force();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    private void putBytes(int position, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            buffer.put(position + i, bytes[i]);
+        }
+    }
+
+    private String getString(int position, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(position + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encodes a string, cutting it down to a whole number of characters if it's too long
+     */
+    private static byte[] truncate(String string, int maxBytes) {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= maxBytes) return bytes;
+
+        int length = maxBytes;
+        // Don't cut a multi-byte character in half
+        while (length > 0 && (bytes[length] & 0xC0) == 0x80) {
+            length--;
+        }
+        byte[] cut = new byte[length];
+        System.arraycopy(bytes, 0, cut, 0, length);
+        return cut;
+    }
+}
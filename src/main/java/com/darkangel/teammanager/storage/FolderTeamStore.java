@@ -0,0 +1,237 @@
+package com.darkangel.teammanager.storage;
+
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stores each team in its own file inside the teams folder, named team.<id>.yml.
+ * Only teams that actually changed get rewritten, instead of the whole teams.yml,
+ * and loading can read the files in parallel.
+ * Files from before ids were saved are named after the team - they're renamed
+ * when loaded, or replaced the first time the team is written if they have no id.
+ */
+public class FolderTeamStore implements PartialTeamStore {
+    private static final String SUFFIX = ".yml";
+    // safeFileName never puts a '.' in a name, so these can't clash with old files
+    private static final String ID_PREFIX = "team.";
+
+    private final File directory;
+    private final Logger logger;
+
+    public FolderTeamStore(File directory, Logger logger) {
+        this.directory = directory;
+        this.logger = logger;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public String getName() {
+        return "sharded";
+    }
+
+    @Override
+    public boolean exists() {
+        return directory.isDirectory();
+    }
+
+    /**
+     * Reads every team file using several threads. Files that can't be read are
+     * logged and left out.
+     * @return The teams, in file name order
+     */
+    @Override
+    public List<TeamSnapshot> loadAll() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null || files.length == 0) {
+            return new ArrayList<>();
+        }
+        Arrays.sort(files);
+
+        int threads = Math.max(1, Math.min(files.length, Runtime.getRuntime().availableProcessors()));
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "TeamManager-team-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            List<CompletableFuture<TeamSnapshot>> futures = new ArrayList<>(files.length);
+            for (File file : files) {
+                futures.add(CompletableFuture.supplyAsync(() -> read(file), pool));
+            }
+
+            // Files named by id first, so they win over an old file for the same team
+            Map<Integer, TeamSnapshot> byId = new LinkedHashMap<>();
+            List<TeamSnapshot> withoutId = new ArrayList<>();
+            Map<File, TeamSnapshot> named = new LinkedHashMap<>();
+            for (int i = 0; i < files.length; i++) {
+                TeamSnapshot snapshot = futures.get(i).join();
+                if (snapshot == null) continue;
+                if (!files[i].getName().startsWith(ID_PREFIX)) {
+                    named.put(files[i], snapshot);
+                } else if (byId.putIfAbsent(snapshot.getId(), snapshot) != null) {
+                    logger.warning("Team file " + files[i].getName() + " has the same id as another one, skipping it");
+                }
+            }
+
+            for (Map.Entry<File, TeamSnapshot> entry : named.entrySet()) {
+                TeamSnapshot snapshot = entry.getValue();
+                if (snapshot.getId() == TeamSnapshot.NO_ID) {
+                    // Gets an id when loaded and is replaced when it's saved with it
+                    withoutId.add(snapshot);
+                } else if (byId.containsKey(snapshot.getId())) {
+                    Files.deleteIfExists(entry.getKey().toPath());
+                } else {
+                    Files.move(entry.getKey().toPath(), fileFor(snapshot.getId()).toPath(),
+                            StandardCopyOption.REPLACE_EXISTING);
+                    byId.put(snapshot.getId(), snapshot);
+                }
+            }
+
+            List<TeamSnapshot> results = new ArrayList<>(byId.values());
+            results.addAll(withoutId);
+            return results;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private TeamSnapshot read(File file) {
+        YamlConfiguration yaml = new YamlConfiguration();
+        try {
+            yaml.load(file);
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Could not read team file " + file.getName(), e);
+            return null;
+        }
+
+        String teamName = yaml.getString("name");
+        if (teamName == null) {
+            logger.warning("Team file " + file.getName() + " has no team name, skipping it");
+            return null;
+        }
+
+        try {
+            return TeamSnapshot.read(teamName, yaml);
+        } catch (IllegalArgumentException e) {
+            logger.log(Level.WARNING, "Error loading team " + teamName + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Writes every team and deletes files for teams that aren't in the list
+     */
+    @Override
+    public void saveAll(Collection<TeamSnapshot> teams) throws IOException {
+        ensureDirectory();
+
+        Set<String> keep = new HashSet<>();
+        for (TeamSnapshot snapshot : teams) {
+            write(snapshot);
+            keep.add(fileFor(snapshot.getId()).getName());
+        }
+
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) return;
+        for (File file : files) {
+            if (!keep.contains(file.getName())) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+    }
+
+    @Override
+    public void saveChanges(Collection<TeamSnapshot> changed, Collection<Integer> removedIds) throws IOException {
+        for (TeamSnapshot snapshot : changed) {
+            write(snapshot);
+        }
+        for (int id : removedIds) {
+            delete(id);
+        }
+    }
+
+    /**
+     * Writes one team's file (through a temp file, so it's never half-written)
+     */
+    public void write(TeamSnapshot snapshot) throws IOException {
+        if (snapshot.getId() <= 0) {
+            throw new IOException("Team " + snapshot.getName() + " has no id");
+        }
+        ensureDirectory();
+
+        YamlConfiguration yaml = new YamlConfiguration();
+        yaml.set("name", snapshot.getName());
+        snapshot.writeTo(yaml);
+
+        File file = fileFor(snapshot.getId());
+        File tempFile = new File(directory, file.getName() + ".tmp");
+        yaml.save(tempFile);
+        try {
+            Files.move(tempFile.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        // Its file from before ids were saved, if it had one
+        Files.deleteIfExists(new File(directory, safeFileName(snapshot.getName()) + SUFFIX).toPath());
+    }
+
+    /**
+     * Deletes a disbanded team's file
+     */
+    public void delete(int teamId) throws IOException {
+        Files.deleteIfExists(fileFor(teamId).toPath());
+    }
+
+    public void ensureDirectory() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create team folder " + directory);
+        }
+    }
+
+    private File fileFor(int teamId) {
+        return new File(directory, ID_PREFIX + teamId + SUFFIX);
+    }
+
+    /**
+     * Team names aren't guaranteed to be filename-safe, so anything other than
+     * letters, digits, - and _ gets escaped as _xxxx (hex char code)
+     * @return The lowercase, escaped name without an extension
+     */
+    public static String safeFileName(String teamName) {
+        String key = teamName.toLowerCase(Locale.ROOT);
+        StringBuilder fileName = new StringBuilder(key.length() + 8);
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-') {
+                fileName.append(c);
+            } else {
+                fileName.append('_').append(String.format("%04x", (int) c));
+            }
+        }
+        return fileName.toString();
+    }
+}
@@ -0,0 +1,291 @@
+package com.darkangel.teammanager.storage;
+
+import com.darkangel.teammanager.models.TeamMail;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only file of offline team messages (mail.log).
+ * A message is written once together with everyone it's waiting for, and a
+ * small "read" record is added when a player has been sent their mail. The
+ * file gets rewritten with just the unread mail on startup, and whenever it
+ * grows too much.
+ *
+ * Record layout: [int length][byte type][fields...][int crc32]
+ * Mail records carry the team id. MAIL records from before that only have the
+ * team name and are replayed with TeamSnapshot.NO_ID.
+ */
+public class MailboxLog {
+    // Record types - never renumber these
+    private static final byte MAIL = 1;
+    private static final byte READ = 2;
+    private static final byte TEAM_MAIL = 3; // MAIL with the team id
+
+    /**
+     * Gets called for each record when replaying the file
+     */
+    public interface Replayer {
+        void mail(TeamMail mail, List<UUID> recipients);
+
+        /**
+         * @param upToId The player has been sent every message up to this id
+         */
+        void read(UUID playerId, long upToId);
+    }
+
+    private final File file;
+    private final Logger logger;
+    private final CRC32 crc = new CRC32();
+    private final ByteArrayOutputStream scratch = new ByteArrayOutputStream(256);
+    private final DataOutputStream scratchOut = new DataOutputStream(scratch);
+
+    private OutputStream out;
+    private long size;
+
+    public MailboxLog(File file, Logger logger) {
+        this.file = file;
+        this.logger = logger;
+    }
+
+    /**
+     * Reads every record in the file. A broken record at the end (crash
+     * mid-write) gets cut off.
+     */
+    public synchronized void replay(Replayer replayer) throws IOException {
+        if (!file.isFile()) return;
+
+        byte[] data = Files.readAllBytes(file.toPath());
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int offset = 0;
+
+        while (offset < data.length) {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                break;
+            }
+
+            if (length <= 1 || offset + 4 + length + 4 > data.length) {
+                logger.warning(file.getName() + " has a torn record at byte " + offset + ", ignoring the rest");
+                break;
+            }
+
+            crc.reset();
+            crc.update(data, offset + 4, length);
+            DataInputStream record = new DataInputStream(new ByteArrayInputStream(data, offset + 4, length));
+            in.skipBytes(length);
+            if ((int) crc.getValue() != in.readInt()) {
+                logger.warning(file.getName() + " has a corrupt record at byte " + offset + ", ignoring the rest");
+                break;
+            }
+
+            try {
+                applyRecord(record, replayer);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Could not replay mail record at byte " + offset, e);
+            }
+            offset += 4 + length + 4;
+        }
+
+        if (offset < data.length) {
+            try (FileChannel truncate = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                truncate.truncate(offset);
+            }
+        }
+    }
+
+    private void applyRecord(DataInputStream in, Replayer replayer) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case MAIL:
+            case TEAM_MAIL: {
+                long id = in.readLong();
+                long sentAt = in.readLong();
+                int teamId = type == TEAM_MAIL ? in.readInt() : TeamSnapshot.NO_ID;
+                TeamMail mail = new TeamMail(id, sentAt, teamId, in.readUTF(), in.readUTF(), in.readUTF());
+                int count = in.readInt();
+                List<UUID> recipients = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    recipients.add(readUUID(in));
+                }
+                replayer.mail(mail, recipients);
+                break;
+            }
+            case READ:
+                replayer.read(readUUID(in), in.readLong());
+                break;
+            default:
+                logger.warning("Unknown mail record type " + type + ", skipping it");
+        }
+    }
+
+    /**
+     * Records a message waiting for some offline players
+     */
+    public synchronized void logMail(TeamMail mail, List<UUID> recipients) {
+        append(TEAM_MAIL, mailFields(mail, recipients));
+    }
+
+    private static FieldWriter mailFields(TeamMail mail, List<UUID> recipients) {
+        return out -> {
+            writeMail(out, mail);
+            out.writeInt(recipients.size());
+            for (UUID recipient : recipients) {
+                writeUUID(out, recipient);
+            }
+        };
+    }
+
+    /**
+     * Records that a player has been sent everything up to a message
+     */
+    public synchronized void logRead(UUID playerId, long upToId) {
+        append(READ, out -> {
+            writeUUID(out, playerId);
+            out.writeLong(upToId);
+        });
+    }
+
+    /**
+     * Replaces the file with just these messages (through a temp file) and keeps appending after them
+     * @param pending Each unread message and who it's still waiting for, oldest first
+     */
+    public synchronized void rewrite(Map<TeamMail, List<UUID>> pending) throws IOException {
+        closeStream();
+
+        File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        boolean replaced = false;
+        try {
+            try (OutputStream tempOut = new BufferedOutputStream(new FileOutputStream(tempFile))) {
+                for (Map.Entry<TeamMail, List<UUID>> entry : pending.entrySet()) {
+                    writeRecord(tempOut, TEAM_MAIL, mailFields(entry.getKey(), entry.getValue()));
+                }
+            }
+
+            try {
+                Files.move(tempFile.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            replaced = true;
+        } finally {
+            if (!replaced && tempFile.exists() && !tempFile.delete()) {
+                logger.warning("Could not delete " + tempFile.getName());
+            }
+            // Keep appending either way - to the new file, or to the old one if this failed
+            open();
+        }
+    }
+
+    /**
+     * Opens the file for appending
+     */
+    public synchronized void open() throws IOException {
+        if (out != null) return;
+
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create folder " + parent);
+        }
+        out = new BufferedOutputStream(new FileOutputStream(file, true));
+        size = file.length();
+    }
+
+    /**
+     * @return How big the file is, including what's been appended since opening
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized void close() {
+        try {
+            closeStream();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not close " + file.getName(), e);
+        }
+    }
+
+    private void closeStream() throws IOException {
+        if (out != null) {
+            OutputStream closing = out;
+            out = null;
+            closing.close();
+        }
+    }
+
+    private interface FieldWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private void append(byte type, FieldWriter fields) {
+        if (out == null) return;
+
+        try {
+            size += writeRecord(out, type, fields);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not write to " + file.getName(), e);
+        }
+    }
+
+    /**
+     * @return How many bytes the record took
+     */
+    private int writeRecord(OutputStream target, byte type, FieldWriter fields) throws IOException {
+        scratch.reset();
+        scratchOut.writeByte(type);
+        fields.write(scratchOut);
+
+        byte[] record = scratch.toByteArray();
+        crc.reset();
+        crc.update(record, 0, record.length);
+
+        DataOutputStream recordOut = new DataOutputStream(target);
+        recordOut.writeInt(record.length);
+        recordOut.write(record);
+        recordOut.writeInt((int) crc.getValue());
+        recordOut.flush();
+        return record.length + 8;
+    }
+
+    private static void writeMail(DataOutputStream out, TeamMail mail) throws IOException {
+        out.writeLong(mail.getId());
+        out.writeLong(mail.getSentAt());
+        out.writeInt(mail.getTeamId());
+        out.writeUTF(mail.getTeamName());
+        out.writeUTF(mail.getSenderName());
+        out.writeUTF(mail.getMessage());
+    }
+
+    private static void writeUUID(DataOutputStream out, UUID id) throws IOException {
+        out.writeLong(id.getMostSignificantBits());
+        out.writeLong(id.getLeastSignificantBits());
+    }
+
+    private static UUID readUUID(DataInputStream in) throws IOException {
+        return new UUID(in.readLong(), in.readLong());
+    }
+}
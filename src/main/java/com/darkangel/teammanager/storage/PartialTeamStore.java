@@ -0,0 +1,19 @@
+package com.darkangel.teammanager.storage;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * A store that can write single teams, so a save only needs to snapshot the
+ * teams that changed instead of all of them. teams.yml can't, it's always
+ * rewritten as a whole.
+ */
+public interface PartialTeamStore extends TeamStore {
+
+    /**
+     * Writes only the teams that changed
+     * @param changed Teams to add or overwrite
+     * @param removedIds Ids of teams that were disbanded
+     */
+    void saveChanges(Collection<TeamSnapshot> changed, Collection<Integer> removedIds) throws IOException;
+}
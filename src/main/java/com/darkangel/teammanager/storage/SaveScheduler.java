@@ -0,0 +1,271 @@
+package com.darkangel.teammanager.storage;
+
+import com.darkangel.teammanager.TeamManager;
+import org.bukkit.Bukkit;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+
+/**
+ * Batches up saves so a burst of team changes turns into one write.
+ * Changes just mark the data dirty. A little later the snapshot is taken on the
+ * main thread and the slow part (building the file and writing it) happens on
+ * a background thread, so saving doesn't cause lag spikes anymore.
+ */
+public class SaveScheduler {
+
+    /**
+     * The disk part of a save, runs off the main thread
+     */
+    public interface PendingWrite {
+        void write() throws IOException;
+
+        /**
+         * Called on the main thread when write() failed, before the save is tried again.
+         * Anything the snapshot took as saved has to be marked unsaved again here.
+         */
+        default void failed() {
+        }
+    }
+
+    // How long to wait before trying a failed save again
+    private static final long RETRY_DELAY_TICKS = 20L * 30;
+
+    private final TeamManager plugin;
+    private final String name;
+    private final long delayTicks;
+    private final Supplier<PendingWrite> snapshotter;
+    private final ExecutorService writer;
+    // Writes that failed on the writer thread, handed back on the main thread
+    private final Queue<PendingWrite> toRetry = new ConcurrentLinkedQueue<>();
+
+    // Main thread only
+    private BukkitTask pendingTask;
+    private boolean dirty;
+    private boolean closed;
+
+    // Metrics - written from the writer thread, read from anywhere
+    private final AtomicLong saveRequests = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong failedWrites = new AtomicLong();
+    private final AtomicLong totalSnapshotNanos = new AtomicLong();
+    private final AtomicLong totalWriteNanos = new AtomicLong();
+    private final AtomicLong maxWriteNanos = new AtomicLong();
+
+    /**
+     * @param name Used for the thread name and log messages
+     * @param delayTicks How long to wait for more changes before saving
+     * @param snapshotter Takes a snapshot on the main thread and returns the write to do with it
+     */
+    public SaveScheduler(TeamManager plugin, String name, long delayTicks, Supplier<PendingWrite> snapshotter) {
+        this.plugin = plugin;
+        this.name = name;
+        this.delayTicks = Math.max(1, delayTicks);
+        this.snapshotter = snapshotter;
+        this.writer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "TeamManager-" + name + "-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Marks the data as changed. The save happens a few ticks later, together
+     * with any other changes made in the meantime.
+     */
+    public void markDirty() {
+        saveRequests.incrementAndGet();
+        dirty = true;
+
+        if (closed) {
+            // Too late to schedule anything, just write it now
+            flushNow();
+            return;
+        }
+
+        if (pendingTask == null) {
+            pendingTask = Bukkit.getScheduler().runTaskLater(plugin, this::flush, delayTicks);
+        }
+    }
+
+    /**
+     * Takes the snapshot now and hands the write to the background thread
+     */
+    public void flush() {
+        pendingTask = null;
+        if (!dirty) return;
+
+        PendingWrite write = takeSnapshot();
+        writer.execute(() -> {
+            if (!runWrite(write)) {
+                toRetry.add(write);
+                // While disabling this can't schedule anything, close() picks it up instead
+                if (plugin.isEnabled()) {
+                    Bukkit.getScheduler().runTask(plugin, this::takeBackFailed);
+                }
+            }
+        });
+    }
+
+    /**
+     * Saves right now on the calling thread, after any queued writes
+     * @return false if the write failed
+     */
+    public boolean flushNow() {
+        // Teams a background write failed on go in this one too
+        takeBackFailed();
+        if (pendingTask != null) {
+            pendingTask.cancel();
+            pendingTask = null;
+        }
+        if (!dirty) return true;
+
+        PendingWrite write = takeSnapshot();
+        boolean written;
+        if (closed) {
+            written = runWrite(write);
+        } else {
+            try {
+                written = writer.submit(() -> runWrite(write)).get();
+            } catch (Exception e) {
+                plugin.getLogger().log(Level.SEVERE, "Could not finish saving " + name, e);
+                written = false;
+            }
+        }
+
+        if (!written) {
+            write.failed();
+            dirty = true;
+            scheduleRetry();
+        }
+        return written;
+    }
+
+    /**
+     * Marks what failed background writes were saving as unsaved again and
+     * schedules another try - main thread only
+     */
+    private void takeBackFailed() {
+        PendingWrite write;
+        boolean any = false;
+        while ((write = toRetry.poll()) != null) {
+            write.failed();
+            any = true;
+        }
+        if (any) {
+            dirty = true;
+            scheduleRetry();
+        }
+    }
+
+    private void scheduleRetry() {
+        if (!closed && pendingTask == null) {
+            pendingTask = Bukkit.getScheduler().runTaskLater(plugin, this::flush, RETRY_DELAY_TICKS);
+        }
+    }
+
+    /**
+     * Final save for plugin shutdown. Waits for the background writer to finish,
+     * then does one last synchronous write if anything is still unsaved.
+     */
+    public void close() {
+        if (closed) return;
+
+        if (pendingTask != null) {
+            pendingTask.cancel();
+            pendingTask = null;
+        }
+
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(30, TimeUnit.SECONDS)) {
+                plugin.getLogger().warning("Timed out waiting for background " + name + " saves to finish");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        closed = true;
+        if (!flushNow()) {
+            plugin.getLogger().warning("Trying to save " + name + " once more before shutting down");
+            flushNow();
+        }
+        plugin.getLogger().info(getStats());
+    }
+
+    private PendingWrite takeSnapshot() {
+        long start = System.nanoTime();
+        PendingWrite write = snapshotter.get();
+        totalSnapshotNanos.addAndGet(System.nanoTime() - start);
+        dirty = false;
+        return write;
+    }
+
+    private boolean runWrite(PendingWrite write) {
+        long start = System.nanoTime();
+        boolean written = false;
+        try {
+            write.write();
+            writes.incrementAndGet();
+            written = true;
+        } catch (IOException | RuntimeException e) {
+            failedWrites.incrementAndGet();
+            plugin.getLogger().log(Level.SEVERE, "Could not save " + name, e);
+        }
+
+        long took = System.nanoTime() - start;
+        totalWriteNanos.addAndGet(took);
+        maxWriteNanos.accumulateAndGet(took, Math::max);
+        return written;
+    }
+
+    // Metrics getters
+
+    public long getSaveRequests() {
+        return saveRequests.get();
+    }
+
+    public long getWrites() {
+        return writes.get();
+    }
+
+    public long getFailedWrites() {
+        return failedWrites.get();
+    }
+
+    /**
+     * How many save requests got merged into another write instead of writing on their own
+     */
+    public long getCoalescedWrites() {
+        return Math.max(0, saveRequests.get() - writes.get() - failedWrites.get());
+    }
+
+    public double getAverageWriteMillis() {
+        long count = writes.get() + failedWrites.get();
+        return count == 0 ? 0 : totalWriteNanos.get() / 1_000_000.0 / count;
+    }
+
+    public double getMaxWriteMillis() {
+        return maxWriteNanos.get() / 1_000_000.0;
+    }
+
+    public double getAverageSnapshotMillis() {
+        long count = writes.get() + failedWrites.get();
+        return count == 0 ? 0 : totalSnapshotNanos.get() / 1_000_000.0 / count;
+    }
+
+    public String getStats() {
+        return String.format("%s saves: %d requested, %d written, %d coalesced, %d failed, "
+                        + "snapshot avg %.2fms, write avg %.2fms / max %.2fms",
+                name, getSaveRequests(), getWrites(), getCoalescedWrites(), getFailedWrites(),
+                getAverageSnapshotMillis(), getAverageWriteMillis(), getMaxWriteMillis());
+    }
+}
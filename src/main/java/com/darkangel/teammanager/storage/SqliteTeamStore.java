@@ -0,0 +1,526 @@
+package com.darkangel.teammanager.storage;
+
+import com.darkangel.teammanager.models.TeamHome;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps teams in an SQLite database file (teams.db), no server needed.
+ * Each save only touches the rows of teams that changed, in one transaction.
+ * Rows are keyed by team id. The driver ships with Paper/Spigot.
+ */
+public class SqliteTeamStore implements PartialTeamStore {
+    private static final String DRIVER = "org.sqlite.JDBC";
+    // PRAGMA user_version - 2 is rows keyed by team id, before that they were keyed by lowercase name
+    private static final int SCHEMA_VERSION = 2;
+
+    // Roles in team_members - the owner gets a row too so one lookup finds anyone
+    private static final int ROLE_MEMBER = 0;
+    private static final int ROLE_RECRUIT = 1;
+    private static final int ROLE_OWNER = 2;
+
+    private static final String SELECT_TEAMS =
+            "SELECT team_id, name, owner, pvp_enabled, color, level, "
+            + "home_world, home_x, home_y, home_z, home_yaw, home_pitch FROM teams";
+
+    private final File file;
+    private final Logger logger;
+
+    // Opened on first use, guarded by this
+    private Connection connection;
+
+    public SqliteTeamStore(File file, Logger logger) {
+        this.file = file;
+        this.logger = logger;
+    }
+
+    /**
+     * Checks if the SQLite driver is on the classpath
+     */
+    public static boolean isDriverAvailable() {
+        try {
+            Class.forName(DRIVER);
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "sqlite";
+    }
+
+    @Override
+    public boolean exists() {
+        return file.isFile();
+    }
+
+    private Connection connect() throws SQLException {
+        if (connection != null && !connection.isClosed()) {
+            return connection;
+        }
+
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new SQLException("Could not create folder " + parent);
+        }
+
+        Connection newConnection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+        try (Statement statement = newConnection.createStatement()) {
+            // WAL keeps reads from blocking on the background writer
+            statement.execute("PRAGMA journal_mode=WAL");
+            statement.execute("PRAGMA synchronous=NORMAL");
+
+            if (userVersion(statement) < SCHEMA_VERSION && tableExists(statement, "teams")) {
+                migrateToIds(newConnection);
+            }
+            createTables(statement);
+            statement.execute("PRAGMA user_version = " + SCHEMA_VERSION);
+        } catch (SQLException e) {
+            newConnection.close();
+            throw e;
+        }
+
+        connection = newConnection;
+        return connection;
+    }
+
+    private static void createTables(Statement statement) throws SQLException {
+        statement.execute("CREATE TABLE IF NOT EXISTS teams ("
+                + "team_id INTEGER PRIMARY KEY, name TEXT NOT NULL, owner TEXT NOT NULL, "
+                + "pvp_enabled INTEGER NOT NULL, color TEXT, level INTEGER NOT NULL, "
+                + "home_world TEXT, home_x REAL, home_y REAL, home_z REAL, home_yaw REAL, home_pitch REAL)");
+        statement.execute("CREATE TABLE IF NOT EXISTS team_members ("
+                + "player_id TEXT PRIMARY KEY, team_id INTEGER NOT NULL, role INTEGER NOT NULL)");
+        statement.execute("CREATE INDEX IF NOT EXISTS team_members_team ON team_members (team_id)");
+        statement.execute("CREATE TABLE IF NOT EXISTS team_invites ("
+                + "team_id INTEGER NOT NULL, player_id TEXT NOT NULL, expires_at INTEGER NOT NULL, "
+                + "PRIMARY KEY (team_id, player_id))");
+        statement.execute("CREATE INDEX IF NOT EXISTS team_invites_player ON team_invites (player_id)");
+        statement.execute("CREATE TABLE IF NOT EXISTS team_alliances ("
+                + "team_id INTEGER NOT NULL, ally_id INTEGER NOT NULL, PRIMARY KEY (team_id, ally_id))");
+    }
+
+    /**
+     * Moves a database with rows keyed by lowercase name (team_key) over to team ids,
+     * in one transaction. Teams without a usable id get one after the highest saved id,
+     * and alliances saved by ally name are turned into ally ids.
+     */
+    private void migrateToIds(Connection conn) throws SQLException {
+        logger.info("Updating " + file.getName() + " to key teams by id...");
+        inTransaction(conn, () -> {
+            try (Statement statement = conn.createStatement()) {
+                // Databases from before team ids were saved
+                if (!hasColumn(statement, "teams", "team_id")) {
+                    statement.execute("ALTER TABLE teams ADD COLUMN team_id INTEGER");
+                }
+                int maxId;
+                try (ResultSet results = statement.executeQuery("SELECT COALESCE(MAX(team_id), 0) FROM teams")) {
+                    maxId = results.next() ? Math.max(0, results.getInt(1)) : 0;
+                }
+                // Missing, not positive or a duplicate - rowids are unique, so maxId + rowid is too
+                statement.executeUpdate("UPDATE teams SET team_id = " + maxId + " + rowid "
+                        + "WHERE team_id IS NULL OR team_id <= 0 "
+                        + "OR rowid NOT IN (SELECT MIN(rowid) FROM teams GROUP BY team_id)");
+
+                // The old indexes move with their tables, drop them so the new ones can have the names
+                statement.execute("DROP INDEX IF EXISTS team_members_team");
+                statement.execute("DROP INDEX IF EXISTS team_invites_player");
+                String[] tables = {"teams", "team_members", "team_invites", "team_alliances"};
+                for (String table : tables) {
+                    if (tableExists(statement, table)) {
+                        statement.execute("ALTER TABLE " + table + " RENAME TO old_" + table);
+                    }
+                }
+                createTables(statement);
+
+                statement.executeUpdate("INSERT INTO teams (team_id, name, owner, pvp_enabled, color, level, "
+                        + "home_world, home_x, home_y, home_z, home_yaw, home_pitch) "
+                        + "SELECT team_id, name, owner, pvp_enabled, color, level, "
+                        + "home_world, home_x, home_y, home_z, home_yaw, home_pitch FROM old_teams ORDER BY rowid");
+                if (tableExists(statement, "old_team_members")) {
+                    statement.executeUpdate("INSERT OR IGNORE INTO team_members (player_id, team_id, role) "
+                            + "SELECT m.player_id, t.team_id, m.role FROM old_team_members m "
+                            + "JOIN old_teams t ON t.name_key = m.team_key ORDER BY m.rowid");
+                }
+                if (tableExists(statement, "old_team_invites")) {
+                    statement.executeUpdate("INSERT OR IGNORE INTO team_invites (team_id, player_id, expires_at) "
+                            + "SELECT t.team_id, i.player_id, i.expires_at FROM old_team_invites i "
+                            + "JOIN old_teams t ON t.name_key = i.team_key ORDER BY i.rowid");
+                }
+                if (tableExists(statement, "old_team_alliances")) {
+                    statement.executeUpdate("INSERT OR IGNORE INTO team_alliances (team_id, ally_id) "
+                            + "SELECT t.team_id, a.ally_id FROM old_team_alliances a "
+                            + "JOIN old_teams t ON t.name_key = a.team_key ORDER BY a.rowid");
+                }
+                // Alliances saved by name, from before they were saved by id
+                if (tableExists(statement, "team_allies")) {
+                    migrateAllyNames(conn, statement);
+                    statement.execute("DROP TABLE team_allies");
+                }
+
+                for (String table : tables) {
+                    statement.execute("DROP TABLE IF EXISTS old_" + table);
+                }
+            }
+        });
+    }
+
+    private static void migrateAllyNames(Connection conn, Statement statement) throws SQLException {
+        Map<String, Integer> idsByKey = new HashMap<>();
+        try (ResultSet results = statement.executeQuery("SELECT name_key, team_id FROM old_teams")) {
+            while (results.next()) {
+                idsByKey.put(results.getString("name_key"), results.getInt("team_id"));
+            }
+        }
+
+        try (PreparedStatement allyInsert = conn.prepareStatement(
+                "INSERT OR IGNORE INTO team_alliances (team_id, ally_id) VALUES (?, ?)");
+             ResultSet results = statement.executeQuery("SELECT team_key, ally_name FROM team_allies ORDER BY rowid")) {
+            while (results.next()) {
+                Integer teamId = idsByKey.get(results.getString("team_key"));
+                Integer allyId = idsByKey.get(results.getString("ally_name").toLowerCase());
+                // Either team could have been disbanded since
+                if (teamId != null && allyId != null && !teamId.equals(allyId)) {
+                    allyInsert.setInt(1, teamId);
+                    allyInsert.setInt(2, allyId);
+                    allyInsert.addBatch();
+                }
+            }
+            allyInsert.executeBatch();
+        }
+    }
+
+    private static int userVersion(Statement statement) throws SQLException {
+        try (ResultSet results = statement.executeQuery("PRAGMA user_version")) {
+            return results.next() ? results.getInt(1) : 0;
+        }
+    }
+
+    private static boolean tableExists(Statement statement, String table) throws SQLException {
+        try (ResultSet results = statement.executeQuery(
+                "SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = '" + table + "'")) {
+            return results.next();
+        }
+    }
+
+    private static boolean hasColumn(Statement statement, String table, String column) throws SQLException {
+        try (ResultSet results = statement.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (results.next()) {
+                if (column.equalsIgnoreCase(results.getString("name"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized List<TeamSnapshot> loadAll() throws IOException {
+        try {
+            Connection conn = connect();
+            Map<Integer, TeamRow> rows = new LinkedHashMap<>();
+            try (Statement statement = conn.createStatement()) {
+                try (ResultSet results = statement.executeQuery(SELECT_TEAMS + " ORDER BY team_id")) {
+                    readTeams(results, rows);
+                }
+                try (ResultSet results = statement.executeQuery(
+                        "SELECT team_id, player_id, role FROM team_members ORDER BY rowid")) {
+                    readMembers(results, rows);
+                }
+                try (ResultSet results = statement.executeQuery(
+                        "SELECT team_id, player_id, expires_at FROM team_invites ORDER BY rowid")) {
+                    readInvites(results, rows);
+                }
+                try (ResultSet results = statement.executeQuery(
+                        "SELECT team_id, ally_id FROM team_alliances ORDER BY rowid")) {
+                    readAllies(results, rows);
+                }
+            }
+            return toSnapshots(rows);
+        } catch (SQLException e) {
+            throw new IOException("Could not load teams from " + file.getName(), e);
+        }
+    }
+
+    @Override
+    public synchronized void saveAll(Collection<TeamSnapshot> teams) throws IOException {
+        try {
+            Connection conn = connect();
+            inTransaction(conn, () -> {
+                try (Statement statement = conn.createStatement()) {
+                    statement.executeUpdate("DELETE FROM team_alliances");
+                    statement.executeUpdate("DELETE FROM team_invites");
+                    statement.executeUpdate("DELETE FROM team_members");
+                    statement.executeUpdate("DELETE FROM teams");
+                }
+                insertTeams(conn, teams);
+            });
+        } catch (SQLException e) {
+            throw new IOException("Could not save teams to " + file.getName(), e);
+        }
+    }
+
+    @Override
+    public synchronized void saveChanges(Collection<TeamSnapshot> changed, Collection<Integer> removedIds)
+            throws IOException {
+        if (changed.isEmpty() && removedIds.isEmpty()) return;
+
+        List<Integer> staleIds = new ArrayList<>(removedIds);
+        for (TeamSnapshot snapshot : changed) {
+            staleIds.add(snapshot.getId());
+        }
+
+        try {
+            Connection conn = connect();
+            inTransaction(conn, () -> {
+                // Clear out the old rows of every touched team first, so a player who
+                // moved between two of them doesn't clash with their old row
+                deleteTeams(conn, staleIds);
+                insertTeams(conn, changed);
+            });
+        } catch (SQLException e) {
+            throw new IOException("Could not save teams to " + file.getName(), e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (connection == null) return;
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            logger.log(Level.WARNING, "Could not close " + file.getName(), e);
+        }
+        connection = null;
+    }
+
+    // ------------- Writing -------------
+
+    private interface SqlWork {
+        void run() throws SQLException;
+    }
+
+    private static void inTransaction(Connection conn, SqlWork work) throws SQLException {
+        conn.setAutoCommit(false);
+        try {
+            work.run();
+            conn.commit();
+        } catch (SQLException | RuntimeException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    private static void deleteTeams(Connection conn, Collection<Integer> ids) throws SQLException {
+        String[] tables = {"team_alliances", "team_invites", "team_members", "teams"};
+        for (String table : tables) {
+            try (PreparedStatement statement = conn.prepareStatement("DELETE FROM " + table + " WHERE team_id = ?")) {
+                for (int id : ids) {
+                    statement.setInt(1, id);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+        }
+    }
+
+    private static void insertTeams(Connection conn, Collection<TeamSnapshot> teams) throws SQLException {
+        try (PreparedStatement teamInsert = conn.prepareStatement(
+                "INSERT INTO teams (team_id, name, owner, pvp_enabled, color, level, "
+                        + "home_world, home_x, home_y, home_z, home_yaw, home_pitch) "
+                        + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+             PreparedStatement memberInsert = conn.prepareStatement(
+                     "INSERT OR REPLACE INTO team_members (player_id, team_id, role) VALUES (?, ?, ?)");
+             PreparedStatement inviteInsert = conn.prepareStatement(
+                     "INSERT OR REPLACE INTO team_invites (team_id, player_id, expires_at) VALUES (?, ?, ?)");
+             PreparedStatement allyInsert = conn.prepareStatement(
+                     "INSERT OR REPLACE INTO team_alliances (team_id, ally_id) VALUES (?, ?)")) {
+
+            for (TeamSnapshot snapshot : teams) {
+                int id = snapshot.getId();
+                if (id <= 0) {
+                    throw new SQLException("Team " + snapshot.getName() + " has no id");
+                }
+
+                teamInsert.setInt(1, id);
+                teamInsert.setString(2, snapshot.getName());
+                teamInsert.setString(3, snapshot.getOwner().toString());
+                teamInsert.setInt(4, snapshot.isPvpEnabled() ? 1 : 0);
+                teamInsert.setString(5, snapshot.getColor());
+                teamInsert.setInt(6, snapshot.getLevel());
+                TeamHome home = snapshot.getHome();
+                if (home != null) {
+                    teamInsert.setString(7, home.getWorld());
+                    teamInsert.setDouble(8, home.getX());
+                    teamInsert.setDouble(9, home.getY());
+                    teamInsert.setDouble(10, home.getZ());
+                    teamInsert.setDouble(11, home.getYaw());
+                    teamInsert.setDouble(12, home.getPitch());
+                } else {
+                    for (int i = 7; i <= 12; i++) {
+                        teamInsert.setNull(i, i == 7 ? Types.VARCHAR : Types.REAL);
+                    }
+                }
+                teamInsert.addBatch();
+
+                addMember(memberInsert, id, snapshot.getOwner(), ROLE_OWNER);
+                for (UUID memberId : snapshot.getMembers()) {
+                    addMember(memberInsert, id, memberId, ROLE_MEMBER);
+                }
+                for (UUID recruitId : snapshot.getRecruits()) {
+                    addMember(memberInsert, id, recruitId, ROLE_RECRUIT);
+                }
+
+                for (Map.Entry<UUID, Long> invite : snapshot.getInvites().entrySet()) {
+                    inviteInsert.setInt(1, id);
+                    inviteInsert.setString(2, invite.getKey().toString());
+                    inviteInsert.setLong(3, invite.getValue());
+                    inviteInsert.addBatch();
+                }
+
+                for (int allyId : snapshot.getAllyIds()) {
+                    allyInsert.setInt(1, id);
+                    allyInsert.setInt(2, allyId);
+                    allyInsert.addBatch();
+                }
+            }
+
+            teamInsert.executeBatch();
+            memberInsert.executeBatch();
+            inviteInsert.executeBatch();
+            allyInsert.executeBatch();
+        }
+    }
+
+    private static void addMember(PreparedStatement memberInsert, int id, UUID playerId, int role)
+            throws SQLException {
+        memberInsert.setString(1, playerId.toString());
+        memberInsert.setInt(2, id);
+        memberInsert.setInt(3, role);
+        memberInsert.addBatch();
+    }
+
+    // ------------- Reading -------------
+
+    /**
+     * A team's rows while they're being put back together
+     */
+    private static final class TeamRow {
+        int id;
+        String name;
+        String owner;
+        boolean pvpEnabled;
+        String color;
+        int level;
+        TeamHome home;
+        final List<String> members = new ArrayList<>();
+        final List<String> recruits = new ArrayList<>();
+        final Map<String, Long> invites = new LinkedHashMap<>();
+        final List<Integer> allyIds = new ArrayList<>();
+    }
+
+    private static void readTeams(ResultSet results, Map<Integer, TeamRow> rows) throws SQLException {
+        while (results.next()) {
+            TeamRow row = new TeamRow();
+            row.id = results.getInt("team_id");
+            row.name = results.getString("name");
+            row.owner = results.getString("owner");
+            row.pvpEnabled = results.getInt("pvp_enabled") != 0;
+            row.color = results.getString("color");
+            row.level = results.getInt("level");
+
+            String homeWorld = results.getString("home_world");
+            if (homeWorld != null) {
+                row.home = new TeamHome(homeWorld, results.getDouble("home_x"), results.getDouble("home_y"),
+                        results.getDouble("home_z"), results.getFloat("home_yaw"), results.getFloat("home_pitch"));
+            }
+            rows.put(row.id, row);
+        }
+    }
+
+    private static void readMembers(ResultSet results, Map<Integer, TeamRow> rows) throws SQLException {
+        while (results.next()) {
+            TeamRow row = rows.get(results.getInt("team_id"));
+            if (row == null) continue;
+
+            int role = results.getInt("role");
+            if (role == ROLE_MEMBER) {
+                row.members.add(results.getString("player_id"));
+            } else if (role == ROLE_RECRUIT) {
+                row.recruits.add(results.getString("player_id"));
+            }
+        }
+    }
+
+    private static void readInvites(ResultSet results, Map<Integer, TeamRow> rows) throws SQLException {
+        while (results.next()) {
+            TeamRow row = rows.get(results.getInt("team_id"));
+            if (row != null) {
+                row.invites.put(results.getString("player_id"), results.getLong("expires_at"));
+            }
+        }
+    }
+
+    private static void readAllies(ResultSet results, Map<Integer, TeamRow> rows) throws SQLException {
+        while (results.next()) {
+            TeamRow row = rows.get(results.getInt("team_id"));
+            if (row != null) {
+                row.allyIds.add(results.getInt("ally_id"));
+            }
+        }
+    }
+
+    private List<TeamSnapshot> toSnapshots(Map<Integer, TeamRow> rows) {
+        List<TeamSnapshot> snapshots = new ArrayList<>(rows.size());
+        for (TeamRow row : rows.values()) {
+            try {
+                Map<UUID, Long> invites = new LinkedHashMap<>();
+                for (Map.Entry<String, Long> invite : row.invites.entrySet()) {
+                    invites.put(UUID.fromString(invite.getKey()), invite.getValue());
+                }
+                int[] allyIds = new int[row.allyIds.size()];
+                for (int i = 0; i < allyIds.length; i++) {
+                    allyIds[i] = row.allyIds.get(i);
+                }
+                snapshots.add(new TeamSnapshot(row.id, row.name, UUID.fromString(row.owner), row.pvpEnabled,
+                        toUuids(row.members), toUuids(row.recruits), invites, row.home, row.color, row.level,
+                        allyIds));
+            } catch (IllegalArgumentException e) {
+                logger.log(Level.WARNING, "Error loading team " + row.name + ": " + e.getMessage());
+            }
+        }
+        return snapshots;
+    }
+
+    private static List<UUID> toUuids(List<String> ids) {
+        if (ids.isEmpty()) return Collections.emptyList();
+
+        List<UUID> uuids = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            uuids.add(UUID.fromString(id));
+        }
+        return uuids;
+    }
+}
@@ -0,0 +1,29 @@
+package com.darkangel.teammanager.storage;
+
+/**
+ * How team data gets saved, picked with storage.mode in config.yml
+ */
+public enum StorageMode {
+    /** Rewrite all of teams.yml after changes */
+    YAML,
+    /** Append changes to a journal, fold it into teams.yml now and then */
+    JOURNAL,
+    /** One file per team in the teams folder, only changed teams get rewritten */
+    SHARDED,
+    /** SQLite database in teams.db, only changed teams get rewritten */
+    SQLITE;
+
+    /**
+     * Parses the config value, falling back to YAML for anything unknown
+     */
+    public static StorageMode fromConfig(String value) {
+        if (value != null) {
+            for (StorageMode mode : values()) {
+                if (mode.name().equalsIgnoreCase(value.trim())) {
+                    return mode;
+                }
+            }
+        }
+        return YAML;
+    }
+}
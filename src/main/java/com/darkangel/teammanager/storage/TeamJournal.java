@@ -0,0 +1,536 @@
+package com.darkangel.teammanager.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of team changes (a write-ahead journal).
+ * Instead of rewriting all of teams.yml for every little change, each change gets
+ * a small record appended here. Every so often the journal gets folded into a full
+ * teams.yml snapshot and the old segments are deleted.
+ *
+ * Records are kept in memory and written + fsynced by a background thread every
+ * fsync interval, so a crash loses at most that window.
+ *
+ * Record layout: [int length][long seq][byte type][fields...][int crc32]
+ * Records point at their team by id (type has BY_ID set, first field is the
+ * int id). Journals from before that point at it by name (a UTF string) and
+ * get resolved through the replayer. Team creation always has the name.
+ */
+public class TeamJournal {
+    private static final String SEGMENT_SUFFIX = ".wal";
+
+    // Record types - never renumber these, old journals depend on them
+    private static final byte CREATE_TEAM = 1;
+    private static final byte REMOVE_TEAM = 2;
+    private static final byte ADD_MEMBER = 3;
+    private static final byte REMOVE_MEMBER = 4;
+    private static final byte PROMOTE = 5;
+    private static final byte SETTINGS = 6;
+    private static final byte INVITE = 7;
+    private static final byte UNINVITE = 8;
+    private static final byte ALLIANCE = 9;
+    // CREATE_TEAM plus the team's id
+    private static final byte CREATE_TEAM_WITH_ID = 10;
+
+    // Set on the type of records that point at their team (and ally) by id instead of by name
+    private static final byte BY_ID = 0x40;
+
+    /**
+     * Gets called for each record when replaying the journal
+     */
+    public interface Replayer {
+        /**
+         * @param id The team's id, TeamSnapshot.NO_ID in journals from before ids were saved
+         */
+        void createTeam(String name, UUID owner, int id);
+
+        /**
+         * Turns the team name in an old record into an id
+         * @return The id, or TeamSnapshot.NO_ID if there's no such team
+         */
+        int resolveTeamId(String name);
+
+        void removeTeam(int team);
+
+        void addMember(int team, UUID playerId);
+
+        void removeMember(int team, UUID playerId);
+
+        void promote(int team, UUID playerId);
+
+        /**
+         * @param color Color name, or null for none
+         * @param homeWorld Home world name, or null if no home is set
+         */
+        void settings(int team, boolean pvpEnabled, String color, int level,
+                      String homeWorld, double x, double y, double z, float yaw, float pitch);
+
+        /**
+         * @param expiresAt Expiry in epoch millis, 0 = never
+         */
+        void invite(int team, UUID playerId, long expiresAt);
+
+        void uninvite(int team, UUID playerId);
+
+        /**
+         * @param allied true if the alliance was formed, false if it was broken
+         */
+        void alliance(int team, int ally, boolean allied);
+    }
+
+    private final File directory;
+    private final long fsyncIntervalMillis;
+    private final Logger logger;
+
+    // Records waiting for the sync thread, guarded by bufferLock
+    private final Object bufferLock = new Object();
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream(8192);
+    private final DataOutputStream pendingOut = new DataOutputStream(pending);
+    private final ByteArrayOutputStream scratch = new ByteArrayOutputStream(256);
+    private final DataOutputStream scratchOut = new DataOutputStream(scratch);
+    private final CRC32 crc = new CRC32();
+    private long nextSeq = 1;
+    private long bytesSinceRotate;
+
+    // Active segment, guarded by channelLock
+    private final Object channelLock = new Object();
+    private FileChannel channel;
+    private File activeSegment;
+
+    private ScheduledExecutorService syncThread;
+
+    /**
+     * @param directory Folder the journal segments live in
+     * @param fsyncIntervalMillis How often pending records get written and fsynced
+     */
+    public TeamJournal(File directory, long fsyncIntervalMillis, Logger logger) {
+        this.directory = directory;
+        this.fsyncIntervalMillis = Math.max(10, fsyncIntervalMillis);
+        this.logger = logger;
+    }
+
+    /**
+     * Checks if there are any journal segments on disk
+     */
+    public boolean hasSegments() {
+        return !listSegments().isEmpty();
+    }
+
+    /**
+     * Gets all journal segment files, oldest first
+     */
+    public List<File> getSegments() {
+        return listSegments();
+    }
+
+    /**
+     * Replays every record newer than afterSeq, oldest first. A torn or corrupt
+     * record at the end of a segment (crash mid-write) ends that segment.
+     * @param afterSeq Last sequence number already included in the snapshot
+     * @return The last sequence number seen
+     */
+    public long replay(long afterSeq, Replayer replayer) throws IOException {
+        long lastSeq = afterSeq;
+
+        for (File segment : listSegments()) {
+            byte[] data = Files.readAllBytes(segment.toPath());
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            int offset = 0;
+            boolean torn = false;
+
+            while (offset < data.length) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+
+                if (length <= 9 || offset + 4 + length + 4 > data.length) {
+                    logger.warning("Journal segment " + segment.getName() + " has a torn record at byte " + offset + ", ignoring the rest");
+                    torn = true;
+                    break;
+                }
+
+                crc.reset();
+                crc.update(data, offset + 4, length);
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(data, offset + 4, length));
+                in.skipBytes(length);
+                int storedCrc = in.readInt();
+                if ((int) crc.getValue() != storedCrc) {
+                    logger.warning("Journal segment " + segment.getName() + " has a corrupt record at byte " + offset + ", ignoring the rest");
+                    torn = true;
+                    break;
+                }
+
+                long seq = record.readLong();
+                if (seq > afterSeq) {
+                    try {
+                        applyRecord(record, replayer);
+                    } catch (RuntimeException e) {
+                        logger.log(Level.WARNING, "Could not replay journal record " + seq, e);
+                    }
+                }
+                lastSeq = Math.max(lastSeq, seq);
+                offset += 4 + length + 4;
+            }
+
+            // Cut off the broken tail so records appended later aren't hidden behind it
+            if (torn || offset < data.length) {
+                try (FileChannel truncate = FileChannel.open(segment.toPath(), StandardOpenOption.WRITE)) {
+                    truncate.truncate(offset);
+                }
+            }
+        }
+
+        synchronized (bufferLock) {
+            nextSeq = Math.max(nextSeq, lastSeq + 1);
+        }
+        return lastSeq;
+    }
+
+    private void applyRecord(DataInputStream in, Replayer replayer) throws IOException {
+        byte type = in.readByte();
+        if (type == CREATE_TEAM || type == CREATE_TEAM_WITH_ID) {
+            String name = in.readUTF();
+            UUID owner = readUUID(in);
+            replayer.createTeam(name, owner, type == CREATE_TEAM_WITH_ID ? in.readInt() : TeamSnapshot.NO_ID);
+            return;
+        }
+
+        boolean byId = (type & BY_ID) != 0;
+        type &= ~BY_ID;
+        int team = readTeam(in, byId, replayer);
+
+        switch (type) {
+            case REMOVE_TEAM:
+                replayer.removeTeam(team);
+                break;
+            case ADD_MEMBER:
+                replayer.addMember(team, readUUID(in));
+                break;
+            case REMOVE_MEMBER:
+                replayer.removeMember(team, readUUID(in));
+                break;
+            case PROMOTE:
+                replayer.promote(team, readUUID(in));
+                break;
+            case SETTINGS: {
+                boolean pvp = in.readBoolean();
+                String color = in.readUTF();
+                int level = in.readInt();
+                if (in.readBoolean()) {
+                    replayer.settings(team, pvp, color.isEmpty() ? null : color, level, in.readUTF(),
+                            in.readDouble(), in.readDouble(), in.readDouble(), in.readFloat(), in.readFloat());
+                } else {
+                    replayer.settings(team, pvp, color.isEmpty() ? null : color, level, null, 0, 0, 0, 0, 0);
+                }
+                break;
+            }
+            case INVITE:
+                replayer.invite(team, readUUID(in), in.readLong());
+                break;
+            case UNINVITE:
+                replayer.uninvite(team, readUUID(in));
+                break;
+            case ALLIANCE:
+                replayer.alliance(team, readTeam(in, byId, replayer), in.readBoolean());
+                break;
+            default:
+                logger.warning("Unknown journal record type " + type + ", skipping");
+                break;
+        }
+    }
+
+    private static int readTeam(DataInputStream in, boolean byId, Replayer replayer) throws IOException {
+        return byId ? in.readInt() : replayer.resolveTeamId(in.readUTF());
+    }
+
+    /**
+     * Opens a fresh segment for new records and starts the background fsync thread
+     */
+    public void startWriting() throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Could not create journal folder " + directory);
+        }
+
+        synchronized (channelLock) {
+            openSegment();
+        }
+
+        syncThread = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "TeamManager-journal-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        syncThread.scheduleWithFixedDelay(() -> {
+            try {
+                sync();
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Could not write team journal", e);
+            }
+        }, fsyncIntervalMillis, fsyncIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // ------------- Appending -------------
+
+    public void logCreateTeam(String name, UUID owner, int id) {
+        append(CREATE_TEAM_WITH_ID, out -> {
+            out.writeUTF(name);
+            writeUUID(out, owner);
+            out.writeInt(id);
+        });
+    }
+
+    public void logRemoveTeam(int team) {
+        appendForTeam(REMOVE_TEAM, team, out -> { });
+    }
+
+    public void logAddMember(int team, UUID playerId) {
+        appendForTeam(ADD_MEMBER, team, out -> writeUUID(out, playerId));
+    }
+
+    public void logRemoveMember(int team, UUID playerId) {
+        appendForTeam(REMOVE_MEMBER, team, out -> writeUUID(out, playerId));
+    }
+
+    public void logPromote(int team, UUID playerId) {
+        appendForTeam(PROMOTE, team, out -> writeUUID(out, playerId));
+    }
+
+    /**
+     * @param expiresAt Expiry in epoch millis, 0 = never
+     */
+    public void logInvite(int team, UUID playerId, long expiresAt) {
+        appendForTeam(INVITE, team, out -> {
+            writeUUID(out, playerId);
+            out.writeLong(expiresAt);
+        });
+    }
+
+    public void logUninvite(int team, UUID playerId) {
+        appendForTeam(UNINVITE, team, out -> writeUUID(out, playerId));
+    }
+
+    /**
+     * @param allied true if the alliance was formed, false if it was broken
+     */
+    public void logAlliance(int team, int ally, boolean allied) {
+        appendForTeam(ALLIANCE, team, out -> {
+            out.writeInt(ally);
+            out.writeBoolean(allied);
+        });
+    }
+
+    /**
+     * @param homeWorld null if the team has no home
+     */
+    public void logSettings(int team, boolean pvpEnabled, String color, int level,
+                            String homeWorld, double x, double y, double z, float yaw, float pitch) {
+        appendForTeam(SETTINGS, team, out -> {
+            out.writeBoolean(pvpEnabled);
+            out.writeUTF(color != null ? color : "");
+            out.writeInt(level);
+            out.writeBoolean(homeWorld != null);
+            if (homeWorld != null) {
+                out.writeUTF(homeWorld);
+                out.writeDouble(x);
+                out.writeDouble(y);
+                out.writeDouble(z);
+                out.writeFloat(yaw);
+                out.writeFloat(pitch);
+            }
+        });
+    }
+
+    private interface FieldWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Appends a record about one team, pointing at it by id
+     */
+    private void appendForTeam(byte type, int team, FieldWriter fields) {
+        append((byte) (type | BY_ID), out -> {
+            out.writeInt(team);
+            fields.write(out);
+        });
+    }
+
+    private void append(byte type, FieldWriter fields) {
+        synchronized (bufferLock) {
+            try {
+                scratch.reset();
+                scratchOut.writeLong(nextSeq++);
+                scratchOut.writeByte(type);
+                fields.write(scratchOut);
+
+                byte[] record = scratch.toByteArray();
+                crc.reset();
+                crc.update(record, 0, record.length);
+
+                pendingOut.writeInt(record.length);
+                pendingOut.write(record);
+                pendingOut.writeInt((int) crc.getValue());
+                bytesSinceRotate += record.length + 8;
+            } catch (IOException e) {
+                // Only writing to memory, so this can't really happen
+                throw new IllegalStateException("Could not encode journal record", e);
+            }
+        }
+    }
+
+    private static void writeUUID(DataOutputStream out, UUID id) throws IOException {
+        out.writeLong(id.getMostSignificantBits());
+        out.writeLong(id.getLeastSignificantBits());
+    }
+
+    private static UUID readUUID(DataInputStream in) throws IOException {
+        return new UUID(in.readLong(), in.readLong());
+    }
+
+    // ------------- Segments -------------
+
+    /**
+     * Writes and fsyncs everything appended so far
+     */
+    public void sync() throws IOException {
+        synchronized (channelLock) {
+            if (channel == null) return;
+
+            byte[] data;
+            synchronized (bufferLock) {
+                if (pending.size() == 0) return;
+                data = pending.toByteArray();
+                pending.reset();
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Seals the current segment and starts a new one. Call on the main thread
+     * right when taking a snapshot - everything in the sealed segments is then
+     * covered by that snapshot.
+     * @return The sealed segments, to delete once the snapshot is safely on disk
+     */
+    public List<File> rotate() throws IOException {
+        synchronized (channelLock) {
+            sync();
+
+            List<File> sealed = listSegments();
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+            openSegment();
+            sealed.remove(activeSegment);
+
+            synchronized (bufferLock) {
+                bytesSinceRotate = 0;
+            }
+            return sealed;
+        }
+    }
+
+    /**
+     * Deletes segments that a snapshot has made obsolete
+     */
+    public void deleteSegments(List<File> segments) {
+        for (File segment : segments) {
+            if (segment.exists() && !segment.delete()) {
+                logger.warning("Could not delete old journal segment " + segment.getName());
+            }
+        }
+    }
+
+    /**
+     * @return Sequence number of the most recently appended record
+     */
+    public long getLastSeq() {
+        synchronized (bufferLock) {
+            return nextSeq - 1;
+        }
+    }
+
+    /**
+     * @return Roughly how many bytes have been appended since the last rotation
+     */
+    public long getBytesSinceRotate() {
+        synchronized (bufferLock) {
+            return bytesSinceRotate;
+        }
+    }
+
+    /**
+     * Stops the sync thread and writes out anything still pending
+     */
+    public void close() {
+        if (syncThread != null) {
+            syncThread.shutdown();
+            try {
+                syncThread.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized (channelLock) {
+            try {
+                sync();
+                if (channel != null) {
+                    channel.close();
+                    channel = null;
+                }
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Could not close team journal", e);
+            }
+        }
+    }
+
+    private void openSegment() throws IOException {
+        long startSeq;
+        synchronized (bufferLock) {
+            startSeq = nextSeq;
+        }
+        activeSegment = new File(directory, String.format("%020d%s", startSeq, SEGMENT_SUFFIX));
+        channel = FileChannel.open(activeSegment.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private List<File> listSegments() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) {
+            return new ArrayList<>();
+        }
+
+        // Names are zero-padded start sequence numbers, so name order is replay order
+        Arrays.sort(files);
+        return new ArrayList<>(Arrays.asList(files));
+    }
+}
@@ -0,0 +1,260 @@
+package com.darkangel.teammanager.storage;
+
+import com.darkangel.teammanager.managers.InviteManager;
+import com.darkangel.teammanager.models.Team;
+import com.darkangel.teammanager.models.TeamHome;
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Frozen copy of a team's saved data.
+ * Taken on the main thread so the actual writing can happen on another thread
+ * without racing against commands changing the team. Storage backends also
+ * hand these back when loading, so every backend shares one data shape.
+ */
+public final class TeamSnapshot {
+    /** Invite expiry meaning "never expires" */
+    public static final long NEVER = 0;
+    /** Invite expiry meaning "not saved, use the default" (old teams.yml lists) */
+    public static final long DEFAULT_EXPIRY = -1;
+    /** Team id meaning "not saved yet" (data from before ids were saved) */
+    public static final int NO_ID = 0;
+
+    private final int id;
+    private final String name;
+    private final UUID owner;
+    private final boolean pvpEnabled;
+    private final List<UUID> members;
+    private final List<UUID> recruits;
+    private final Map<UUID, Long> invites; // invitee -> expiry millis, see NEVER / DEFAULT_EXPIRY
+    private final TeamHome home; // null if no home set
+    private final String color; // null if not set
+    private final int level;
+    private final int[] allyIds; // ids of allied teams
+    private final List<String> legacyAllyNames; // allies saved by name, before they were saved by id
+
+    public TeamSnapshot(int id, String name, UUID owner, boolean pvpEnabled, List<UUID> members, List<UUID> recruits,
+                        Map<UUID, Long> invites, TeamHome home, String color, int level, int[] allyIds) {
+        this(id, name, owner, pvpEnabled, members, recruits, invites, home, color, level, allyIds,
+                Collections.emptyList());
+    }
+
+    private TeamSnapshot(int id, String name, UUID owner, boolean pvpEnabled, List<UUID> members, List<UUID> recruits,
+                         Map<UUID, Long> invites, TeamHome home, String color, int level, int[] allyIds,
+                         List<String> legacyAllyNames) {
+        this.id = id;
+        this.name = name;
+        this.owner = owner;
+        this.pvpEnabled = pvpEnabled;
+        this.members = Collections.unmodifiableList(new ArrayList<>(members));
+        this.recruits = Collections.unmodifiableList(new ArrayList<>(recruits));
+        this.invites = Collections.unmodifiableMap(new LinkedHashMap<>(invites));
+        this.home = home;
+        this.color = color;
+        this.level = level;
+        this.allyIds = allyIds.clone();
+        this.legacyAllyNames = legacyAllyNames.isEmpty() ? Collections.emptyList()
+                : Collections.unmodifiableList(new ArrayList<>(legacyAllyNames));
+    }
+
+    /**
+     * Takes a snapshot of a team - main thread only
+     * @param allyIds Ids of the teams it's allied with
+     */
+    public static TeamSnapshot of(Team team, Collection<InviteManager.Invite> teamInvites, int[] allyIds) {
+        Map<UUID, Long> inviteMap = new LinkedHashMap<>();
+        for (InviteManager.Invite invite : teamInvites) {
+            long expiresAt = invite.getExpiresAt() == Long.MAX_VALUE ? NEVER : invite.getExpiresAt();
+            inviteMap.put(invite.getPlayerId(), expiresAt);
+        }
+
+        Team.Membership membership = team.getMembership();
+        return new TeamSnapshot(team.getId(), team.getName(), membership.getOwner(), team.isPvpEnabled(),
+                new ArrayList<>(membership.getMembers()), new ArrayList<>(membership.getRecruits()), inviteMap,
+                team.getHome(),
+                team.getColor() != null ? team.getColor().name() : null, team.getLevel(), allyIds);
+    }
+
+    /**
+     * Reads a team in the teams.yml format. Safe to call from any thread.
+     * @throws IllegalArgumentException if the owner or a player UUID is invalid
+     */
+    public static TeamSnapshot read(String name, ConfigurationSection teamSection) {
+        UUID owner = UUID.fromString(teamSection.getString("owner", ""));
+        boolean pvpEnabled = teamSection.getBoolean("pvp_enabled", false);
+
+        List<UUID> members = new ArrayList<>();
+        for (String memberString : teamSection.getStringList("members")) {
+            members.add(UUID.fromString(memberString));
+        }
+
+        List<UUID> recruits = new ArrayList<>();
+        for (String recruitString : teamSection.getStringList("recruits")) {
+            recruits.add(UUID.fromString(recruitString));
+        }
+
+        // Invites - "uuid: expiry millis" (0 = never), or a plain list from older versions
+        Map<UUID, Long> invites = new LinkedHashMap<>();
+        ConfigurationSection inviteSection = teamSection.getConfigurationSection("invites");
+        if (inviteSection != null) {
+            for (String inviteString : inviteSection.getKeys(false)) {
+                invites.put(UUID.fromString(inviteString), inviteSection.getLong(inviteString, NEVER));
+            }
+        } else {
+            for (String inviteString : teamSection.getStringList("invites")) {
+                invites.put(UUID.fromString(inviteString), DEFAULT_EXPIRY);
+            }
+        }
+
+        TeamHome home = null;
+        ConfigurationSection homeSection = teamSection.getConfigurationSection("home");
+        if (homeSection != null && homeSection.getString("world") != null) {
+            home = new TeamHome(homeSection.getString("world"),
+                    homeSection.getDouble("x"), homeSection.getDouble("y"), homeSection.getDouble("z"),
+                    (float) homeSection.getDouble("yaw", 0), (float) homeSection.getDouble("pitch", 0));
+        }
+
+        // Ally ids, or ally names if it was saved before alliances were saved by id
+        List<Integer> allies = new ArrayList<>();
+        List<String> legacyAllyNames = new ArrayList<>();
+        List<?> allyList = teamSection.getList("allies");
+        if (allyList != null) {
+            for (Object ally : allyList) {
+                if (ally instanceof Number) {
+                    allies.add(((Number) ally).intValue());
+                } else if (ally instanceof String) {
+                    legacyAllyNames.add((String) ally);
+                }
+            }
+        }
+        int[] allyIds = new int[allies.size()];
+        for (int i = 0; i < allyIds.length; i++) {
+            allyIds[i] = allies.get(i);
+        }
+
+        return new TeamSnapshot(teamSection.getInt("id", NO_ID), name, owner, pvpEnabled, members, recruits, invites,
+                home, teamSection.getString("color"), teamSection.getInt("level", 1), allyIds, legacyAllyNames);
+    }
+
+    /**
+     * Writes this team in the teams.yml format. Safe to call from any thread.
+     */
+    public void writeTo(ConfigurationSection teamSection) {
+        // Save basic team data
+        teamSection.set("id", id);
+        teamSection.set("owner", owner.toString());
+        teamSection.set("pvp_enabled", pvpEnabled);
+
+        // Save recruits
+        List<String> recruitStrings = new ArrayList<>(recruits.size());
+        for (UUID recruitId : recruits) {
+            recruitStrings.add(recruitId.toString());
+        }
+        teamSection.set("recruits", recruitStrings);
+
+        // Save members
+        List<String> memberStrings = new ArrayList<>(members.size());
+        for (UUID memberId : members) {
+            memberStrings.add(memberId.toString());
+        }
+        teamSection.set("members", memberStrings);
+
+        // Save invites with their expiry so they don't get extended by a restart
+        ConfigurationSection inviteSection = teamSection.createSection("invites");
+        for (Map.Entry<UUID, Long> invite : invites.entrySet()) {
+            inviteSection.set(invite.getKey().toString(), invite.getValue());
+        }
+
+        // Save home location
+        if (home != null) {
+            ConfigurationSection homeSection = teamSection.createSection("home");
+            homeSection.set("world", home.getWorld());
+            homeSection.set("x", home.getX());
+            homeSection.set("y", home.getY());
+            homeSection.set("z", home.getZ());
+            homeSection.set("yaw", home.getYaw());
+            homeSection.set("pitch", home.getPitch());
+        }
+
+        // Save team color
+        if (color != null) {
+            teamSection.set("color", color);
+        }
+
+        // Save team level
+        teamSection.set("level", level);
+        
+        // Save allied team ids
+        if (allyIds.length > 0) {
+            List<Integer> allies = new ArrayList<>(allyIds.length);
+            for (int allyId : allyIds) {
+                allies.add(allyId);
+            }
+            teamSection.set("allies", allies);
+        }
+    }
+
+    /**
+     * @return The team's id, or NO_ID if it was saved before teams had ids
+     */
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public UUID getOwner() {
+        return owner;
+    }
+
+    public boolean isPvpEnabled() {
+        return pvpEnabled;
+    }
+
+    public List<UUID> getMembers() {
+        return members;
+    }
+
+    public List<UUID> getRecruits() {
+        return recruits;
+    }
+
+    public Map<UUID, Long> getInvites() {
+        return invites;
+    }
+
+    public TeamHome getHome() {
+        return home;
+    }
+
+    public String getColor() {
+        return color;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * @return Don't change the array, it's not a copy
+     */
+    public int[] getAllyIds() {
+        return allyIds;
+    }
+
+    /**
+     * @return Names of allied teams, only set when read from a file saved before allies were saved by id
+     */
+    public List<String> getLegacyAllyNames() {
+        return legacyAllyNames;
+    }
+}
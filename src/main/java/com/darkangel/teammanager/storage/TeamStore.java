@@ -0,0 +1,41 @@
+package com.darkangel.teammanager.storage;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Somewhere teams can be saved to and loaded from.
+ * TeamDataManager keeps the live teams in memory and only talks to the store
+ * through snapshots, so backends never see Team objects and can be used from
+ * the background save thread. Stores that can write one team at a time also
+ * implement {@link PartialTeamStore}.
+ */
+public interface TeamStore {
+
+    /**
+     * @return Short name used in logs and commands (yaml, sharded, sqlite)
+     */
+    String getName();
+
+    /**
+     * Checks if this store has been set up yet (false means we still need to migrate)
+     */
+    boolean exists();
+
+    /**
+     * Loads every team. Teams that can't be read are logged and left out.
+     */
+    List<TeamSnapshot> loadAll() throws IOException;
+
+    /**
+     * Replaces everything in the store with these teams
+     */
+    void saveAll(Collection<TeamSnapshot> teams) throws IOException;
+
+    /**
+     * Releases anything the store holds open (connections, files)
+     */
+    default void close() {
+    }
+}
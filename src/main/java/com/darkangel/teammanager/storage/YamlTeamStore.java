@@ -0,0 +1,179 @@
+package com.darkangel.teammanager.storage;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+
+/**
+ * All teams in a single teams.yml - the original format.
+ * Can only be rewritten as a whole, so every save writes every team.
+ */
+public class YamlTeamStore implements TeamStore {
+    // Below this many teams splitting the work up costs more than it saves
+    private static final int PARALLEL_THRESHOLD = 64;
+
+    private final File file;
+    private final Logger logger;
+
+    // Journal record the last loaded file was up to date with
+    private volatile long journalSeq;
+
+    // Faster binary copy written next to teams.yml, null if turned off
+    private BinaryTeamSnapshot binarySnapshot;
+
+    // Threads used to parse teams on load, 1 = just the calling thread
+    private int parallelism = 1;
+
+    public YamlTeamStore(File file, Logger logger) {
+        this.file = file;
+        this.logger = logger;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Also keeps a binary copy of teams.yml, used for loading while it's up to date
+     */
+    public void setBinarySnapshot(BinaryTeamSnapshot binarySnapshot) {
+        this.binarySnapshot = binarySnapshot;
+    }
+
+    /**
+     * Parses teams on this many threads when loading
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    @Override
+    public String getName() {
+        return "yaml";
+    }
+
+    @Override
+    public boolean exists() {
+        return file.isFile();
+    }
+
+    @Override
+    public List<TeamSnapshot> loadAll() {
+        if (binarySnapshot != null) {
+            BinaryTeamSnapshot.Contents contents = binarySnapshot.read(file);
+            if (contents != null) {
+                journalSeq = contents.getJournalSeq();
+                return contents.getTeams();
+            }
+        }
+
+        YamlConfiguration yaml = YamlConfiguration.loadConfiguration(file);
+        journalSeq = yaml.getLong("journal-seq", 0);
+
+        ConfigurationSection teamsSection = yaml.getConfigurationSection("teams");
+        if (teamsSection == null) return new ArrayList<>();
+
+        List<String> teamNames = new ArrayList<>(teamsSection.getKeys(false));
+        TeamSnapshot[] parsed = new TeamSnapshot[teamNames.size()];
+        if (parallelism > 1 && teamNames.size() >= PARALLEL_THRESHOLD) {
+            // The YAML tree is only read from here on, so the teams can be parsed side by side
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                pool.submit(() -> IntStream.range(0, parsed.length).parallel()
+                        .forEach(i -> parsed[i] = parse(teamsSection, teamNames.get(i)))).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while loading teams", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Could not load teams", e.getCause());
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            for (int i = 0; i < parsed.length; i++) {
+                parsed[i] = parse(teamsSection, teamNames.get(i));
+            }
+        }
+
+        // Keep the file order, minus any teams that failed
+        List<TeamSnapshot> snapshots = new ArrayList<>(parsed.length);
+        for (TeamSnapshot snapshot : parsed) {
+            if (snapshot != null) {
+                snapshots.add(snapshot);
+            }
+        }
+        return snapshots;
+    }
+
+    /**
+     * Parses one team, logging and returning null if it's broken
+     */
+    private TeamSnapshot parse(ConfigurationSection teamsSection, String teamName) {
+        ConfigurationSection teamSection = teamsSection.getConfigurationSection(teamName);
+        if (teamSection == null) return null;
+
+        try {
+            return TeamSnapshot.read(teamName, teamSection);
+        } catch (IllegalArgumentException e) {
+            logger.log(Level.WARNING, "Error loading team " + teamName + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return The journal-seq stored in the file by the last {@link #loadAll()}
+     */
+    public long getJournalSeq() {
+        return journalSeq;
+    }
+
+    @Override
+    public void saveAll(Collection<TeamSnapshot> teams) throws IOException {
+        writeAll(teams, 0);
+    }
+
+    /**
+     * Builds the YAML and writes it out. Goes through a temp file so a crash
+     * mid-write can't leave a half-written teams.yml behind.
+     * @param journalSeq Last journal record these teams include
+     */
+    public void writeAll(Collection<TeamSnapshot> teams, long journalSeq) throws IOException {
+        YamlConfiguration yaml = new YamlConfiguration();
+        yaml.set("journal-seq", journalSeq);
+        ConfigurationSection teamsSection = yaml.createSection("teams");
+        for (TeamSnapshot snapshot : teams) {
+            snapshot.writeTo(teamsSection.createSection(snapshot.getName()));
+        }
+
+        File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        yaml.save(tempFile);
+        try {
+            Files.move(tempFile.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        if (binarySnapshot != null) {
+            try {
+                binarySnapshot.write(teams, journalSeq, file);
+            } catch (IOException e) {
+                // Not the end of the world, it'll just be seen as outdated and teams.yml gets loaded
+                logger.log(Level.WARNING, "Could not write binary team snapshot", e);
+            }
+        }
+    }
+}
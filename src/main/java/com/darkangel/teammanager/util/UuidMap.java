@@ -0,0 +1,238 @@
+package com.darkangel.teammanager.util;
+
+import java.util.UUID;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Map from UUID to a value, with the keys stored as pairs of longs in a flat
+ * array and the values in a parallel one. Same layout as UuidSet - no node or
+ * UUID object per entry, and get() doesn't allocate.
+ *
+ * Not thread safe on its own. A get() racing with a write can give a wrong
+ * answer but never throws or loops forever, so it can be used with a
+ * StampedLock optimistic read (see PlayerTeamIndex).
+ */
+public final class UuidMap<V> {
+
+    // Keys and values swapped in together, so a reader never pairs the keys of one with the values of another
+    private static final class Table {
+        // msb, lsb, msb, lsb... - both 0 is an empty slot
+        final long[] keys;
+        final Object[] values;
+
+        Table(int slots) {
+            keys = new long[slots * 2];
+            values = new Object[slots];
+        }
+    }
+
+    private static final Table EMPTY = new Table(0);
+
+    private Table table = EMPTY;
+    private int size;
+    // The nil UUID would look like an empty slot, so it's kept on its own
+    private V nilValue;
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return The value, or null if there isn't one
+     */
+    @SuppressWarnings("unchecked")
+    public V get(UUID key) {
+        long msb = key.getMostSignificantBits();
+        long lsb = key.getLeastSignificantBits();
+        if (msb == 0 && lsb == 0) return nilValue;
+
+        Table t = table;
+        int slot = findSlot(t, msb, lsb);
+        return slot >= 0 ? (V) t.values[slot] : null;
+    }
+
+    public boolean containsKey(UUID key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @param value Can't be null
+     * @return The old value, or null if there wasn't one
+     */
+    public V put(UUID key, V value) {
+        return put(key, value, true);
+    }
+
+    /**
+     * @return The existing value (left as it is), or null if the value was added
+     */
+    public V putIfAbsent(UUID key, V value) {
+        return put(key, value, false);
+    }
+
+    public V computeIfAbsent(UUID key, Function<? super UUID, ? extends V> create) {
+        V value = get(key);
+        if (value == null) {
+            value = create.apply(key);
+            put(key, value);
+        }
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private V put(UUID key, V value, boolean replace) {
+        if (value == null) throw new NullPointerException("value");
+
+        long msb = key.getMostSignificantBits();
+        long lsb = key.getLeastSignificantBits();
+        if (msb == 0 && lsb == 0) {
+            V old = nilValue;
+            if (old == null) size++;
+            if (old == null || replace) nilValue = value;
+            return old;
+        }
+
+        int slots = table.values.length;
+        if ((size + 1) * 4 > slots * 3) {
+            resize(Math.max(8, slots * 2));
+            slots = table.values.length;
+        }
+
+        Table t = table;
+        int slot = UuidSet.hash(msb, lsb) & (slots - 1);
+        while (true) {
+            long m = t.keys[slot * 2];
+            long l = t.keys[slot * 2 + 1];
+            if (m == 0 && l == 0) {
+                t.values[slot] = value;
+                t.keys[slot * 2] = msb;
+                t.keys[slot * 2 + 1] = lsb;
+                size++;
+                return null;
+            }
+            if (m == msb && l == lsb) {
+                V old = (V) t.values[slot];
+                if (replace) t.values[slot] = value;
+                return old;
+            }
+            slot = (slot + 1) & (slots - 1);
+        }
+    }
+
+    /**
+     * @return The removed value, or null if there wasn't one
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(UUID key) {
+        long msb = key.getMostSignificantBits();
+        long lsb = key.getLeastSignificantBits();
+        if (msb == 0 && lsb == 0) {
+            V old = nilValue;
+            if (old != null) {
+                nilValue = null;
+                size--;
+            }
+            return old;
+        }
+
+        int slot = findSlot(table, msb, lsb);
+        if (slot < 0) return null;
+        V old = (V) table.values[slot];
+        deleteSlot(slot);
+        size--;
+        return old;
+    }
+
+    /**
+     * Removes a key, but only if it's mapped to this value (compared with ==)
+     * @return true if it was removed
+     */
+    public boolean remove(UUID key, V value) {
+        V current = get(key);
+        if (current == null || current != value) return false;
+        remove(key);
+        return true;
+    }
+
+    public void clear() {
+        table = EMPTY;
+        size = 0;
+        nilValue = null;
+    }
+
+    /**
+     * Runs something for each entry. Makes a UUID per entry, so don't use it on hot paths
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<UUID, ? super V> action) {
+        if (nilValue != null) action.accept(new UUID(0, 0), nilValue);
+        Table t = table;
+        for (int slot = 0; slot < t.values.length; slot++) {
+            if (t.keys[slot * 2] != 0 || t.keys[slot * 2 + 1] != 0) {
+                action.accept(new UUID(t.keys[slot * 2], t.keys[slot * 2 + 1]), (V) t.values[slot]);
+            }
+        }
+    }
+
+    private static int findSlot(Table t, long msb, long lsb) {
+        int slots = t.values.length;
+        if (slots == 0) return -1;
+        int slot = UuidSet.hash(msb, lsb) & (slots - 1);
+        // Capped at one lap of the table, in case a racing write left it in a weird state
+        for (int probes = 0; probes < slots; probes++) {
+            long m = t.keys[slot * 2];
+            long l = t.keys[slot * 2 + 1];
+            if (m == msb && l == lsb) return slot;
+            if (m == 0 && l == 0) return -1;
+            slot = (slot + 1) & (slots - 1);
+        }
+        return -1;
+    }
+
+    /**
+     * Empties a slot and shifts back entries that probed past it (no tombstones)
+     */
+    private void deleteSlot(int slot) {
+        Table t = table;
+        int mask = t.values.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (t.keys[next * 2] != 0 || t.keys[next * 2 + 1] != 0) {
+            int home = UuidSet.hash(t.keys[next * 2], t.keys[next * 2 + 1]) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                t.keys[hole * 2] = t.keys[next * 2];
+                t.keys[hole * 2 + 1] = t.keys[next * 2 + 1];
+                t.values[hole] = t.values[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        t.keys[hole * 2] = 0;
+        t.keys[hole * 2 + 1] = 0;
+        t.values[hole] = null;
+    }
+
+    private void resize(int slots) {
+        Table old = table;
+        Table resized = new Table(slots);
+        int mask = slots - 1;
+        for (int i = 0; i < old.values.length; i++) {
+            long msb = old.keys[i * 2];
+            long lsb = old.keys[i * 2 + 1];
+            if (msb == 0 && lsb == 0) continue;
+            int slot = UuidSet.hash(msb, lsb) & mask;
+            while (resized.keys[slot * 2] != 0 || resized.keys[slot * 2 + 1] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            resized.keys[slot * 2] = msb;
+            resized.keys[slot * 2 + 1] = lsb;
+            resized.values[slot] = old.values[i];
+        }
+        table = resized;
+    }
+}
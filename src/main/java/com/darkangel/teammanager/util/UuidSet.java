@@ -0,0 +1,264 @@
+package com.darkangel.teammanager.util;
+
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Set of UUIDs stored as pairs of longs in one flat array (open addressing,
+ * linear probing). A HashSet&lt;UUID&gt; costs a node, a UUID object and a table
+ * slot per entry, around 70 bytes. This is 16 bytes per slot and at most 3/4
+ * of the slots are used, so 21-43 bytes per entry.
+ *
+ * Lookups don't allocate. Iterating does, since each entry has to be turned
+ * back into a UUID - use contains() on hot paths, not iteration. The iterator
+ * can't remove, use remove() instead.
+ *
+ * Not thread safe. Teams only ever share one once it's done being built.
+ */
+public final class UuidSet extends AbstractSet<UUID> {
+    private static final long[] EMPTY = new long[0];
+
+    // msb, lsb, msb, lsb... - both 0 is an empty slot
+    private long[] table = EMPTY;
+    private int size;
+    // The nil UUID would look like an empty slot, so it's tracked on its own
+    private boolean containsNil;
+
+    public UuidSet() {
+    }
+
+    public UuidSet(int expectedSize) {
+        if (expectedSize > 0) {
+            table = new long[capacityFor(expectedSize) * 2];
+        }
+    }
+
+    public UuidSet(Collection<UUID> ids) {
+        this(ids.size());
+        for (UUID id : ids) {
+            add(id);
+        }
+    }
+
+    /**
+     * Copies another set without turning its entries back into UUIDs. The copy
+     * gets the smallest table that fits, so copies that never change stay tight
+     */
+    public UuidSet(UuidSet other) {
+        int entries = other.containsNil ? other.size - 1 : other.size;
+        if (entries > 0) {
+            long[] source = other.table;
+            table = new long[capacityFor(entries) * 2];
+            for (int i = 0; i < source.length; i += 2) {
+                if (source[i] != 0 || source[i + 1] != 0) {
+                    insertNew(table, source[i], source[i + 1]);
+                }
+            }
+        }
+        this.size = other.size;
+        this.containsNil = other.containsNil;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof UUID)) return false;
+        UUID id = (UUID) o;
+        return contains(id.getMostSignificantBits(), id.getLeastSignificantBits());
+    }
+
+    public boolean contains(long msb, long lsb) {
+        if (msb == 0 && lsb == 0) return containsNil;
+        return table.length > 0 && findSlot(table, msb, lsb) >= 0;
+    }
+
+    @Override
+    public boolean add(UUID id) {
+        long msb = id.getMostSignificantBits();
+        long lsb = id.getLeastSignificantBits();
+        if (msb == 0 && lsb == 0) {
+            if (containsNil) return false;
+            containsNil = true;
+            size++;
+            return true;
+        }
+
+        // Resize before it gets over 3/4 full, so probes stay short
+        int slots = table.length / 2;
+        if ((size + 1) * 4 > slots * 3) {
+            slots = Math.max(4, slots * 2);
+            resize(slots);
+        }
+        int slot = hash(msb, lsb) & (slots - 1);
+        while (true) {
+            int i = slot * 2;
+            long m = table[i];
+            long l = table[i + 1];
+            if (m == 0 && l == 0) {
+                table[i] = msb;
+                table[i + 1] = lsb;
+                size++;
+                return true;
+            }
+            if (m == msb && l == lsb) return false;
+            slot = (slot + 1) & (slots - 1);
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof UUID)) return false;
+        UUID id = (UUID) o;
+        long msb = id.getMostSignificantBits();
+        long lsb = id.getLeastSignificantBits();
+        if (msb == 0 && lsb == 0) {
+            if (!containsNil) return false;
+            containsNil = false;
+            size--;
+            return true;
+        }
+        if (table.length == 0) return false;
+
+        int slot = findSlot(table, msb, lsb);
+        if (slot < 0) return false;
+        deleteSlot(slot);
+        size--;
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        table = EMPTY;
+        size = 0;
+        containsNil = false;
+    }
+
+    @Override
+    public void forEach(Consumer<? super UUID> action) {
+        if (containsNil) action.accept(new UUID(0, 0));
+        long[] t = table;
+        for (int i = 0; i < t.length; i += 2) {
+            if (t[i] != 0 || t[i + 1] != 0) {
+                action.accept(new UUID(t[i], t[i + 1]));
+            }
+        }
+    }
+
+    @Override
+    public Iterator<UUID> iterator() {
+        return new Iterator<UUID>() {
+            // -1 = the nil UUID, then slot indexes
+            private int next = containsNil ? -1 : advance(0);
+
+            private int advance(int from) {
+                for (int slot = from; slot < table.length / 2; slot++) {
+                    if (table[slot * 2] != 0 || table[slot * 2 + 1] != 0) return slot;
+                }
+                return table.length / 2;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next < table.length / 2;
+            }
+
+            @Override
+            public UUID next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                if (next == -1) {
+                    next = advance(0);
+                    return new UUID(0, 0);
+                }
+                UUID id = new UUID(table[next * 2], table[next * 2 + 1]);
+                next = advance(next + 1);
+                return id;
+            }
+        };
+    }
+
+    /**
+     * @return The slot holding this UUID, or -1
+     */
+    static int findSlot(long[] table, long msb, long lsb) {
+        int slots = table.length / 2;
+        int slot = hash(msb, lsb) & (slots - 1);
+        for (int probes = 0; probes < slots; probes++) {
+            int i = slot * 2;
+            long m = table[i];
+            long l = table[i + 1];
+            if (m == msb && l == lsb) return slot;
+            if (m == 0 && l == 0) return -1;
+            slot = (slot + 1) & (slots - 1);
+        }
+        return -1;
+    }
+
+    /**
+     * Empties a slot and shifts back any entries after it that probed past it,
+     * so no tombstones are needed
+     */
+    private void deleteSlot(int slot) {
+        int slots = table.length / 2;
+        int mask = slots - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (table[next * 2] != 0 || table[next * 2 + 1] != 0) {
+            int home = hash(table[next * 2], table[next * 2 + 1]) & mask;
+            // Only move it if its home slot isn't between the hole and where it is now
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                table[hole * 2] = table[next * 2];
+                table[hole * 2 + 1] = table[next * 2 + 1];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        table[hole * 2] = 0;
+        table[hole * 2 + 1] = 0;
+    }
+
+    private void resize(int slots) {
+        long[] old = table;
+        long[] resized = new long[slots * 2];
+        for (int i = 0; i < old.length; i += 2) {
+            if (old[i] != 0 || old[i + 1] != 0) {
+                insertNew(resized, old[i], old[i + 1]);
+            }
+        }
+        table = resized;
+    }
+
+    /**
+     * Puts a UUID that's known not to be in the table yet into the first free slot
+     */
+    private static void insertNew(long[] table, long msb, long lsb) {
+        int mask = table.length / 2 - 1;
+        int slot = hash(msb, lsb) & mask;
+        while (table[slot * 2] != 0 || table[slot * 2 + 1] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot * 2] = msb;
+        table[slot * 2 + 1] = lsb;
+    }
+
+    /**
+     * Smallest power of two number of slots that keeps this many entries at most 3/4 full
+     */
+    static int capacityFor(int entries) {
+        int needed = Math.max(4, (entries * 4 + 2) / 3);
+        return Integer.highestOneBit(needed - 1) << 1;
+    }
+
+    static int hash(long msb, long lsb) {
+        // Random UUIDs are already well spread, this just mixes both halves in
+        long h = (msb ^ lsb) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
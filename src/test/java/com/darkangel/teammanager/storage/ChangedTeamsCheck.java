@@ -0,0 +1,111 @@
+package com.darkangel.teammanager.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Checks that a partial save which fails doesn't lose its teams: the store
+ * has to be handed the same changed and removed ids again on the next save,
+ * and nothing once a save went through.
+ *
+ * No test framework here, so it's a main class. Run it with the plugin classes
+ * and the Bukkit API on the classpath:
+ * <pre>
+ * java -cp out:spigot-api.jar com.darkangel.teammanager.storage.ChangedTeamsCheck
+ * </pre>
+ * Exits non-zero on the first difference.
+ */
+public class ChangedTeamsCheck {
+
+    /**
+     * Remembers what it was asked to save, and fails while failing is set
+     */
+    private static final class FailingStore implements PartialTeamStore {
+        boolean failing;
+        List<Integer> savedIds = new ArrayList<>();
+        List<Integer> removedIds = new ArrayList<>();
+
+        @Override
+        public String getName() {
+            return "failing";
+        }
+
+        @Override
+        public boolean exists() {
+            return true;
+        }
+
+        @Override
+        public List<TeamSnapshot> loadAll() {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public void saveAll(Collection<TeamSnapshot> teams) {
+        }
+
+        @Override
+        public void saveChanges(Collection<TeamSnapshot> changed, Collection<Integer> removed) throws IOException {
+            savedIds = new ArrayList<>();
+            for (TeamSnapshot snapshot : changed) {
+                savedIds.add(snapshot.getId());
+            }
+            removedIds = new ArrayList<>(removed);
+            if (failing) {
+                throw new IOException("disk full");
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        ChangedTeams dirty = new ChangedTeams();
+        FailingStore store = new FailingStore();
+
+        // Team 2 has been disbanded, the others still exist
+        dirty.add(1);
+        dirty.add(2);
+        dirty.add(3);
+        store.failing = true;
+        SaveScheduler.PendingWrite write = dirty.takeWrite(store, ChangedTeamsCheck::snapshotUnless2);
+        check(dirty.isEmpty(), "ids are cleared once they're snapshotted");
+        try {
+            write.write();
+            check(false, "the first write fails");
+        } catch (IOException e) {
+            write.failed();
+        }
+        check(store.savedIds.equals(Arrays.asList(1, 3)) && store.removedIds.equals(Collections.singletonList(2)),
+                "first write got teams 1, 3 and removed team 2");
+
+        // Something else changed before the retry
+        dirty.add(4);
+        store.failing = false;
+        dirty.takeWrite(store, ChangedTeamsCheck::snapshotUnless2).write();
+        check(store.savedIds.equals(Arrays.asList(1, 3, 4)), "retry saves teams 1 and 3 again, plus 4: " + store.savedIds);
+        check(store.removedIds.equals(Collections.singletonList(2)), "retry removes team 2 again: " + store.removedIds);
+        check(dirty.isEmpty(), "nothing is left after a write that went through");
+
+        dirty.takeWrite(store, ChangedTeamsCheck::snapshotUnless2).write();
+        check(store.savedIds.isEmpty() && store.removedIds.isEmpty(), "the save after that has nothing to do");
+
+        System.out.println("Failed partial saves hand their teams to the next save");
+    }
+
+    private static TeamSnapshot snapshotUnless2(int id) {
+        if (id == 2) return null;
+        return new TeamSnapshot(id, "team" + id, new UUID(0, id), false, Collections.emptyList(),
+                Collections.emptyList(), Collections.emptyMap(), null, null, 1, new int[0]);
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) {
+            System.err.println("Failed: " + what);
+            System.exit(1);
+        }
+    }
+}
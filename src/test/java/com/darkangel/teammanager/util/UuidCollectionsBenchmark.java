@@ -0,0 +1,154 @@
+package com.darkangel.teammanager.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Footprint and lookup cost of UuidSet/UuidMap next to HashSet/HashMap with
+ * random UUIDs. Rough numbers, not JMH - footprint is heap used before and
+ * after filling (after a few GCs), lookups are timed over several warmed-up
+ * passes. Lookups use fresh UUID objects, half hits and half misses, like
+ * the lookups done for events and chat.
+ *
+ * Run it with a fixed GC so the footprint numbers are comparable:
+ * <pre>
+ * javac -d out src/main/java/com/darkangel/teammanager/util/*.java src/test/java/com/darkangel/teammanager/util/*.java
+ * java -XX:+UseSerialGC -Xmx2g -cp out com.darkangel.teammanager.util.UuidCollectionsBenchmark [entries]
+ * </pre>
+ */
+public class UuidCollectionsBenchmark {
+    private static final int WARMUP_PASSES = 4;
+    private static final int SMALL_SETS = 100_000;
+    private static final int SMALL_SET_SIZE = 10;
+
+    // Keeps results alive so neither the GC nor the JIT can throw the work away
+    private static final List<Object> sink = new ArrayList<>();
+
+    public static void main(String[] args) {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        UUID[] ids = new UUID[entries];
+        for (int i = 0; i < entries; i++) {
+            ids[i] = UUID.randomUUID();
+        }
+        Object value = new Object();
+
+        // Each structure gets its own copies of the UUIDs, the way a set loaded from disk would
+        long before = usedHeap();
+        Set<UUID> hashSet = new HashSet<>();
+        for (UUID id : ids) {
+            hashSet.add(copy(id));
+        }
+        long hashSetBytes = usedHeap() - before;
+
+        before = usedHeap();
+        UuidSet uuidSet = new UuidSet();
+        for (UUID id : ids) {
+            uuidSet.add(id);
+        }
+        long uuidSetBytes = usedHeap() - before;
+
+        before = usedHeap();
+        Map<UUID, Object> hashMap = new HashMap<>();
+        for (UUID id : ids) {
+            hashMap.put(copy(id), value);
+        }
+        long hashMapBytes = usedHeap() - before;
+
+        before = usedHeap();
+        UuidMap<Object> uuidMap = new UuidMap<>();
+        for (UUID id : ids) {
+            uuidMap.put(id, value);
+        }
+        long uuidMapBytes = usedHeap() - before;
+
+        System.out.printf("Footprint per entry, %d entries: HashSet %.1f B, UuidSet %.1f B, HashMap %.1f B, UuidMap %.1f B%n",
+                entries, hashSetBytes / (double) entries, uuidSetBytes / (double) entries,
+                hashMapBytes / (double) entries, uuidMapBytes / (double) entries);
+
+        UUID[] probes = new UUID[entries];
+        for (int i = 0; i < entries; i++) {
+            probes[i] = (i & 1) == 0 ? copy(ids[i]) : UUID.randomUUID();
+        }
+        double hashSetNanos = 0, uuidSetNanos = 0, hashMapNanos = 0, uuidMapNanos = 0;
+        int hits = 0;
+        for (int pass = 0; pass <= WARMUP_PASSES; pass++) {
+            long start = System.nanoTime();
+            for (UUID probe : probes) {
+                if (hashSet.contains(probe)) hits++;
+            }
+            long afterHashSet = System.nanoTime();
+            for (UUID probe : probes) {
+                if (uuidSet.contains(probe)) hits++;
+            }
+            long afterUuidSet = System.nanoTime();
+            for (UUID probe : probes) {
+                if (hashMap.get(probe) != null) hits++;
+            }
+            long afterHashMap = System.nanoTime();
+            for (UUID probe : probes) {
+                if (uuidMap.get(probe) != null) hits++;
+            }
+            long afterUuidMap = System.nanoTime();
+
+            // Only the last pass counts, the others are warmup
+            hashSetNanos = (afterHashSet - start) / (double) entries;
+            uuidSetNanos = (afterUuidSet - afterHashSet) / (double) entries;
+            hashMapNanos = (afterHashMap - afterUuidSet) / (double) entries;
+            uuidMapNanos = (afterUuidMap - afterHashMap) / (double) entries;
+        }
+        System.out.printf("Lookup: HashSet %.1f ns, UuidSet %.1f ns, HashMap %.1f ns, UuidMap %.1f ns%n",
+                hashSetNanos, uuidSetNanos, hashMapNanos, uuidMapNanos);
+
+        // Team sized sets - lots of small ones, like Team.Membership
+        before = usedHeap();
+        List<Set<UUID>> smallHashSets = new ArrayList<>(SMALL_SETS);
+        for (int i = 0; i < SMALL_SETS; i++) {
+            Set<UUID> set = new HashSet<>();
+            for (int j = 0; j < SMALL_SET_SIZE; j++) {
+                set.add(UUID.randomUUID());
+            }
+            smallHashSets.add(set);
+        }
+        long smallHashSetBytes = usedHeap() - before;
+
+        before = usedHeap();
+        List<UuidSet> smallUuidSets = new ArrayList<>(SMALL_SETS);
+        for (int i = 0; i < SMALL_SETS; i++) {
+            UuidSet set = new UuidSet();
+            for (int j = 0; j < SMALL_SET_SIZE; j++) {
+                set.add(UUID.randomUUID());
+            }
+            // Membership keeps tight copies, so measure one of those
+            smallUuidSets.add(new UuidSet(set));
+        }
+        long smallUuidSetBytes = usedHeap() - before;
+
+        System.out.printf("%d-member set, whole object: HashSet %.0f B, UuidSet %.0f B%n", SMALL_SET_SIZE,
+                smallHashSetBytes / (double) SMALL_SETS, smallUuidSetBytes / (double) SMALL_SETS);
+
+        sink.add(hashSet);
+        sink.add(uuidSet);
+        sink.add(hashMap);
+        sink.add(uuidMap);
+        sink.add(smallHashSets);
+        sink.add(smallUuidSets);
+        sink.add(hits);
+    }
+
+    private static UUID copy(UUID id) {
+        return new UUID(id.getMostSignificantBits(), id.getLeastSignificantBits());
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
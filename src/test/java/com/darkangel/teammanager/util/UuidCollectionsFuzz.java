@@ -0,0 +1,120 @@
+package com.darkangel.teammanager.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Randomized check of UuidSet and UuidMap against HashSet and HashMap: the
+ * same random add/remove/lookup sequence goes to both, and every answer and
+ * size has to agree. The nil UUID is mixed in since it's stored on its own.
+ *
+ * No test framework here, so it's a main class. Run it with:
+ * <pre>
+ * javac -d out src/main/java/com/darkangel/teammanager/util/*.java src/test/java/com/darkangel/teammanager/util/*.java
+ * java -cp out com.darkangel.teammanager.util.UuidCollectionsFuzz [seed]
+ * </pre>
+ * Exits non-zero on the first difference, printing the seed and round.
+ */
+public class UuidCollectionsFuzz {
+    private static final int ROUNDS = 200;
+    private static final int OPERATIONS = 3000;
+
+    public static void main(String[] args) {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : System.nanoTime();
+        Random random = new Random(seed);
+
+        for (int round = 0; round < ROUNDS; round++) {
+            try {
+                runRound(random);
+            } catch (AssertionError e) {
+                System.err.println("Failed with seed " + seed + " in round " + round + ": " + e.getMessage());
+                System.exit(1);
+            }
+        }
+        System.out.println("UuidSet and UuidMap matched HashSet and HashMap (seed " + seed + ", "
+                + ROUNDS + " rounds of " + OPERATIONS + " operations)");
+    }
+
+    private static void runRound(Random random) {
+        UuidSet set = new UuidSet();
+        Set<UUID> expectedSet = new HashSet<>();
+        UuidMap<Integer> map = new UuidMap<>();
+        Map<UUID, Integer> expectedMap = new HashMap<>();
+
+        // A small pool so the same UUIDs keep coming back, which is what exercises removes and probing
+        List<UUID> pool = new ArrayList<>();
+        int poolSize = 1 + random.nextInt(300);
+        for (int i = 0; i < poolSize; i++) {
+            pool.add(random.nextInt(50) == 0 ? new UUID(0, 0) : new UUID(random.nextInt(4), random.nextLong()));
+        }
+
+        for (int op = 0; op < OPERATIONS; op++) {
+            // Fresh object every time, so nothing can get away with comparing references
+            UUID picked = pool.get(random.nextInt(pool.size()));
+            UUID id = new UUID(picked.getMostSignificantBits(), picked.getLeastSignificantBits());
+            Integer value = op;
+
+            switch (random.nextInt(8)) {
+                case 0:
+                case 1:
+                    check(set.add(id) == expectedSet.add(id), "add", id);
+                    check(Objects.equals(map.put(id, value), expectedMap.put(id, value)), "put", id);
+                    break;
+                case 2:
+                    check(Objects.equals(map.putIfAbsent(id, value), expectedMap.putIfAbsent(id, value)),
+                            "putIfAbsent", id);
+                    break;
+                case 3:
+                    check(Objects.equals(map.computeIfAbsent(id, k -> value),
+                            expectedMap.computeIfAbsent(id, k -> value)), "computeIfAbsent", id);
+                    break;
+                case 4:
+                    check(set.remove(id) == expectedSet.remove(id), "remove", id);
+                    check(Objects.equals(map.remove(id), expectedMap.remove(id)), "map remove", id);
+                    break;
+                case 5: {
+                    // Only removes if it's still the same value object
+                    Integer current = map.get(id);
+                    boolean removed = current != null && expectedMap.remove(id, current);
+                    check(map.remove(id, current) == removed, "remove(key, value)", id);
+                    break;
+                }
+                default:
+                    check(set.contains(id) == expectedSet.contains(id), "contains", id);
+                    check(Objects.equals(map.get(id), expectedMap.get(id)), "get", id);
+                    check(map.containsKey(id) == expectedMap.containsKey(id), "containsKey", id);
+                    break;
+            }
+            check(set.size() == expectedSet.size(), "set size", id);
+            check(map.size() == expectedMap.size(), "map size", id);
+        }
+
+        check(new HashSet<>(set).equals(expectedSet), "iterator", null);
+        Set<UUID> visited = new HashSet<>();
+        set.forEach(visited::add);
+        check(visited.equals(expectedSet), "forEach", null);
+        check(new UuidSet(set).equals(expectedSet), "copy", null);
+        check(new UuidSet(expectedSet).equals(expectedSet), "copy from collection", null);
+
+        Map<UUID, Integer> entries = new HashMap<>();
+        map.forEach(entries::put);
+        check(entries.equals(expectedMap), "map forEach", null);
+
+        set.clear();
+        map.clear();
+        check(set.isEmpty() && map.isEmpty(), "clear", null);
+    }
+
+    private static void check(boolean ok, String what, UUID id) {
+        if (!ok) {
+            throw new AssertionError(what + " differs" + (id != null ? " for " + id : ""));
+        }
+    }
+}